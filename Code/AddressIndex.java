@@ -0,0 +1,151 @@
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A secondary index over a set of UTXOs from address to the UTXOs it owns and their total value.
+ * An address is the SHA-256 hash of the owning public key, as defined by
+ * {@link KeyRegistry.Entry#getAddress()}.
+ * <p>
+ * The index is kept up to date either by a {@code UTXOPool} it is attached to, or as a
+ * {@link ChainListener} of a {@code BlockChain}'s main chain. Queries cost O(1) for balances and
+ * O(coins of the address) for coins, independently of the size of the UTXO set.
+ */
+public class AddressIndex implements ChainListener {
+
+    private static class Entry {
+        HashMap<UTXO, Transaction.Output> coins = new HashMap<UTXO, Transaction.Output>();
+        long balance;
+    }
+
+    private HashMap<Hash256, Entry> entries = new HashMap<Hash256, Entry>();
+
+    /** Creates an empty index */
+    public AddressIndex() {
+    }
+
+    /** Creates an index over all UTXOs in {@code utxoPool} */
+    public AddressIndex(UTXOPool utxoPool) {
+        addAll(utxoPool);
+    }
+
+    /** @return the address of {@code key}, as cached by its {@link KeyRegistry} entry */
+    public static byte[] addressOf(PublicKey key) {
+        return KeyRegistry.intern(key).getAddress();
+    }
+
+    /** Indexes {@code utxo}, which holds {@code txOut} */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        Hash256 address = Hash256.of(txOut.key.getAddress());
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(address, entry);
+        }
+        Transaction.Output old = entry.coins.put(utxo, txOut);
+        if (old != null)
+            entry.balance -= old.value;
+        entry.balance += txOut.value;
+    }
+
+    /** Removes {@code utxo}, which holds {@code txOut}, from the index */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        Hash256 address = Hash256.of(txOut.key.getAddress());
+        Entry entry = entries.get(address);
+        if (entry == null)
+            return;
+        Transaction.Output old = entry.coins.remove(utxo);
+        if (old == null)
+            return;
+        entry.balance -= old.value;
+        if (entry.coins.isEmpty())
+            entries.remove(address);
+    }
+
+    /** Indexes every UTXO in {@code utxoPool} */
+    public void addAll(UTXOPool utxoPool) {
+        for (UTXO utxo : utxoPool.getAllUTXO())
+            add(utxo, utxoPool.getTxOutput(utxo));
+    }
+
+    /** Removes every UTXO from the index */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** @return the UTXOs owned by {@code key}, each mapped to its output */
+    public Map<UTXO, Transaction.Output> getCoins(PublicKey key) {
+        Entry entry = entries.get(Hash256.of(addressOf(key)));
+        if (entry == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(entry.coins);
+    }
+
+    /** @return the total value in base units of the UTXOs owned by {@code key} */
+    public long getBalance(PublicKey key) {
+        Entry entry = entries.get(Hash256.of(addressOf(key)));
+        return entry == null ? 0 : entry.balance;
+    }
+
+    /** @return the number of addresses owning at least one UTXO */
+    public int getAddressCount() {
+        return entries.size();
+    }
+
+    public void blockConnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        for (Transaction tx : block.getTransactions()) {
+            // an output created and spent within the block is in neither pool and is skipped
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = in.getUTXO();
+                Transaction.Output spent = before.getTxOutput(utxo);
+                if (spent != null)
+                    remove(utxo, spent);
+            }
+            addCreated(tx, after);
+        }
+        addCreated(block.getCoinbase(), after);
+    }
+
+    public void blockDisconnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        for (Transaction tx : block.getTransactions())
+            removeCreated(tx, after);
+        removeCreated(block.getCoinbase(), after);
+        // a coinbase paying the same key as an earlier one has the same hash, so an outpoint the
+        // block created may have existed before it; everything still in before is restored
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = in.getUTXO();
+                Transaction.Output spent = before.getTxOutput(utxo);
+                if (spent != null)
+                    add(utxo, spent);
+            }
+            addCreated(tx, before);
+        }
+        addCreated(block.getCoinbase(), before);
+    }
+
+    public void tipReset(Block tip, int height, UTXOPool utxoPool) {
+        clear();
+        addAll(utxoPool);
+    }
+
+    /** Indexes the outputs of {@code tx} that are in {@code utxoPool} */
+    private void addCreated(Transaction tx, UTXOPool utxoPool) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getId(), i);
+            Transaction.Output created = utxoPool.getTxOutput(utxo);
+            if (created != null)
+                add(utxo, created);
+        }
+    }
+
+    private void removeCreated(Transaction tx, UTXOPool after) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getId(), i);
+            Transaction.Output created = after.getTxOutput(utxo);
+            if (created != null)
+                remove(utxo, created);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures an {@link AddressIndex} over a large UTXO set: the time and heap it takes to build, the
+ * time of a balance and a coins query against scanning the pool for the address, and the time to
+ * follow a block connecting and disconnecting. The pool holds {@code utxos} UTXOs spread evenly
+ * over {@code addresses} Ed25519 keys, and the block holds {@code blockTxs} transactions that each
+ * spend one UTXO and create two.
+ * <p>
+ * Usage: {@code java AddressIndexBenchmark [utxos] [addresses] [blockTxs]}; the defaults are
+ * 2000000, 1000 and 2000. Two million UTXOs need a heap of about 1.5 GB.
+ */
+public class AddressIndexBenchmark {
+
+    /** keeps the query results alive */
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int utxos = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int addresses = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int blockTxs = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        KeyPair[] keyPairs = new KeyPair[addresses];
+        Transaction.Output[] outputs = new Transaction.Output[addresses];
+        for (int i = 0; i < addresses; i++) {
+            keyPairs[i] = SignatureScheme.ED25519.generateKeyPair();
+            outputs[i] = new Transaction(Transaction.COIN + i, keyPairs[i].getPublic()).getOutput(0);
+        }
+        Random random = new Random(42);
+        UTXOPool before = new UTXOPool();
+        List<UTXO> existing = new ArrayList<UTXO>(utxos);
+        for (int i = 0; i < utxos; i++) {
+            UTXO utxo = new UTXO(randomId(random), i % 4);
+            existing.add(utxo);
+            before.addUTXO(utxo, outputs[i % addresses]);
+        }
+
+        // a block whose transactions spend UTXOs spread over the set
+        Block block = new Block(new byte[Hash256.LENGTH], keyPairs[0].getPublic());
+        UTXOPool after = new UTXOPool(before);
+        for (int i = 0; i < blockTxs; i++) {
+            UTXO spent = existing.get(i * (utxos / blockTxs));
+            Transaction tx = new Transaction();
+            tx.addInput(spent.getTxHash(), spent.getIndex());
+            tx.addOutput(Transaction.COIN, keyPairs[random.nextInt(addresses)].getPublic());
+            tx.addOutput(Transaction.COIN, keyPairs[random.nextInt(addresses)].getPublic());
+            tx.finalize();
+            block.addTransaction(tx);
+            after.removeUTXO(spent);
+            for (int j = 0; j < tx.numOutputs(); j++)
+                after.addUTXO(new UTXO(tx.getId(), j), tx.getOutput(j));
+        }
+        block.finalize();
+        after.addUTXO(new UTXO(block.getCoinbase().getId(), 0), block.getCoinbase().getOutput(0));
+        existing = null;
+        System.out.printf("%d UTXOs, %d addresses, %d transactions per block%n", utxos, addresses, blockTxs);
+
+        for (int round = 0; round < 3; round++) {
+            long heap = usedHeap();
+            long start = System.nanoTime();
+            AddressIndex index = new AddressIndex(before);
+            long build = System.nanoTime() - start;
+            heap = usedHeap() - heap;
+
+            int queries = 100000;
+            start = System.nanoTime();
+            long total = 0;
+            for (int i = 0; i < queries; i++)
+                total += index.getBalance(keyPairs[i % addresses].getPublic());
+            long balance = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < queries / 100; i++)
+                total += index.getCoins(keyPairs[i % addresses].getPublic()).size();
+            long coins = System.nanoTime() - start;
+
+            // without the index, a balance takes a pass over the whole set
+            byte[] address = AddressIndex.addressOf(keyPairs[round].getPublic());
+            start = System.nanoTime();
+            long scanned = before.stream().filter(e -> Arrays.equals(e.getValue().key.getAddress(), address))
+                    .mapToLong(e -> e.getValue().value).sum();
+            long scan = System.nanoTime() - start;
+            if (scanned != index.getBalance(keyPairs[round].getPublic()))
+                throw new IllegalStateException("balances differ");
+
+            start = System.nanoTime();
+            index.blockConnected(block, 2, before, after);
+            long connect = System.nanoTime() - start;
+            start = System.nanoTime();
+            index.blockDisconnected(block, 2, before, after);
+            long disconnect = System.nanoTime() - start;
+
+            sink = total;
+            System.out.printf("round %d: build %.0f ms, %.0f bytes/UTXO; balance %.0f ns, coins %.1f us, scan %.1f ms;"
+                    + " connect %.2f ms, disconnect %.2f ms%n", round, build / 1e6, (double) heap / utxos,
+                    (double) balance / queries, coins / 1e3 / (queries / 100), scan / 1e6, connect / 1e6,
+                    disconnect / 1e6);
+            index = null;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Hash256 randomId(Random random) {
+        return new Hash256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+    }
+}
@@ -1,23 +1,49 @@
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.List;
 
 public class Block {
 
-    public static final double COINBASE = 25; 
+    public static final long COINBASE = 25 * Transaction.COIN;
 
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    private int height;
+    private long timestamp;
+    private int bits;
+    private long nonce;
+    private BlockHeader header;
+    /** Merkle tree over the hashes of the coinbase and then every transaction, in block order */
+    private MerkleTree merkleTree;
 
-    /** {@code address} is the address to which the coinbase transaction would go */
+    /**
+     * {@code address} is the address to which the coinbase transaction would go. The block's
+     * header does not commit to a height.
+     */
     public Block(byte[] prevHash, PublicKey address) {
+        this(prevHash, address, 0);
+    }
+
+    /**
+     * {@code address} is the address to which the coinbase transaction would go and
+     * {@code height} is the height the block's header commits to
+     */
+    public Block(byte[] prevHash, PublicKey address, int height) {
+        this(prevHash, address, height, System.currentTimeMillis());
+    }
+
+    /** recreates a block received from a peer, which was created at {@code timestamp} */
+    Block(byte[] prevHash, PublicKey address, int height, long timestamp) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        this.height = height;
+        this.timestamp = timestamp;
+        merkleTree = new MerkleTree();
+        merkleTree.add(coinbase.getHash());
     }
 
     public Transaction getCoinbase() {
@@ -32,6 +58,34 @@ public class Block {
         return prevBlockHash;
     }
 
+    /** @return the block's hash as a {@code Hash256}, or null if the block is not finalized */
+    public Hash256 getId() {
+        return header == null ? null : header.getId();
+    }
+
+    /**
+     * sets the number of leading zero bits the block's hash must have; takes effect at the next
+     * {@link #finalize()}
+     */
+    public void setBits(int bits) {
+        this.bits = bits;
+    }
+
+    /** sets the proof of work nonce; takes effect at the next {@link #finalize()} */
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+    }
+
+    /** @return the header computed by {@link #finalize()}, or null if the block is not finalized */
+    public BlockHeader getHeader() {
+        return header;
+    }
+
+    /** @return the Merkle root of the hashes of the coinbase and the transactions added so far */
+    public byte[] getMerkleRoot() {
+        return merkleTree.getRoot();
+    }
+
     public ArrayList<Transaction> getTransactions() {
         return txs;
     }
@@ -40,8 +94,46 @@ public class Block {
         return txs.get(index);
     }
 
+    /**
+     * adds {@code tx}, which must already be finalized, to the block
+     * 
+     * @throws IllegalArgumentException if {@code tx} is not finalized, as its hash is needed for
+     *         the Merkle root
+     */
     public void addTransaction(Transaction tx) {
+        if (tx.getHash() == null)
+            throw new IllegalArgumentException("transaction is not finalized");
         txs.add(tx);
+        merkleTree.add(tx.getHash());
+    }
+
+    /**
+     * @return the Merkle branch proving that {@code tx} is in this block, for
+     *         {@link MerkleTree#verifyBranch} with leaf index {@link #getMerkleIndex}, or null if
+     *         {@code tx} is not in the block
+     */
+    public List<byte[]> getMerkleBranch(Transaction tx) {
+        int index = getMerkleIndex(tx);
+        if (index < 0)
+            return null;
+        return MerkleTree.getBranch(getTransactionHashes(), index);
+    }
+
+    /** @return the leaf index of {@code tx} in the block's Merkle tree, or -1 if it is not there */
+    public int getMerkleIndex(Transaction tx) {
+        if (coinbase == tx)
+            return 0;
+        int index = txs.indexOf(tx);
+        return index < 0 ? -1 : index + 1;
+    }
+
+    /** @return the hashes of the coinbase and then every transaction, in block order */
+    public List<byte[]> getTransactionHashes() {
+        List<byte[]> hashes = new ArrayList<byte[]>(txs.size() + 1);
+        hashes.add(coinbase.getHash());
+        for (Transaction tx : txs)
+            hashes.add(tx.getHash());
+        return hashes;
     }
 
     public byte[] getRawBlock() {
@@ -66,13 +158,12 @@ public class Block {
         return raw;
     }
 
+    /**
+     * computes the block's header from the transactions added so far; the block's hash is the
+     * header's
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        header = new BlockHeader(prevBlockHash, merkleTree.getRoot(), height, timestamp, bits, nonce);
+        hash = header.getHash();
     }
 }
@@ -2,40 +2,107 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class BlockChain { 
     public static final int CUT_OFF_AGE = 10;
+    /**
+     * most headers kept ahead of their blocks; they cost no work when the chain requires none, so
+     * without a limit a peer could grow them without bound
+     */
+    public static final int MAX_HEADERS = 10000;
     Block genesisBlock;
-    Map<byte[], BlockState> blockStatesMap = new HashMap<byte[], BlockState>();
+    RetentionPolicy retentionPolicy;
+    /** number of leading zero bits every block's hash must have */
+    private int requiredWork;
+    /** whether blocks that cannot become the max height block are stored without validation */
+    private boolean lazySideBranchValidation;
+    Map<Hash256, BlockState> blockStatesMap = new HashMap<Hash256, BlockState>();
+    /** headers accepted ahead of their blocks, by hash; all commit to a height */
+    Map<Hash256, BlockHeader> headersMap = new HashMap<Hash256, BlockHeader>();
     TransactionPool transactionPool = new TransactionPool();
+    NodeMetrics metrics = new NodeMetrics();
+    /** number of block states created so far, to order blocks added within the same millisecond */
+    long arrivals = 0;
+    /** the max height block state as of the last notification of the chain listeners */
+    BlockState mainTip;
+    ArrayList<ChainListener> chainListeners = new ArrayList<ChainListener>();
+    AddressIndex addressIndex;
+    TxIndex txIndex;
+    ChainEventStream eventStream;
+    /**
+     * gauge values, published by the thread changing the chain after each change, so that metrics
+     * pulled from another thread never read the chain's maps
+     */
+    private volatile long utxoSetSize;
+    private volatile long blockStates;
+    private volatile long mempoolSize;
+    private volatile long retainedStateBytes;
 
     private class BlockState {
         Block block;
         long date;
+        long arrival;
         int height;
+        /** the UTXO pool after this block, or null while its transactions are not validated */
         UTXOPool utxoPool;
+        /** digest of the UTXO pool's set hash, computed on first use */
+        byte[] commitment;
         private BlockState(Block block, int height, UTXOPool utxoPool) {
             this.block = block;
             this.date = System.currentTimeMillis();
+            this.arrival = arrivals++;
             this.height = height;
             this.utxoPool = utxoPool;
         }
+
+        private byte[] getCommitment() {
+            if (commitment == null && utxoPool != null)
+                commitment = utxoPool.getSetInfo().getSetHash();
+            return commitment;
+        }
     }
     /**
      * create an empty blockchain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, RetentionPolicy.DEFAULT);
+    }
+
+    /**
+     * create an empty blockchain with just a genesis block that retains block states according to
+     * {@code retentionPolicy}. Assume {@code genesisBlock} is a valid block
+     */
+    public BlockChain(Block genesisBlock, RetentionPolicy retentionPolicy) {
         // IMPLEMENT THIS
         this.genesisBlock = genesisBlock;
+        this.retentionPolicy = retentionPolicy;
         UTXOPool utxoPool = new UTXOPool();
+        utxoPool.trackSetHash();
         Transaction tx = genesisBlock.getCoinbase();
-        utxoPool.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
-        this.blockStatesMap.put(genesisBlock.getHash(), new BlockState(genesisBlock, 1, utxoPool));
+        utxoPool.addUTXO(new UTXO(tx.getId(), 0), tx.getOutput(0));
+        this.mainTip = new BlockState(genesisBlock, 1, utxoPool);
+        this.blockStatesMap.put(genesisBlock.getId(), mainTip);
+        publishGauges();
+        metrics.registerGauge("utxo_set_size", () -> utxoSetSize);
+        metrics.registerGauge("block_states", () -> blockStates);
+        metrics.registerGauge("mempool_size", () -> mempoolSize);
+        metrics.registerGauge("retained_state_bytes", () -> retainedStateBytes);
+    }
+
+    /** Publishes the values of the chain's gauges; called on the thread changing the chain */
+    private void publishGauges() {
+        utxoSetSize = getMaxHeightUTXOPool().size();
+        blockStates = blockStatesMap.size();
+        mempoolSize = transactionPool.size();
+        retainedStateBytes = getRetainedStateBytes();
     }
 
     /** Get the maximum height block */
@@ -44,7 +111,7 @@ public class BlockChain {
         BlockState maxBlock = blockStatesMap.values().toArray(new BlockState[0])[0];
         for (BlockState blockState : blockStatesMap.values()) {
             if ((blockState.height > maxBlock.height) || 
-                (blockState.height == maxBlock.height && blockState.date < maxBlock.date))
+                (blockState.height == maxBlock.height && blockState.arrival < maxBlock.arrival))
                 maxBlock = blockState;
         }
         return maxBlock.block;
@@ -53,14 +120,185 @@ public class BlockChain {
     /** Get the blockchain height */
     public int getBlockchainHeight() {
         Block block = getMaxHeightBlock();
-        return blockStatesMap.get(block.getHash()).height;
+        return blockStatesMap.get(block.getId()).height;
     }
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
         Block maxHeightBlock = getMaxHeightBlock();
-        return blockStatesMap.get(maxHeightBlock.getHash()).utxoPool;
+        return blockStatesMap.get(maxHeightBlock.getId()).utxoPool;
+    }
+
+    /**
+     * Get the highest known header, which may belong to a block that has not been added yet. This
+     * is the tip a headers-first sync should fetch blocks towards.
+     */
+    public BlockHeader getBestHeader() {
+        Block maxHeightBlock = getMaxHeightBlock();
+        BlockHeader best = maxHeightBlock.getHeader();
+        int bestHeight = blockStatesMap.get(maxHeightBlock.getId()).height;
+        for (BlockHeader header : headersMap.values()) {
+            if (header.getHeight() > bestHeight) {
+                best = header;
+                bestHeight = header.getHeight();
+            }
+        }
+        return best;
+    }
+
+    /** Get the policy deciding which block states are kept */
+    public RetentionPolicy getRetentionPolicy() {
+        return this.retentionPolicy;
+    }
+
+    /** Get the estimated heap retained by all block states, as estimated by the retention policy */
+    public long getRetainedStateBytes() {
+        long bytes = 0;
+        for (BlockState blockState : blockStatesMap.values())
+            bytes += retentionPolicy.estimateStateBytes(blockState.utxoPool);
+        return bytes;
+    }
+
+    /**
+     * Registers {@code listener} for changes to the main chain from now on. It first receives a
+     * {@code tipReset} for the current max height block.
+     */
+    public void addChainListener(ChainListener listener) {
+        // without listeners the main tip is not tracked
+        if (chainListeners.isEmpty())
+            mainTip = blockStatesMap.get(getMaxHeightBlock().getId());
+        chainListeners.add(listener);
+        listener.tipReset(mainTip.block, mainTip.height, mainTip.utxoPool);
+    }
+
+    public void removeChainListener(ChainListener listener) {
+        chainListeners.remove(listener);
+    }
+
+    /**
+     * Get the index by address of the UTXOs at the max height block, creating it on the first
+     * call. From then on it is updated as blocks are connected to and disconnected from the main
+     * chain.
+     */
+    public AddressIndex getAddressIndex() {
+        if (addressIndex == null) {
+            addressIndex = new AddressIndex();
+            addChainListener(addressIndex);
+        }
+        return addressIndex;
+    }
+
+    /**
+     * Get the stream of changes to the main chain and the transaction pool, creating it with
+     * {@link ChainEventStream#DEFAULT_CAPACITY} on the first call
+     */
+    public ChainEventStream getEventStream() {
+        if (eventStream == null) {
+            eventStream = new ChainEventStream();
+            addChainListener(eventStream);
+            transactionPool.setEventStream(eventStream);
+        }
+        return eventStream;
+    }
+
+    /**
+     * Indexes the transactions of every block connected to the main chain from now on in
+     * {@code txIndex}, which may be persistent
+     */
+    public void setTxIndex(TxIndex txIndex) {
+        if (this.txIndex != null)
+            removeChainListener(this.txIndex);
+        this.txIndex = txIndex;
+        addChainListener(txIndex);
+    }
+
+    /** Get the transaction index set by {@link #setTxIndex}, or null */
+    public TxIndex getTxIndex() {
+        return this.txIndex;
+    }
+
+    /**
+     * Get the confirmed transaction with hash {@code txHash}, if the transaction index locates it
+     * in a block that is still held in memory, and null otherwise
+     */
+    public Transaction getConfirmedTransaction(byte[] txHash) {
+        if (txIndex == null)
+            return null;
+        TxIndex.Location location = txIndex.get(txHash);
+        if (location == null)
+            return null;
+        BlockState blockState = blockStatesMap.get(Hash256.idOf(location.getBlockHash()));
+        if (blockState == null)
+            return null;
+        if (location.getIndex() == 0)
+            return blockState.block.getCoinbase();
+        return blockState.block.getTransaction(location.getIndex() - 1);
+    }
+
+    /**
+     * Get the commitment to the UTXO set after the block with hash {@code blockHash}, or null if
+     * that block is not held in memory or its transactions are not validated yet
+     */
+    public byte[] getUtxoCommitment(byte[] blockHash) {
+        BlockState blockState = blockStatesMap.get(Hash256.idOf(blockHash));
+        return blockState == null ? null : blockState.getCommitment();
+    }
+
+    /**
+     * Check that {@code snapshot} holds exactly the UTXO set after the block with hash
+     * {@code blockHash}, by rehashing the snapshot in parallel and comparing the result with the
+     * block's commitment
+     */
+    public boolean verifyUtxoSnapshot(byte[] blockHash, UTXOPool snapshot) {
+        byte[] commitment = getUtxoCommitment(blockHash);
+        return commitment != null && Arrays.equals(commitment, UTXOSetInfo.scan(snapshot).getSetHash());
+    }
+
+    /**
+     * Get the UTXO set commitments of the blocks on the main chain that are held in memory, from
+     * the lowest to the max height block, for comparison with another node through
+     * {@link UtxoCommitment#findDivergence}
+     */
+    public List<UtxoCommitment> getMainChainCommitments() {
+        ArrayList<UtxoCommitment> commitments = new ArrayList<UtxoCommitment>();
+        BlockState blockState = blockStatesMap.get(getMaxHeightBlock().getId());
+        for (; blockState != null; blockState = getParentState(blockState))
+            commitments.add(0, new UtxoCommitment(blockState.block.getHash(), blockState.height, blockState.getCommitment()));
+        return commitments;
+    }
+
+    /**
+     * Sets the number of leading zero bits the hash of every block and header checked from now on
+     * must have; 0, the default, requires no proof of work
+     */
+    public void setRequiredWork(int bits) {
+        requiredWork = bits;
+    }
+
+    public int getRequiredWork() {
+        return requiredWork;
+    }
+
+    /**
+     * Sets whether blocks that cannot become the max height block are stored after only the
+     * checks of {@link #checkHeader} and the Merkle root. Their transactions are validated, and
+     * their UTXO pools built, only once a block extending their branch would be higher than the
+     * max height block; if one of them then turns out to be invalid, it is dropped together with
+     * its descendants. This keeps fork spam from costing a UTXO pool copy and a validation per
+     * block. Off by default.
+     */
+    public void setLazySideBranchValidation(boolean lazy) {
+        lazySideBranchValidation = lazy;
+    }
+
+    public boolean isLazySideBranchValidation() {
+        return lazySideBranchValidation;
+    }
+
+    /** Get the metrics of this blockchain; they are disabled until {@code setEnabled(true)} */
+    public NodeMetrics getMetrics() {
+        return this.metrics;
     }
 
     /** Get the transaction pool to mine a new block */
@@ -72,7 +310,8 @@ public class BlockChain {
     /**
      * Add {@code block} to the blockchain if it is valid. For validity, all transactions should be
      * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}, where maxHeight is 
-     * the current height of the blockchain.
+     * the current height of the blockchain. CUT_OFF_AGE is the window depth of the retention
+     * policy, which is {@link #CUT_OFF_AGE} unless configured otherwise.
 	 * <p>
 	 * Assume the Genesis block is at height 1.
      * For example, you can try creating a new block over the genesis block (i.e. create a block at 
@@ -83,48 +322,319 @@ public class BlockChain {
      */
     public boolean addBlock(Block block) {
         // IMPLEMENT THIS
+        return submitBlock(block).isValid();
+    }
+
+    /**
+     * Same as {@link #addBlock}, but reports why a block was rejected.
+     * 
+     * @return {@code VALID} if the block was added, otherwise one of the results of
+     *         {@link #checkHeader}, {@code BAD_MERKLE_ROOT} or {@code INVALID_TRANSACTION}. With
+     *         {@link #setLazySideBranchValidation lazy side branch validation}, {@code VALID} for a
+     *         block that cannot become the max height block only means it was stored, and a block
+     *         whose stored ancestor turns out to be invalid is rejected as {@code UNKNOWN_PARENT}.
+     */
+    public ValidationResult submitBlock(Block block) {
+        long start = metrics.start();
+        ValidationResult result = addBlockTimed(block);
+        metrics.stop(NodeMetrics.Phase.ADD_BLOCK, start);
+        publishGauges();
+        if (result.isValid())
+            metrics.increment(NodeMetrics.Counter.BLOCKS_ACCEPTED);
+        else
+            metrics.blockRejected(result.name().toLowerCase());
+        return result;
+    }
+
+    /**
+     * Checks {@code header} against the chain without looking at its block's transactions: its
+     * hash must meet a target at least as hard as {@link #getRequiredWork()}, its parent must be a
+     * known block or header, the height it commits to (if any) must follow the parent's, and it
+     * must satisfy the cut-off age condition of {@link #addBlock}.
+     * 
+     * @return {@code VALID}, or one of {@code GENESIS_CLAIM}, {@code INSUFFICIENT_WORK},
+     *         {@code DUPLICATE}, {@code UNKNOWN_PARENT}, {@code BAD_HEIGHT} or
+     *         {@code CUTOFF_TOO_OLD}
+     */
+    public ValidationResult checkHeader(BlockHeader header) {
         // if block claims to be the genesis block
-        if (block.getPrevBlockHash() == null)
-            return false;
+        if (header.getPrevBlockHash() == null)
+            return ValidationResult.GENESIS_CLAIM;
+        // one comparison against the cached hash, so it runs before any lookup
+        if (header.getBits() < requiredWork || !header.hasValidWork())
+            return ValidationResult.INSUFFICIENT_WORK;
+        if (blockStatesMap.containsKey(header.getId()))
+            return ValidationResult.DUPLICATE;
+        int parentHeight = getKnownHeight(header.getPrevId());
+        if (parentHeight == 0)
+            return ValidationResult.UNKNOWN_PARENT;
+        if (header.getHeight() != 0 && header.getHeight() != parentHeight + 1)
+            return ValidationResult.BAD_HEIGHT;
+        // if the block's height is invalid (cut off age condition)
+        if (parentHeight + 1 <= (getBlockchainHeight() - retentionPolicy.getWindowDepth()))
+            return ValidationResult.CUTOFF_TOO_OLD;
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Accepts {@code header} ahead of its block if it passes {@link #checkHeader} and commits to a
+     * height, so that later headers can build on it before any of their blocks arrive. At most
+     * {@link #MAX_HEADERS} headers are kept; a header is dropped once its block is added or it
+     * falls out of the window.
+     * 
+     * @return {@code VALID} if the header was accepted, otherwise the reason it was rejected
+     */
+    public ValidationResult addHeader(BlockHeader header) {
+        if (header.getHeight() == 0)
+            return ValidationResult.BAD_HEIGHT;
+        Hash256 hash = header.getId();
+        if (headersMap.containsKey(hash))
+            return ValidationResult.DUPLICATE;
+        ValidationResult result = checkHeader(header);
+        if (!result.isValid())
+            return result;
+        if (headersMap.size() >= MAX_HEADERS)
+            return ValidationResult.TOO_MANY_HEADERS;
+        headersMap.put(hash, header);
+        return result;
+    }
+
+    /** @return the height of the block or header with hash {@code hash}, or 0 if it is unknown */
+    private int getKnownHeight(Hash256 hash) {
+        BlockState state = blockStatesMap.get(hash);
+        if (state != null)
+            return state.height;
+        BlockHeader header = headersMap.get(hash);
+        return header == null ? 0 : header.getHeight();
+    }
+
+    private ValidationResult addBlockTimed(Block block) {
+        BlockHeader header = block.getHeader();
+        // if block is not finalized, its hash commits to nothing
+        if (header == null)
+            return ValidationResult.BAD_MERKLE_ROOT;
+        ValidationResult headerResult = checkHeader(header);
+        if (!headerResult.isValid())
+            return headerResult;
         int maxHeight = getBlockchainHeight();
         // get the corresponding block state to the parent block
-        BlockState parentState = blockStatesMap.get(block.getPrevBlockHash());
+        Hash256 blockHash = block.getId();
+        BlockState parentState = blockStatesMap.get(header.getPrevId());
         if (parentState == null)
-            return false;
-        // if the block's height is invalid (cut off age condition)
-        if (parentState.height + 1 <= (maxHeight - CUT_OFF_AGE)) 
-            return false;
-        TxHandler txHandler = new TxHandler(parentState.utxoPool);
-        // get all the block's transactions
-        Transaction[] blockTransactions = block.getTransactions().toArray(new Transaction[0]);
-        // get all the valid transactions within this block
-        Transaction[] validTransactions = txHandler.handleTxs(blockTransactions);
-        // if any transaction is invalid then return false
-        if (!compareTransactions(blockTransactions, validTransactions))
-            return false;
+            return ValidationResult.UNKNOWN_PARENT;
+        // the transactions must be the ones the header commits to, and the only list that does
+        MerkleTree merkleTree = new MerkleTree();
+        for (byte[] txHash : block.getTransactionHashes())
+            merkleTree.add(txHash);
+        if (merkleTree.isMutated() || !Arrays.equals(merkleTree.getRoot(), header.getMerkleRoot()))
+            return ValidationResult.BAD_MERKLE_ROOT;
+        int height = parentState.height + 1;
+        if (lazySideBranchValidation && height <= maxHeight) {
+            // the block cannot become the max height block, as ties go to the earlier arrival
+            blockStatesMap.put(blockHash, new BlockState(block, height, null));
+            headersMap.remove(blockHash);
+            metrics.increment(NodeMetrics.Counter.BLOCKS_DEFERRED);
+        } else {
+            if (parentState.utxoPool == null) {
+                ValidationResult branchResult = validateDeferred(parentState);
+                if (!branchResult.isValid())
+                    return branchResult;
+            }
+            UTXOPool utxoPool = connect(block, parentState.utxoPool);
+            if (utxoPool == null)
+                return ValidationResult.INVALID_TRANSACTION;
+            blockStatesMap.put(blockHash, new BlockState(block, height, utxoPool));
+            headersMap.remove(blockHash);
+            if (!chainListeners.isEmpty())
+                moveMainTip();
+        }
+        // remove all the old blocks
+        long pruneStart = metrics.start();
+        int cutOffAge = retentionPolicy.getWindowDepth();
+        blockStatesMap.values().removeIf(value -> value.height <= (maxHeight - cutOffAge));
+        headersMap.values().removeIf(value -> value.getHeight() <= (maxHeight - cutOffAge));
+        evictSideBranches();
+        metrics.stop(NodeMetrics.Phase.PRUNE, pruneStart);
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Validates the transactions of {@code block} on top of {@code parentPool} and removes them
+     * from the transaction pool
+     *
+     * @return the UTXO pool after the block, or null if any of its transactions is invalid
+     */
+    private UTXOPool connect(Block block, UTXOPool parentPool) {
+        // the pools of block states commit to their UTXO sets, so they keep the set hash
+        TxHandler txHandler = new TxHandler(parentPool, metrics, true);
+        // if any transaction is invalid (or duplicated) then the block is
+        if (!txHandler.applyBlockTxs(block.getTransactions().toArray(new Transaction[0]),
+                tx -> transactionPool.isVerified(tx.getId())))
+            return null;
         // add the coinbase to the UTXO Pool
         Transaction coinBaseTx = block.getCoinbase();
         UTXOPool utxoPool = txHandler.getUTXOPool();
-        utxoPool.addUTXO(new UTXO(coinBaseTx.getHash(), 0), coinBaseTx.getOutput(0));
-        blockStatesMap.put(block.getHash(), new BlockState(block, parentState.height + 1, utxoPool));
+        utxoPool.addUTXO(new UTXO(coinBaseTx.getId(), 0), coinBaseTx.getOutput(0));
         // remove the block's transactions from the pool
-        for (Transaction tx : block.getTransactions()) 
-            transactionPool.removeTransaction(tx.getHash());
-        // remove all the old blocks
-        blockStatesMap.values().removeIf(value -> value.height <= (maxHeight - CUT_OFF_AGE));
-        return true;
+        for (Transaction tx : block.getTransactions())
+            transactionPool.removeTransaction(tx.getId());
+        return utxoPool;
+    }
+
+    /**
+     * Validates the stored blocks from the last validated ancestor of {@code blockState} up to
+     * {@code blockState}, lowest first. The first invalid block is removed with all its
+     * descendants.
+     *
+     * @return {@code VALID} if all of them are valid, or {@code UNKNOWN_PARENT} if one is not,
+     *         since it is dropped, or if the branch's validated ancestor was pruned. The block
+     *         being added on top of the branch was not checked itself, so it gets no permanent
+     *         result that a {@code BlockHandler} would remember.
+     */
+    private ValidationResult validateDeferred(BlockState blockState) {
+        ArrayList<BlockState> branch = new ArrayList<BlockState>();
+        for (; blockState.utxoPool == null; blockState = getParentState(blockState)) {
+            branch.add(blockState);
+            if (getParentState(blockState) == null)
+                return ValidationResult.UNKNOWN_PARENT;
+        }
+        for (int i = branch.size() - 1; i >= 0; i--) {
+            BlockState state = branch.get(i);
+            state.utxoPool = connect(state.block, getParentState(state).utxoPool);
+            if (state.utxoPool == null) {
+                removeWithDescendants(state);
+                return ValidationResult.UNKNOWN_PARENT;
+            }
+        }
+        return ValidationResult.VALID;
+    }
+
+    /** Removes {@code blockState} and every stored block that descends from it */
+    private void removeWithDescendants(BlockState blockState) {
+        Set<Hash256> removed = new HashSet<Hash256>();
+        removed.add(blockState.block.getId());
+        ArrayList<BlockState> states = new ArrayList<BlockState>(blockStatesMap.values());
+        // parents come before their children
+        states.sort((a, b) -> Integer.compare(a.height, b.height));
+        for (BlockState state : states)
+            if (state.height > blockState.height && removed.contains(state.block.getHeader().getPrevId()))
+                removed.add(state.block.getId());
+        blockStatesMap.keySet().removeAll(removed);
+    }
+
+    /**
+     * Evicts side branch tips, least likely to win first, until the side branch limit and heap
+     * budget of the retention policy are met or only the main chain is left
+     */
+    private void evictSideBranches() {
+        while (true) {
+            Set<Hash256> parents = new HashSet<Hash256>();
+            for (BlockState blockState : blockStatesMap.values())
+                if (blockState.block.getPrevBlockHash() != null)
+                    parents.add(blockState.block.getHeader().getPrevId());
+            Block maxHeightBlock = getMaxHeightBlock();
+            BlockState victim = null;
+            int sideBranches = 0;
+            long bytes = 0;
+            for (Map.Entry<Hash256, BlockState> entry : blockStatesMap.entrySet()) {
+                BlockState blockState = entry.getValue();
+                bytes += retentionPolicy.estimateStateBytes(blockState.utxoPool);
+                // only tips of side branches can be evicted
+                if (parents.contains(entry.getKey()) || blockState.block == maxHeightBlock)
+                    continue;
+                sideBranches++;
+                if (victim == null || blockState.height < victim.height
+                        || (blockState.height == victim.height && blockState.arrival > victim.arrival))
+                    victim = blockState;
+            }
+            if (victim == null || (sideBranches <= retentionPolicy.getMaxSideBranches()
+                    && bytes <= retentionPolicy.getHeapBudgetBytes()))
+                return;
+            blockStatesMap.remove(victim.block.getId());
+        }
+    }
+
+    /**
+     * Reports to the chain listeners the blocks disconnected from and connected to the main chain
+     * since the last call, walking from the old and the new max height block back to their common
+     * ancestor
+     */
+    private void moveMainTip() {
+        BlockState newTip = blockStatesMap.get(getMaxHeightBlock().getId());
+        if (newTip == mainTip)
+            return;
+        ArrayList<BlockState> disconnected = new ArrayList<BlockState>();
+        ArrayList<BlockState> connected = new ArrayList<BlockState>();
+        BlockState oldBranch = mainTip;
+        BlockState newBranch = newTip;
+        while (oldBranch != newBranch) {
+            if (oldBranch.height >= newBranch.height) {
+                disconnected.add(oldBranch);
+                oldBranch = getParentState(oldBranch);
+            } else {
+                connected.add(newBranch);
+                newBranch = getParentState(newBranch);
+            }
+            if (oldBranch == null || newBranch == null) {
+                mainTip = newTip;
+                for (ChainListener listener : chainListeners)
+                    listener.tipReset(newTip.block, newTip.height, newTip.utxoPool);
+                return;
+            }
+        }
+        for (BlockState blockState : disconnected) {
+            BlockState parent = getParentState(blockState);
+            for (ChainListener listener : chainListeners)
+                listener.blockDisconnected(blockState.block, blockState.height, parent.utxoPool, blockState.utxoPool);
+        }
+        for (int i = connected.size() - 1; i >= 0; i--) {
+            BlockState blockState = connected.get(i);
+            BlockState parent = getParentState(blockState);
+            for (ChainListener listener : chainListeners)
+                listener.blockConnected(blockState.block, blockState.height, parent.utxoPool, blockState.utxoPool);
+        }
+        mainTip = newTip;
+        for (ChainListener listener : chainListeners)
+            listener.tipChanged(newTip.block, newTip.height, newTip.utxoPool);
+    }
+
+    private BlockState getParentState(BlockState blockState) {
+        byte[] prevBlockHash = blockState.block.getPrevBlockHash();
+        if (prevBlockHash == null)
+            return null;
+        return blockStatesMap.get(Hash256.idOf(prevBlockHash));
     }
 
     /** Add a transaction to the transaction pool */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
         this.transactionPool.addTransaction(tx);
+        mempoolSize = transactionPool.size();
     }
 
+    /**
+     * Add a transaction whose signatures were verified to the transaction pool; a block including
+     * it connects without verifying them again
+     */
+    public void addTransaction(Transaction tx, boolean signaturesVerified) {
+        this.transactionPool.addTransaction(tx, signaturesVerified);
+        mempoolSize = transactionPool.size();
+    }
+
+    /**
+     * @return true if {@code txs1} and {@code txs2} hold the same transactions, each exactly once.
+     *         Transactions are compared by hash, so this costs O(n) hash lookups.
+     */
     public static boolean compareTransactions(Transaction[] txs1, Transaction[] txs2) {
+        if (txs1.length != txs2.length)
+            return false;
         HashSet<Transaction> set1 = new HashSet<Transaction>(Arrays.asList(txs1));
-        HashSet<Transaction> set2 = new HashSet<Transaction>(Arrays.asList(txs2));
-        return set1.equals(set2);
+        if (set1.size() != txs1.length)
+            return false;
+        for (Transaction tx : txs2)
+            if (!set1.remove(tx))
+                return false;
+        return true;
     }
 }
 
@@ -1,14 +1,35 @@
-
 import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class BlockHandler {
+    /** maximum number of known-bad blocks and transactions remembered by each negative cache */
+    public static final int REJECT_CACHE_SIZE = 10000;
+
     private BlockChain blockChain;
+    private Map<Hash256, ValidationResult> rejectedBlocks = newRejectCache();
+    private Map<Hash256, ValidationResult> rejectedTxs = newRejectCache();
+    private WorkloadTrace.Recorder recorder;
+    /** mines the blocks created by {@link #createBlock(PublicKey)}, created on first use */
+    private volatile Miner miner;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
     }
 
+    public BlockChain getBlockChain() {
+        return blockChain;
+    }
+
+    /**
+     * Records every block, header and transaction processed from now on, and every block created,
+     * with {@code recorder}; null stops recording
+     */
+    public void setRecorder(WorkloadTrace.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
     /**
      * add {@code block} to the block chain if it is valid.
      * 
@@ -17,31 +38,183 @@ public class BlockHandler {
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        return submitBlock(block).isValid();
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * add {@code block} to the block chain if it is valid. Blocks that were rejected permanently
+     * before are dropped without being validated again.
+     * 
+     * @return {@code VALID} if the block has been added, otherwise the reason it was rejected
+     */
+    public ValidationResult submitBlock(Block block) {
+        // a block that is not finalized cannot be serialized, and is rejected anyway
+        if (recorder == null || block.getHash() == null)
+            return handleBlock(block);
+        long start = recorder.start();
+        ValidationResult result = handleBlock(block);
+        recorder.recordBlock(start, block, result);
+        return result;
+    }
+
+    private ValidationResult handleBlock(Block block) {
+        if (block.getHash() == null)
+            return blockChain.submitBlock(block);
+        Hash256 hash = block.getId();
+        ValidationResult known = rejectedBlocks.get(hash);
+        if (known != null)
+            return known;
+        ValidationResult result = blockChain.submitBlock(block);
+        if (result.isPermanent())
+            rejectedBlocks.put(hash, result);
+        return result;
+    }
+
+    /**
+     * check {@code header} ahead of its block and remember it so that the headers of a branch
+     * can be checked before any of its blocks are fetched
+     * 
+     * @return {@code VALID} if the header has been accepted, otherwise the reason it was rejected
+     */
+    public ValidationResult processHeader(BlockHeader header) {
+        if (recorder == null)
+            return handleHeader(header);
+        long start = recorder.start();
+        ValidationResult result = handleHeader(header);
+        recorder.recordHeader(start, header, result);
+        return result;
+    }
+
+    private ValidationResult handleHeader(BlockHeader header) {
+        Hash256 hash = header.getId();
+        ValidationResult known = rejectedBlocks.get(hash);
+        if (known != null)
+            return known;
+        ValidationResult result = blockChain.addHeader(header);
+        if (result.isPermanent())
+            rejectedBlocks.put(hash, result);
+        return result;
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, mining it with the handler's
+     * {@link #getMiner() miner} if the chain requires proof of work, until it is found, the tip
+     * changes or {@link #cancelMining()} is called
+     */
     public Block createBlock(PublicKey myAddress) {
+        if (blockChain.getRequiredWork() == 0)
+            return createBlock(myAddress, null);
+        return createBlock(myAddress, getMiner());
+    }
+
+    /**
+     * @return the miner of this handler, which uses every available processor and lives as long as
+     *         the handler; its threads are daemon threads
+     */
+    public synchronized Miner getMiner() {
+        if (miner == null)
+            miner = new Miner(blockChain);
+        return miner;
+    }
+
+    /**
+     * Stops the search of a {@link #createBlock(PublicKey)} in progress on another thread, which
+     * then returns null. Thread-safe; call it when a block arrives for a new tip, and submit the
+     * block once the mining thread is done with the chain.
+     */
+    public void cancelMining() {
+        Miner current = miner;
+        if (current != null)
+            current.cancel();
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, using {@code miner} to find its
+     * proof of work if the chain requires one
+     * 
+     * @return the block if it was mined and added, or null if mining was cancelled, the tip changed
+     *         after the block was assembled, or the block was rejected
+     */
+    public Block createBlock(PublicKey myAddress, Miner miner) {
+        // taken before the tip is read, so that any later change cancels the search
+        long generation = miner == null ? 0 : miner.getGeneration();
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
+        Block current = new Block(parentHash, myAddress, blockChain.getBlockchainHeight() + 1);
         UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
+        TxHandler handler = new TxHandler(uPool, blockChain.getMetrics());
         Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
         Transaction[] rTxs = handler.handleTxs(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
+        current.setBits(blockChain.getRequiredWork());
         current.finalize();
-        if (blockChain.addBlock(current))
-            return current;
-        else
+        if (blockChain.getRequiredWork() > 0) {
+            try {
+                if (!miner.mine(current, generation).found)
+                    return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        long start = recorder == null ? 0 : recorder.start();
+        if (!blockChain.addBlock(current))
             return null;
+        // a replay adds the block as if it came from a peer
+        if (recorder != null)
+            recorder.recordBlock(start, current, ValidationResult.VALID);
+        return current;
     }
 
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+        submitTx(tx);
+    }
+
+    /**
+     * process a {@code Transaction}, adding it to the transaction pool unless it can never become
+     * valid on top of the max height block. Inputs that are not in the UTXO pool yet do not count
+     * against it, since they may be created by transactions that are still unconfirmed.
+     * 
+     * @return {@code VALID} or {@code MISSING_INPUT} if the transaction was added to the pool,
+     *         otherwise the reason it was dropped
+     */
+    public ValidationResult submitTx(Transaction tx) {
+        // a transaction that is not finalized has no hash to cache or pool it under
+        if (tx.getId() == null)
+            return ValidationResult.INVALID_TRANSACTION;
+        if (recorder == null)
+            return handleTx(tx);
+        long start = recorder.start();
+        ValidationResult result = handleTx(tx);
+        recorder.recordTx(start, tx, result);
+        return result;
+    }
+
+    private ValidationResult handleTx(Transaction tx) {
+        Hash256 hash = tx.getId();
+        ValidationResult known = rejectedTxs.get(hash);
+        if (known != null)
+            return known;
+        ValidationResult result = TxHandler.validateTx(blockChain.getMaxHeightUTXOPool(), tx,
+                blockChain.getMetrics());
+        if (result.isPermanent()) {
+            rejectedTxs.put(hash, result);
+            return result;
+        }
+        // a valid transaction passed every check, including its signatures
+        blockChain.addTransaction(tx, result.isValid());
+        return result;
+    }
+
+    private static Map<Hash256, ValidationResult> newRejectCache() {
+        return new LinkedHashMap<Hash256, ValidationResult>() {
+            protected boolean removeEldestEntry(Map.Entry<Hash256, ValidationResult> eldest) {
+                return size() > REJECT_CACHE_SIZE;
+            }
+        };
     }
 }
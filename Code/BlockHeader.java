@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The part of a {@code Block} that its hash commits to: the previous block's hash, the Merkle root
+ * of the block's transaction hashes, the block's height, its timestamp, and its proof of work. The
+ * proof of work is a target, the number of leading zero bits the hash must have, and a nonce
+ * chosen to meet it. A header can be checked against the chain without the block's transactions.
+ * <p>
+ * The nonce comes last in {@link #getRawHeader()}, so a miner can hash the rest once and reuse
+ * that midstate for every nonce it tries.
+ */
+public class BlockHeader {
+
+    private final byte[] prevBlockHash;
+    private final byte[] merkleRoot;
+    private final int height;
+    private final long timestamp;
+    private final int bits;
+    private final long nonce;
+    private byte[] hash;
+    private Hash256 id;
+
+    /**
+     * {@code height} 0 means the header does not commit to a height; the header has no proof of
+     * work
+     */
+    public BlockHeader(byte[] prevBlockHash, byte[] merkleRoot, int height, long timestamp) {
+        this(prevBlockHash, merkleRoot, height, timestamp, 0, 0);
+    }
+
+    /** {@code bits} is the number of leading zero bits the header's hash must have */
+    public BlockHeader(byte[] prevBlockHash, byte[] merkleRoot, int height, long timestamp, int bits, long nonce) {
+        this.prevBlockHash = prevBlockHash;
+        this.merkleRoot = merkleRoot;
+        this.height = height;
+        this.timestamp = timestamp;
+        this.bits = bits;
+        this.nonce = nonce;
+    }
+
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** @return the number of leading zero bits the header's hash must have */
+    public int getBits() {
+        return bits;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public byte[] getRawHeader() {
+        byte[] prefix = getRawPrefix();
+        return ByteBuffer.allocate(prefix.length + Long.SIZE / 8).put(prefix).putLong(nonce).array();
+    }
+
+    /** @return {@link #getRawHeader()} without the nonce at its end */
+    public byte[] getRawPrefix() {
+        int prevLength = prevBlockHash == null ? 0 : prevBlockHash.length;
+        ByteBuffer b = ByteBuffer.allocate(prevLength + merkleRoot.length + Integer.SIZE / 8 + Long.SIZE / 8
+                + Integer.SIZE / 8);
+        if (prevBlockHash != null)
+            b.put(prevBlockHash);
+        b.put(merkleRoot);
+        b.putInt(height);
+        b.putLong(timestamp);
+        b.putInt(bits);
+        return b.array();
+    }
+
+    /** @return true if the header's hash has the number of leading zero bits it commits to */
+    public boolean hasValidWork() {
+        return leadingZeroBits(getHash()) >= bits;
+    }
+
+    /** @return the number of leading zero bits of {@code hash} */
+    public static int leadingZeroBits(byte[] hash) {
+        for (int i = 0; i < hash.length; i++)
+            if (hash[i] != 0)
+                return i * 8 + Integer.numberOfLeadingZeros(hash[i] & 0xFF) - 24;
+        return hash.length * 8;
+    }
+
+    /** @return the SHA-256 hash of {@link #getRawHeader()}, which is also the block's hash */
+    public byte[] getHash() {
+        if (hash == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(getRawHeader());
+                hash = md.digest();
+            } catch (NoSuchAlgorithmException x) {
+                x.printStackTrace(System.err);
+            }
+        }
+        return hash;
+    }
+
+    /** @return {@link #getHash()} as a {@code Hash256} */
+    public Hash256 getId() {
+        if (id == null)
+            id = Hash256.of(getHash());
+        return id;
+    }
+
+    /** @return {@link #getPrevBlockHash()} as a {@code Hash256}, or null if it is not 32 bytes */
+    public Hash256 getPrevId() {
+        return Hash256.idOf(prevBlockHash);
+    }
+}
@@ -7,9 +7,7 @@ public class ByteArrayWrapper {
     private byte[] contents;
 
     public ByteArrayWrapper(byte[] b) {
-        contents = new byte[b.length];
-        for (int i = 0; i < contents.length; i++)
-            contents[i] = b[i];
+        contents = Arrays.copyOf(b, b.length);
     }
 
     public boolean equals(Object other) {
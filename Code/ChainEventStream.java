@@ -0,0 +1,263 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A bounded stream of the changes to a {@code BlockChain}'s main chain and transaction pool, for
+ * services that follow the node from other threads. Events are written into a ring of
+ * preallocated slots by the thread that adds blocks and transactions, which is the only producer,
+ * and each {@link Subscriber} reads them at its own sequence number.
+ * <p>
+ * A subscriber that falls a whole ring behind is handled according to how it subscribed: a
+ * blocking subscriber holds the producer back until it catches up, and any other subscriber is
+ * dropped and has to resubscribe and resynchronize from the chain. Publishing allocates nothing,
+ * so without blocking subscribers it costs a few memory writes per event.
+ */
+public class ChainEventStream implements ChainListener {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public enum Type {
+        /** a block became part of the main chain */
+        BLOCK_CONNECTED,
+        /** a block was removed from the main chain by a reorganization */
+        BLOCK_DISCONNECTED,
+        /** the max height block changed; follows the blocks connected and disconnected first */
+        TIP_CHANGED,
+        /**
+         * the max height block changed along a path that was pruned, so no blocks were reported on
+         * the way; a consumer must discard what it derived from earlier events and rebuild it from
+         * the chain at the event's block
+         */
+        TIP_RESET,
+        /** a transaction was added to the transaction pool */
+        TX_ADMITTED,
+        /** a transaction left the transaction pool, most often because a block included it */
+        TX_EVICTED
+    }
+
+    /**
+     * An event, as held in a slot of the ring and as copied out to a subscriber. Block events
+     * carry the block and its height, and transaction events the transaction.
+     */
+    public static class Event {
+        /** sequence number of the event in the slot, or -1 while the slot is being written */
+        volatile long sequence = -1;
+        Type type;
+        Block block;
+        int height;
+        Transaction tx;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Transaction getTransaction() {
+            return tx;
+        }
+    }
+
+    private final Event[] slots;
+    private final int mask;
+    /** sequence number of the next event to publish; written by the producer only */
+    private long next;
+    /** sequence number of the last published event */
+    private volatile long cursor = -1;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /** Creates a stream holding the last {@link #DEFAULT_CAPACITY} events */
+    public ChainEventStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a stream holding the last {@code capacity} events, rounded up to a power of two */
+    public ChainEventStream(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        slots = new Event[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Event();
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /** @return the sequence number of the last published event, or -1 */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Subscribes to the events published from now on. A {@code blocking} subscriber is never
+     * dropped, but until it is closed it can stall the producer, and with it the chain.
+     */
+    public Subscriber subscribe(boolean blocking) {
+        Subscriber subscriber = new Subscriber(blocking, cursor + 1);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    @Override
+    public void blockConnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        publish(Type.BLOCK_CONNECTED, block, height, null);
+    }
+
+    @Override
+    public void blockDisconnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        publish(Type.BLOCK_DISCONNECTED, block, height, null);
+    }
+
+    @Override
+    public void tipChanged(Block tip, int height, UTXOPool utxoPool) {
+        publish(Type.TIP_CHANGED, tip, height, null);
+    }
+
+    @Override
+    public void tipReset(Block tip, int height, UTXOPool utxoPool) {
+        publish(Type.TIP_RESET, tip, height, null);
+    }
+
+    void txAdmitted(Transaction tx) {
+        publish(Type.TX_ADMITTED, null, 0, tx);
+    }
+
+    void txEvicted(Transaction tx) {
+        publish(Type.TX_EVICTED, null, 0, tx);
+    }
+
+    /** Publishes an event; must only be called from the producer thread */
+    void publish(Type type, Block block, int height, Transaction tx) {
+        long sequence = next;
+        long wrap = sequence - slots.length;
+        for (Subscriber subscriber : subscribers) {
+            // the slot to reuse holds event wrap, which a blocking subscriber may not have read yet
+            while (subscriber.blocking && subscriber.sequence <= wrap && !subscriber.closed)
+                LockSupport.parkNanos(1000);
+        }
+        Event slot = slots[(int) (sequence & mask)];
+        slot.sequence = -1;
+        VarHandle.storeStoreFence();
+        slot.type = type;
+        slot.block = block;
+        slot.height = height;
+        slot.tx = tx;
+        slot.sequence = sequence;
+        next = sequence + 1;
+        cursor = sequence;
+    }
+
+    /** A reader of the stream, meant to be used by one thread */
+    public class Subscriber implements AutoCloseable {
+        private final boolean blocking;
+        /** sequence number of the next event to read */
+        private volatile long sequence;
+        private volatile boolean closed;
+        private boolean dropped;
+        private final Event event = new Event();
+
+        private Subscriber(boolean blocking, long sequence) {
+            this.blocking = blocking;
+            this.sequence = sequence;
+        }
+
+        public boolean isBlocking() {
+            return blocking;
+        }
+
+        /** @return the sequence number of the next event to read */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** @return the number of events published and not read yet */
+        public long getLag() {
+            return cursor + 1 - sequence;
+        }
+
+        /**
+         * @return true if the subscriber fell a whole ring behind and was dropped; it gets no more
+         *         events
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * Passes up to {@code max} of the events published and not read yet to {@code handler},
+         * in order. The event passed is reused for the next one, so the handler must copy out what
+         * it keeps.
+         *
+         * @return the number of events passed, which is 0 once the subscriber is dropped or closed
+         */
+        public int poll(Consumer<Event> handler, int max) {
+            int count = 0;
+            long published = cursor;
+            while (count < max && sequence <= published && !dropped && !closed) {
+                long s = sequence;
+                Event slot = slots[(int) (s & mask)];
+                if (slot.sequence != s) {
+                    drop();
+                    break;
+                }
+                event.type = slot.type;
+                event.block = slot.block;
+                event.height = slot.height;
+                event.tx = slot.tx;
+                VarHandle.loadLoadFence();
+                // the producer marks a slot before reusing it, so an unchanged sequence means the
+                // copy is whole
+                if (slot.sequence != s) {
+                    drop();
+                    break;
+                }
+                event.sequence = s;
+                sequence = s + 1;
+                handler.accept(event);
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Same as {@link #poll(Consumer, int)}, but first waits up to {@code timeout} for an event
+         * to be published
+         */
+        public int poll(Consumer<Event> handler, int max, long timeout, TimeUnit unit) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (sequence > cursor && !closed && System.nanoTime() - deadline < 0)
+                LockSupport.parkNanos(50000);
+            return poll(handler, max);
+        }
+
+        private void drop() {
+            dropped = true;
+            close();
+        }
+
+        /** Stops reading the stream; a blocking subscriber no longer holds the producer back */
+        @Override
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+        }
+    }
+}
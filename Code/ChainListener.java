@@ -0,0 +1,36 @@
+/**
+ * Receives the changes to a {@code BlockChain}'s main chain. Every block added to or removed from
+ * the main chain is reported together with the UTXO pools before and after it, so that indexes
+ * over the main chain can be maintained incrementally.
+ */
+public interface ChainListener {
+
+    /**
+     * {@code block} at {@code height} became part of the main chain, turning the UTXO pool
+     * {@code before} (its parent's) into {@code after}
+     */
+    default void blockConnected(Block block, int height, UTXOPool before, UTXOPool after) {
+    }
+
+    /**
+     * {@code block} at {@code height} was removed from the main chain by a reorganization, turning
+     * the UTXO pool {@code after} back into {@code before}
+     */
+    default void blockDisconnected(Block block, int height, UTXOPool before, UTXOPool after) {
+    }
+
+    /**
+     * the max height block is now {@code tip}, after the blocks connected and disconnected on the
+     * way to it were reported
+     */
+    default void tipChanged(Block tip, int height, UTXOPool utxoPool) {
+    }
+
+    /**
+     * the main chain moved to {@code tip} along a path that can no longer be walked because blocks
+     * on it were pruned, so any state derived from earlier events must be rebuilt from
+     * {@code utxoPool}
+     */
+    default void tipReset(Block tip, int height, UTXOPool utxoPool) {
+    }
+}
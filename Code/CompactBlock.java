@@ -0,0 +1,233 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * A block as relayed to a peer that most likely holds most of its transactions in its transaction
+ * pool already: the header, the coinbase key, and per transaction either a 6-byte short id or, for
+ * the ones the sender expects the peer to lack, the transaction itself.
+ * <p>
+ * A short id is the low 48 bits of SipHash-2-4 of the transaction hash, keyed with the SHA-256 of
+ * the block hash and a salt chosen by the sender, so that transactions whose short ids collide
+ * cannot be prepared ahead of a block. A collision that still occurs makes the rebuilt block miss
+ * its header's hash, and the full block has to be fetched instead.
+ */
+public class CompactBlock {
+
+    public static final int SHORT_ID_BYTES = 6;
+    private static final long SHORT_ID_MASK = (1L << (8 * SHORT_ID_BYTES)) - 1;
+
+    private final BlockHeader header;
+    private final PublicKey coinbaseKey;
+    private final long salt;
+    private final long k0;
+    private final long k1;
+    /** the short id of every transaction, prefilled ones included */
+    private final long[] shortIds;
+    /** the prefilled transactions at their positions, null elsewhere */
+    private final Transaction[] prefilled;
+
+    /**
+     * Creates the compact form of {@code block}, which must be finalized, sending in full the
+     * transactions for which {@code prefill} holds
+     */
+    public CompactBlock(Block block, long salt, Predicate<Transaction> prefill) {
+        this.header = block.getHeader();
+        if (header == null)
+            throw new IllegalArgumentException("block is not finalized");
+        this.coinbaseKey = block.getCoinbase().getOutput(0).key.getKey();
+        this.salt = salt;
+        long[] keys = keysOf(header.getHash(), salt);
+        k0 = keys[0];
+        k1 = keys[1];
+        int n = block.getTransactions().size();
+        shortIds = new long[n];
+        prefilled = new Transaction[n];
+        for (int i = 0; i < n; i++) {
+            Transaction tx = block.getTransaction(i);
+            shortIds[i] = shortId(tx.getId());
+            if (prefill.test(tx))
+                prefilled[i] = tx;
+        }
+    }
+
+    /**
+     * Creates a compact block as read from a peer; {@code prefilled} holds the prefilled
+     * transactions at their positions and null elsewhere, where {@code shortIds} holds the short
+     * ids
+     */
+    CompactBlock(BlockHeader header, PublicKey coinbaseKey, long salt, long[] shortIds, Transaction[] prefilled) {
+        this.header = header;
+        this.coinbaseKey = coinbaseKey;
+        this.salt = salt;
+        long[] keys = keysOf(header.getHash(), salt);
+        k0 = keys[0];
+        k1 = keys[1];
+        this.shortIds = shortIds;
+        this.prefilled = prefilled;
+        for (int i = 0; i < prefilled.length; i++)
+            if (prefilled[i] != null)
+                shortIds[i] = shortId(prefilled[i].getId());
+    }
+
+    public BlockHeader getHeader() {
+        return header;
+    }
+
+    public PublicKey getCoinbaseKey() {
+        return coinbaseKey;
+    }
+
+    public long getSalt() {
+        return salt;
+    }
+
+    /** @return the number of transactions in the block, not counting the coinbase */
+    public int getTransactionCount() {
+        return shortIds.length;
+    }
+
+    /** @return the short id of the transaction at {@code index} */
+    public long getShortId(int index) {
+        return shortIds[index];
+    }
+
+    /** @return the transaction at {@code index} if it was prefilled, and null otherwise */
+    public Transaction getPrefilled(int index) {
+        return prefilled[index];
+    }
+
+    /** @return the short id of the transaction with hash {@code txId} in this block's key */
+    public long shortId(Hash256 txId) {
+        return sipHash(k0, k1, txId) & SHORT_ID_MASK;
+    }
+
+    /**
+     * Starts rebuilding the block from the prefilled transactions and those of {@code txPool}.
+     * Positions whose short id no pool transaction has, or more than one has, are left missing.
+     */
+    public Reconstruction reconstruct(TransactionPool txPool) {
+        HashMap<Long, Transaction> byShortId = new HashMap<Long, Transaction>();
+        for (Transaction tx : txPool.getTransactions()) {
+            Long id = shortId(tx.getId());
+            // an ambiguous short id is mapped to null, so the transaction is requested instead
+            if (byShortId.containsKey(id))
+                byShortId.put(id, null);
+            else
+                byShortId.put(id, tx);
+        }
+        Transaction[] txs = prefilled.clone();
+        for (int i = 0; i < txs.length; i++)
+            if (txs[i] == null)
+                txs[i] = byShortId.get(shortIds[i]);
+        return new Reconstruction(txs);
+    }
+
+    /** A block being rebuilt from a {@link CompactBlock} */
+    public class Reconstruction {
+        private final Transaction[] txs;
+
+        private Reconstruction(Transaction[] txs) {
+            this.txs = txs;
+        }
+
+        /** @return the positions of the transactions still missing, in increasing order */
+        public int[] getMissing() {
+            int count = 0;
+            for (Transaction tx : txs)
+                if (tx == null)
+                    count++;
+            int[] missing = new int[count];
+            for (int i = 0, j = 0; i < txs.length; i++)
+                if (txs[i] == null)
+                    missing[j++] = i;
+            return missing;
+        }
+
+        public boolean isComplete() {
+            return getMissing().length == 0;
+        }
+
+        /**
+         * Fills in {@code received}, the transactions requested for the positions {@code missing}
+         * returned by {@link #getMissing}
+         *
+         * @return false, filling in nothing, if they are not as many or a short id does not match
+         */
+        public boolean fill(int[] missing, Transaction[] received) {
+            if (missing.length != received.length)
+                return false;
+            for (int j = 0; j < missing.length; j++)
+                if (received[j] == null || received[j].getId() == null
+                        || shortId(received[j].getId()) != shortIds[missing[j]])
+                    return false;
+            for (int j = 0; j < missing.length; j++)
+                txs[missing[j]] = received[j];
+            return true;
+        }
+
+        /**
+         * @return the rebuilt block, finalized, or null if transactions are still missing or the
+         *         block does not hash to the header, after a short id collision; the full block
+         *         must then be requested
+         */
+        public Block getBlock() {
+            if (!isComplete())
+                return null;
+            Block block = new Block(header.getPrevBlockHash(), coinbaseKey, header.getHeight(), header.getTimestamp());
+            block.setBits(header.getBits());
+            block.setNonce(header.getNonce());
+            for (Transaction tx : txs)
+                block.addTransaction(tx);
+            block.finalize();
+            return Arrays.equals(block.getHash(), header.getHash()) ? block : null;
+        }
+    }
+
+    private static long[] keysOf(byte[] blockHash, long salt) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(blockHash);
+            md.update(ByteBuffer.allocate(Long.SIZE / 8).putLong(salt).array());
+            ByteBuffer digest = ByteBuffer.wrap(md.digest());
+            return new long[] { digest.getLong(), digest.getLong() };
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** SipHash-2-4 of the four words of {@code txId}, taken as the 32-byte message */
+    private static long sipHash(long k0, long k1, Hash256 txId) {
+        long[] v = { k0 ^ 0x736f6d6570736575L, k1 ^ 0x646f72616e646f6dL, k0 ^ 0x6c7967656e657261L,
+                k1 ^ 0x7465646279746573L };
+        // the last block holds the message length in its top byte
+        long[] message = { txId.w0, txId.w1, txId.w2, txId.w3, 32L << 56 };
+        for (long m : message) {
+            v[3] ^= m;
+            sipRound(v);
+            sipRound(v);
+            v[0] ^= m;
+        }
+        v[2] ^= 0xff;
+        for (int round = 0; round < 4; round++)
+            sipRound(v);
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void sipRound(long[] v) {
+        v[0] += v[1];
+        v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+        v[0] = Long.rotateLeft(v[0], 32);
+        v[2] += v[3];
+        v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+        v[0] += v[3];
+        v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+        v[2] += v[1];
+        v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+        v[2] = Long.rotateLeft(v[2], 32);
+    }
+}
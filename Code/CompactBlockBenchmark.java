@@ -0,0 +1,137 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.Signature;
+
+/**
+ * Relays a block of {@code txs} transactions to a local stand-in for a peer that already holds
+ * {@code percent} percent of them in its transaction pool, validated. Compares the bytes moved and
+ * the time from receiving the bytes to having the block connected for:
+ * <ul>
+ * <li>the full block, sent to a peer with an empty pool,</li>
+ * <li>the full block, sent to the peer with the transactions, which skips their signatures,
+ * and</li>
+ * <li>the compact block plus a request and a response for the missing transactions.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java CompactBlockBenchmark [txs] [percent]}; the defaults are 1000 and 95.
+ */
+public class CompactBlockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int percent = args.length > 1 ? Integer.parseInt(args[1]) : 95;
+        KeyPair keyPair = SignatureScheme.RSA.generateKeyPair();
+        Signature signer = SignatureScheme.RSA.newSignature();
+        signer.initSign(keyPair.getPrivate());
+
+        Block genesisBlock = new Block(null, keyPair.getPublic());
+        genesisBlock.finalize();
+        Transaction fanOut = new Transaction();
+        fanOut.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        for (int i = 0; i < count; i++)
+            fanOut.addOutput(Block.COINBASE / count, keyPair.getPublic());
+        signer.update(fanOut.getRawDataToSign(0));
+        fanOut.addSignature(signer.sign(), 0);
+        fanOut.finalize();
+        Block funding = new Block(genesisBlock.getHash(), keyPair.getPublic());
+        funding.addTransaction(fanOut);
+        funding.finalize();
+        Block block = new Block(funding.getHash(), keyPair.getPublic());
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(fanOut.getHash(), i);
+            tx.addOutput(Block.COINBASE / count, keyPair.getPublic());
+            signer.update(tx.getRawDataToSign(0));
+            tx.addSignature(signer.sign(), 0);
+            tx.finalize();
+            block.addTransaction(tx);
+        }
+        block.finalize();
+        int known = count * percent / 100;
+        System.out.printf("%d transactions, %d of them in the peer's pool%n", count, known);
+
+        for (int round = 0; round < 3; round++) {
+            byte[] full = serialize(out -> WireFormat.writeBlock(out, block));
+            long start = System.nanoTime();
+            connect(newPeer(genesisBlock, funding, block, 0), WireFormat.readBlock(input(full)));
+            long cold = System.nanoTime() - start;
+
+            BlockHandler warmPeer = newPeer(genesisBlock, funding, block, known);
+            start = System.nanoTime();
+            connect(warmPeer, WireFormat.readBlock(input(full)));
+            long warm = System.nanoTime() - start;
+
+            BlockHandler compactPeer = newPeer(genesisBlock, funding, block, known);
+            byte[] compact = serialize(out -> WireFormat.writeCompactBlock(out, new CompactBlock(block, 7, tx -> false)));
+            start = System.nanoTime();
+            CompactBlock compactBlock = WireFormat.readCompactBlock(input(compact));
+            CompactBlock.Reconstruction reconstruction = compactBlock.reconstruct(
+                    compactPeer.getBlockChain().getTransactionPool());
+            int[] missing = reconstruction.getMissing();
+            // the request names the missing positions; the sender answers with their transactions
+            byte[] request = serialize(out -> {
+                out.writeInt(missing.length);
+                for (int i : missing)
+                    out.writeInt(i);
+            });
+            byte[] response = serialize(out -> {
+                for (int i : missing)
+                    WireFormat.writeTransaction(out, block.getTransaction(i));
+            });
+            DataInputStream responseIn = input(response);
+            Transaction[] received = new Transaction[missing.length];
+            for (int j = 0; j < missing.length; j++)
+                received[j] = WireFormat.readTransaction(responseIn);
+            if (!reconstruction.fill(missing, received))
+                throw new IllegalStateException("missing transactions do not match");
+            connect(compactPeer, reconstruction.getBlock());
+            long compactNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d%n", round);
+            System.out.printf("  full block, empty pool:   %8d bytes, %7.1f ms%n", full.length, cold / 1e6);
+            System.out.printf("  full block, warm pool:    %8d bytes, %7.1f ms%n", full.length, warm / 1e6);
+            System.out.printf("  compact block, warm pool: %8d bytes (%d + %d + %d for %d missing), %7.1f ms%n",
+                    compact.length + request.length + response.length, compact.length, request.length,
+                    response.length, missing.length, compactNanos / 1e6);
+        }
+    }
+
+    /**
+     * @return a node that has connected {@code funding} and holds the first {@code known}
+     *         transactions of {@code block}
+     */
+    private static BlockHandler newPeer(Block genesisBlock, Block funding, Block block, int known) {
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        if (!blockHandler.processBlock(funding))
+            throw new IllegalStateException("funding block rejected");
+        for (int i = 0; i < known; i++)
+            blockHandler.processTx(block.getTransaction(i));
+        return blockHandler;
+    }
+
+    private static void connect(BlockHandler blockHandler, Block block) {
+        if (block == null || !blockHandler.processBlock(block))
+            throw new IllegalStateException("block rejected");
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] serialize(Writer writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writer.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
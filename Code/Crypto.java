@@ -1,37 +1,23 @@
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 
 public class Crypto {
 
     /**
      * @return true if {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but you do not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. Internally, this uses the {@link SignatureScheme} of the key, RSA
+     *         or Ed25519, but you do not have to deal with any of the implementation details of
+     *         the specific signature algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return SignatureScheme.of(pubKey).verify(pubKey, message, signature);
+    }
 
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[], byte[])} for the interned key
+     * {@code key}, without looking up its scheme
+     */
+    public static boolean verifySignature(KeyRegistry.Entry key, byte[] message, byte[] signature) {
+        return key.verify(message, signature);
     }
 }
@@ -0,0 +1,71 @@
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the event stream adds to block processing: the time to add a chain of
+ * {@code blocks} empty blocks without a stream and with one read by {@code subscribers}
+ * non-blocking subscriber threads, and the cost of publishing an event on its own.
+ * <p>
+ * Usage: {@code java EventStreamBenchmark [blocks] [subscribers]}; the defaults are 20000 and 2.
+ */
+public class EventStreamBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int subscriberCount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        KeyPair keyPair = SignatureScheme.RSA.generateKeyPair();
+        Block genesisBlock = new Block(null, keyPair.getPublic());
+        genesisBlock.finalize();
+        Block[] blocks = new Block[count];
+        byte[] prevHash = genesisBlock.getHash();
+        for (int i = 0; i < count; i++) {
+            blocks[i] = new Block(prevHash, keyPair.getPublic());
+            blocks[i].finalize();
+            prevHash = blocks[i].getHash();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long plain = addAll(new BlockChain(genesisBlock), blocks);
+
+            BlockChain blockChain = new BlockChain(genesisBlock);
+            ChainEventStream stream = blockChain.getEventStream();
+            long[] received = new long[subscriberCount];
+            Thread[] threads = new Thread[subscriberCount];
+            ChainEventStream.Subscriber[] subscribers = new ChainEventStream.Subscriber[subscriberCount];
+            for (int s = 0; s < subscriberCount; s++) {
+                int index = s;
+                subscribers[s] = stream.subscribe(false);
+                threads[s] = new Thread(() -> {
+                    while (!subscribers[index].isDropped() && received[index] < 2L * count)
+                        received[index] += subscribers[index].poll(event -> {}, 256, 10, TimeUnit.MILLISECONDS);
+                });
+                threads[s].start();
+            }
+            long streamed = addAll(blockChain, blocks);
+            for (int s = 0; s < subscriberCount; s++) {
+                threads[s].join(10000);
+                subscribers[s].close();
+            }
+
+            ChainEventStream bare = new ChainEventStream();
+            long start = System.nanoTime();
+            for (int i = 0; i < 10000000; i++)
+                bare.publish(ChainEventStream.Type.TIP_CHANGED, genesisBlock, i, null);
+            long publish = System.nanoTime() - start;
+
+            System.out.printf("round %d: addBlock %.1f us without stream, %.1f us with %d subscribers; publish %.1f ns%n",
+                    round, plain / 1e3 / count, streamed / 1e3 / count, subscriberCount, publish / 1e7);
+            for (int s = 0; s < subscriberCount; s++)
+                System.out.printf("  subscriber %d: %d events%s%n", s, received[s],
+                        subscribers[s].isDropped() ? ", dropped" : "");
+        }
+    }
+
+    private static long addAll(BlockChain blockChain, Block[] blocks) {
+        long start = System.nanoTime();
+        for (Block block : blocks)
+            if (!blockChain.addBlock(block))
+                throw new IllegalStateException("block rejected");
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable 32-byte hash, such as a transaction or block hash, held in four {@code long}s.
+ * Unlike a {@code byte[]} it can be used directly as a map key: {@code equals} compares the four
+ * words, {@code hashCode} is computed once, and {@code compareTo} orders hashes as unsigned
+ * big-endian numbers.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    /** number of bytes in a hash */
+    public static final int LENGTH = 32;
+
+    // package-private so that OutpointMap can store hashes as flat words
+    final long w0;
+    final long w1;
+    final long w2;
+    final long w3;
+    private final int hashCode;
+
+    Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        // the words of a cryptographic hash are already uniformly distributed
+        this.hashCode = (int) (w0 ^ (w0 >>> 32));
+    }
+
+    /** @return the hash whose bytes are {@code hash}, which must be 32 bytes long */
+    public static Hash256 of(byte[] hash) {
+        if (hash.length != LENGTH)
+            throw new IllegalArgumentException("expected " + LENGTH + " bytes but got " + hash.length);
+        return read(ByteBuffer.wrap(hash), 0);
+    }
+
+    /** @return the hash whose bytes are {@code hash}, or null if it is null or not 32 bytes long */
+    public static Hash256 idOf(byte[] hash) {
+        return hash == null || hash.length != LENGTH ? null : of(hash);
+    }
+
+    /** @return the hash held in the 32 bytes of {@code buffer} starting at {@code offset} */
+    public static Hash256 read(ByteBuffer buffer, int offset) {
+        return new Hash256(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getLong(offset + 16),
+                buffer.getLong(offset + 24));
+    }
+
+    /** @return the hash held in the next 32 bytes of {@code buffer}, advancing its position */
+    public static Hash256 read(ByteBuffer buffer) {
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /** Writes the 32 bytes of the hash to {@code buffer}, advancing its position */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    /** @return a new array holding the 32 bytes of the hash */
+    public byte[] toByteArray() {
+        ByteBuffer b = ByteBuffer.allocate(LENGTH);
+        writeTo(b);
+        return b.array();
+    }
+
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Hash256))
+            return false;
+        Hash256 h = (Hash256) other;
+        return w0 == h.w0 && w1 == h.w1 && w2 == h.w2 && w3 == h.w3;
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public int compareTo(Hash256 other) {
+        int c = Long.compareUnsigned(w0, other.w0);
+        if (c == 0)
+            c = Long.compareUnsigned(w1, other.w1);
+        if (c == 0)
+            c = Long.compareUnsigned(w2, other.w2);
+        if (c == 0)
+            c = Long.compareUnsigned(w3, other.w3);
+        return c;
+    }
+
+    /** @return the hash in hexadecimal */
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", w0, w1, w2, w3);
+    }
+}
@@ -0,0 +1,163 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns public keys, so that all outputs paying the same key share one {@link Entry} holding
+ * the key's encoding, address and hash code. Two keys are the same if their encodings are. The
+ * encoding is the compact, scheme-tagged one of {@link SignatureScheme}, which is also the one
+ * used in transactions and on the wire.
+ * <p>
+ * The registry holds its entries weakly: an entry lives as long as an output or a caller refers to
+ * it, so the registry is bounded by the keys of the transactions the node keeps, not by every key
+ * it was sent. {@link #decode} only looks keys up, so bytes from the network intern nothing
+ * until they become an output.
+ */
+public class KeyRegistry {
+
+    /** An interned public key */
+    public static class Entry {
+        private final int id;
+        private final PublicKey key;
+        private final SignatureScheme scheme;
+        private final byte[] encoded;
+        private final int hashCode;
+        private byte[] address;
+
+        private Entry(int id, PublicKey key, SignatureScheme scheme, byte[] encoded) {
+            this.id = id;
+            this.key = key;
+            this.scheme = scheme;
+            this.encoded = encoded;
+            this.hashCode = Arrays.hashCode(encoded);
+        }
+
+        /**
+         * @return a small number identifying the key while it is interned, or -1 for an entry
+         *         returned by {@link #decode} that is not interned
+         */
+        public int getId() {
+            return id;
+        }
+
+        public PublicKey getKey() {
+            return key;
+        }
+
+        public SignatureScheme getScheme() {
+            return scheme;
+        }
+
+        /** @return the key's compact, scheme-tagged encoding; callers must not modify it */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * @return the key's address: the SHA-256 hash of the modulus followed by the public
+         *         exponent for RSA keys, and of {@code getEncoded()} otherwise
+         */
+        public synchronized byte[] getAddress() {
+            if (address == null) {
+                try {
+                    MessageDigest md = MessageDigest.getInstance("SHA-256");
+                    if (key instanceof RSAPublicKey) {
+                        md.update(((RSAPublicKey) key).getModulus().toByteArray());
+                        md.update(((RSAPublicKey) key).getPublicExponent().toByteArray());
+                    } else {
+                        md.update(encoded);
+                    }
+                    address = md.digest();
+                } catch (NoSuchAlgorithmException x) {
+                    throw new IllegalStateException(x);
+                }
+            }
+            return address;
+        }
+
+        /**
+         * @return true if {@code signature} is a valid signature of {@code message} under this
+         *         key in its scheme, using the calling thread's verifier, so that threads checking
+         *         signatures of the same key do not wait for each other
+         */
+        public boolean verify(byte[] message, byte[] signature) {
+            return scheme.verify(key, message, signature);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** A weak reference to an entry that remembers its key in the map, to remove it once cleared */
+    private static class EntryReference extends WeakReference<Entry> {
+        final ByteArrayWrapper encoded;
+
+        EntryReference(Entry entry, ByteArrayWrapper encoded) {
+            super(entry, cleared);
+            this.encoded = encoded;
+        }
+    }
+
+    private static final ConcurrentHashMap<ByteArrayWrapper, EntryReference> entries = new ConcurrentHashMap<ByteArrayWrapper, EntryReference>();
+    private static final ReferenceQueue<Entry> cleared = new ReferenceQueue<Entry>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * @return the entry of {@code key}, creating it if the key is not interned
+     * @throws IllegalArgumentException if no {@link SignatureScheme} supports the key
+     */
+    public static Entry intern(PublicKey key) {
+        expungeCleared();
+        SignatureScheme scheme = SignatureScheme.of(key);
+        byte[] encoded = scheme.encode(key);
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(encoded);
+        while (true) {
+            EntryReference reference = entries.get(wrapper);
+            Entry entry = reference == null ? null : reference.get();
+            if (entry != null)
+                return entry;
+            entry = new Entry(nextId.getAndIncrement(), key, scheme, encoded);
+            EntryReference created = new EntryReference(entry, wrapper);
+            if (reference == null ? entries.putIfAbsent(wrapper, created) == null
+                    : entries.replace(wrapper, reference, created))
+                return entry;
+        }
+    }
+
+    /**
+     * @return the entry of the key whose compact encoding is {@code encoded} if it is interned, or
+     *         else a new entry for the parsed key that is not interned
+     */
+    public static Entry decode(byte[] encoded) throws GeneralSecurityException {
+        EntryReference reference = entries.get(new ByteArrayWrapper(encoded));
+        Entry entry = reference == null ? null : reference.get();
+        if (entry != null)
+            return entry;
+        try {
+            SignatureScheme scheme = SignatureScheme.of(encoded);
+            return new Entry(-1, scheme.decode(encoded), scheme, encoded.clone());
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException(e.getMessage());
+        }
+    }
+
+    /** @return the number of keys interned, including some no longer referenced */
+    public static int size() {
+        expungeCleared();
+        return entries.size();
+    }
+
+    private static void expungeCleared() {
+        EntryReference reference;
+        while ((reference = (EntryReference) cleared.poll()) != null)
+            entries.remove(reference.encoded, reference);
+    }
+}
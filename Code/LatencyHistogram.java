@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram in the style of HdrHistogram. Values are grouped into
+ * buckets holding 64 sub-buckets per power of two, which keeps the relative error of a reported
+ * percentile under 2% for any value while using a constant amount of memory. Recording is
+ * lock-free and allocation-free.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /** Records a single {@code value}; negative values are recorded as zero */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value))
+            max = maxValue.get();
+    }
+
+    /** @return the number of recorded values */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /** @return the largest recorded value, or 0 if nothing was recorded */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /** @return the arithmetic mean of the recorded values, or 0 if nothing was recorded */
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * @return the highest value equivalent to the value at {@code percentile} (0 to 100) of the
+     *         recorded distribution, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+        if (target < 1)
+            target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalentValue(i), maxValue.get());
+        }
+        return maxValue.get();
+    }
+
+    /** Clears all recorded values */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (top - SUB_BUCKET_COUNT);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        long top = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        long value = ((top + 1) << shift) - 1;
+        return value < 0 ? Long.MAX_VALUE : value;
+    }
+}
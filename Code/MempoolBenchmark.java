@@ -0,0 +1,82 @@
+import java.io.File;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+
+/**
+ * Dumps a pool of {@code txs} pending transactions, each spending its own confirmed output, and
+ * loads it back into a restarted chain, reporting the dump size and the time to save and to load,
+ * which includes decoding every transaction and verifying its signature.
+ * <p>
+ * Usage: {@code java MempoolBenchmark [txs]}; the default is 100000.
+ */
+public class MempoolBenchmark {
+
+    private static final int OUTPUTS_PER_FAN_OUT = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int fanOuts = (count + OUTPUTS_PER_FAN_OUT - 1) / OUTPUTS_PER_FAN_OUT;
+        KeyPair keyPair = SignatureScheme.RSA.generateKeyPair();
+        Signature signer = SignatureScheme.RSA.newSignature();
+        signer.initSign(keyPair.getPrivate());
+
+        // the genesis coinbase is split in two steps into one confirmed output per transaction
+        Block genesisBlock = new Block(null, keyPair.getPublic());
+        genesisBlock.finalize();
+        Block funding = new Block(genesisBlock.getHash(), keyPair.getPublic());
+        Transaction split = new Transaction();
+        split.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        for (int i = 0; i < fanOuts; i++)
+            split.addOutput(Block.COINBASE / fanOuts, keyPair.getPublic());
+        signer.update(split.getRawDataToSign(0));
+        split.addSignature(signer.sign(), 0);
+        split.finalize();
+        funding.addTransaction(split);
+        ArrayList<Transaction> fanOutTxs = new ArrayList<Transaction>();
+        for (int f = 0; f < fanOuts; f++) {
+            Transaction fanOut = new Transaction();
+            fanOut.addInput(split.getHash(), f);
+            for (int i = 0; i < OUTPUTS_PER_FAN_OUT; i++)
+                fanOut.addOutput(Block.COINBASE / fanOuts / OUTPUTS_PER_FAN_OUT, keyPair.getPublic());
+            signer.update(fanOut.getRawDataToSign(0));
+            fanOut.addSignature(signer.sign(), 0);
+            fanOut.finalize();
+            funding.addTransaction(fanOut);
+            fanOutTxs.add(fanOut);
+        }
+        funding.finalize();
+
+        System.out.printf("signing %d transactions%n", count);
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(count);
+        for (int i = 0; i < count; i++) {
+            Transaction fanOut = fanOutTxs.get(i / OUTPUTS_PER_FAN_OUT);
+            Transaction tx = new Transaction();
+            tx.addInput(fanOut.getHash(), i % OUTPUTS_PER_FAN_OUT);
+            tx.addOutput(fanOut.getOutput(0).value, keyPair.getPublic());
+            signer.update(tx.getRawDataToSign(0));
+            tx.addSignature(signer.sign(), 0);
+            tx.finalize();
+            txs.add(tx);
+        }
+
+        File file = File.createTempFile("mempool", ".dat");
+        file.deleteOnExit();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            MempoolFile.save(file, txs);
+            long save = System.nanoTime() - start;
+
+            BlockChain restarted = new BlockChain(genesisBlock);
+            if (!restarted.addBlock(funding))
+                throw new IllegalStateException("funding block rejected");
+            start = System.nanoTime();
+            int loaded = MempoolFile.load(file, new BlockHandler(restarted));
+            long load = System.nanoTime() - start;
+            if (loaded != count)
+                throw new IllegalStateException("loaded " + loaded + " of " + count);
+            System.out.printf("round %d: %d bytes, save %.0f ms, load %.0f ms (%.0f txs/s)%n", round, file.length(),
+                    save / 1e6, load / 1e6, count / (load / 1e9));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Dumps a transaction pool to a file and loads it back, so that pending transactions survive a
+ * restart. The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per
+ * transaction: an {@code int} length and the transaction in {@link WireFormat}. Records are
+ * written and read as a stream, and a dump interrupted half way through a record still loads up
+ * to the record before it, as does a dump whose record length is corrupt.
+ * <p>
+ * A dump is written to a temporary file next to the target and then moved over it, so a crash
+ * while dumping leaves the previous dump in place. A load reads the records in batches of
+ * {@link #BATCH_SIZE}, decodes and validates each batch in parallel against the UTXO pool of the
+ * max height block, and adds what is not permanently invalid to the transaction pool as
+ * {@link BlockHandler#submitTx} would.
+ */
+public class MempoolFile {
+
+    public static final int MAGIC = 0x4d454d50;
+    public static final int VERSION = 1;
+    public static final int BATCH_SIZE = 4096;
+
+    private MempoolFile() {
+    }
+
+    /** Writes {@code txs} to {@code file}, replacing it once they are all written */
+    public static void save(File file, List<Transaction> txs) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            for (Transaction tx : txs) {
+                record.reset();
+                WireFormat.writeTransaction(recordOut, tx);
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+            // the records must be on disk before the move makes them the dump
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the transactions dumped to {@code file} into the transaction pool of
+     * {@code blockHandler}'s chain. Records that do not decode are skipped.
+     *
+     * @return the number of transactions added to the pool
+     */
+    public static int load(File file, BlockHandler blockHandler) throws IOException {
+        BlockChain blockChain = blockHandler.getBlockChain();
+        UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+        NodeMetrics metrics = blockChain.getMetrics();
+        int added = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a mempool dump: " + file);
+            List<byte[]> batch = new ArrayList<byte[]>(BATCH_SIZE);
+            boolean more = true;
+            while (more) {
+                batch.clear();
+                while (more && batch.size() < BATCH_SIZE)
+                    more = readRecord(in, batch);
+                added += addBatch(batch, blockChain, utxoPool, metrics);
+            }
+        }
+        return added;
+    }
+
+    private static int addBatch(List<byte[]> batch, BlockChain blockChain, UTXOPool utxoPool, NodeMetrics metrics) {
+        Transaction[] txs = new Transaction[batch.size()];
+        ValidationResult[] results = new ValidationResult[batch.size()];
+        // the pool of the max height block does not change during the load
+        IntStream.range(0, txs.length).parallel().forEach(i -> {
+            try {
+                txs[i] = WireFormat.readTransaction(new DataInputStream(new ByteArrayInputStream(batch.get(i))));
+                results[i] = TxHandler.validateTx(utxoPool, txs[i], metrics);
+            } catch (IOException x) {
+                txs[i] = null;
+            }
+        });
+        int added = 0;
+        for (int i = 0; i < txs.length; i++) {
+            // inputs created by other pending transactions are missing until those confirm
+            if (txs[i] != null && !results[i].isPermanent()) {
+                blockChain.addTransaction(txs[i], results[i].isValid());
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return false if the stream ended, possibly half way through a record, or the record's
+     *         length is out of range; nothing after a bad length can be framed, so the load stops
+     *         there and keeps the records read before it
+     */
+    private static boolean readRecord(DataInputStream in, List<byte[]> batch) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > WireFormat.MAX_ARRAY_LENGTH)
+                return false;
+            byte[] record = new byte[length];
+            in.readFully(record);
+            batch.add(record);
+            return true;
+        } catch (EOFException x) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Merkle tree over 32-byte leaf hashes, built incrementally as leaves are appended. Like
+ * Bitcoin, a level with an odd number of nodes pairs its last node with itself, and a tree with a
+ * single leaf has that leaf as its root.
+ * <p>
+ * Only the pending left sibling of each level is kept, so appending a leaf costs O(1) amortized
+ * hashes and computing the root costs O(log n) hashes.
+ * <p>
+ * Pairing a last node with itself makes the root ambiguous: the leaves {@code [a, b, c]} and
+ * {@code [a, b, c, c]} have the same root (CVE-2012-2459). A tree in which two distinct nodes
+ * paired at some level are equal is reported as {@link #isMutated() mutated}; a block whose tree
+ * is mutated must be rejected without blaming its header, which also commits to the honest
+ * transaction list.
+ */
+public class MerkleTree {
+
+    /** {@code pending.get(l)} is a full subtree of 2^l leaves waiting for its right sibling */
+    private ArrayList<byte[]> pending = new ArrayList<byte[]>();
+    private int size;
+    /** whether two full subtrees paired so far were equal */
+    private boolean mutated;
+
+    /** Appends the leaf {@code hash} to the tree */
+    public void add(byte[] hash) {
+        byte[] node = hash;
+        int level = 0;
+        while (level < pending.size() && pending.get(level) != null) {
+            if (MessageDigest.isEqual(pending.get(level), node))
+                mutated = true;
+            node = hashPair(pending.get(level), node);
+            pending.set(level, null);
+            level++;
+        }
+        if (level == pending.size())
+            pending.add(node);
+        else
+            pending.set(level, node);
+        size++;
+    }
+
+    /** @return the number of leaves in the tree */
+    public int size() {
+        return size;
+    }
+
+    /** @return the root of the tree, or null if it has no leaves */
+    public byte[] getRoot() {
+        return fold(null);
+    }
+
+    /**
+     * @return true if two distinct nodes paired at some level of the tree are equal, so that
+     *         another list of leaves has the same root
+     */
+    public boolean isMutated() {
+        boolean[] mutatedRight = new boolean[1];
+        fold(mutatedRight);
+        return mutated || mutatedRight[0];
+    }
+
+    /**
+     * @return the root, setting {@code mutatedRight[0]} if given and a node is paired with an
+     *         equal node built from the leaves to its right
+     */
+    private byte[] fold(boolean[] mutatedRight) {
+        int top = pending.size() - 1;
+        while (top >= 0 && pending.get(top) == null)
+            top--;
+        if (top < 0)
+            return null;
+        // node is the rightmost node of the current level, built from the leaves to its right
+        byte[] node = null;
+        for (int level = 0; level <= top; level++) {
+            byte[] left = pending.get(level);
+            if (node == null) {
+                if (left == null)
+                    continue;
+                if (level == top)
+                    return left;
+                node = hashPair(left, left);
+            } else if (left != null) {
+                if (mutatedRight != null && MessageDigest.isEqual(left, node))
+                    mutatedRight[0] = true;
+                node = hashPair(left, node);
+            } else {
+                node = hashPair(node, node);
+            }
+        }
+        return node;
+    }
+
+    /** @return the root of the tree over {@code leaves}, or null if there are none */
+    public static byte[] getRoot(List<byte[]> leaves) {
+        MerkleTree tree = new MerkleTree();
+        for (byte[] leaf : leaves)
+            tree.add(leaf);
+        return tree.getRoot();
+    }
+
+    /**
+     * @return the sibling hashes on the path from leaf {@code index} to the root, starting at the
+     *         leaf's level, which together with the leaf prove its inclusion in the tree
+     */
+    public static List<byte[]> getBranch(List<byte[]> leaves, int index) {
+        if (index < 0 || index >= leaves.size())
+            throw new IndexOutOfBoundsException("no leaf " + index + " in " + leaves.size() + " leaves");
+        List<byte[]> branch = new ArrayList<byte[]>();
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            int sibling = index ^ 1;
+            branch.add(level.get(sibling < level.size() ? sibling : index));
+            List<byte[]> parents = new ArrayList<byte[]>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2)
+                parents.add(hashPair(level.get(i), level.get(i + 1 < level.size() ? i + 1 : i)));
+            level = parents;
+            index >>= 1;
+        }
+        return branch;
+    }
+
+    /**
+     * @return true if {@code branch}, as returned by {@link #getBranch}, proves that {@code leaf}
+     *         is leaf {@code index} of the tree with root {@code root}
+     */
+    public static boolean verifyBranch(byte[] leaf, int index, List<byte[]> branch, byte[] root) {
+        byte[] node = leaf;
+        for (byte[] sibling : branch) {
+            node = (index & 1) == 0 ? hashPair(node, sibling) : hashPair(sibling, node);
+            index >>= 1;
+        }
+        return index == 0 && MessageDigest.isEqual(node, root);
+    }
+
+    private static byte[] hashPair(byte[] left, byte[] right) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(left);
+            md.update(right);
+            return md.digest();
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
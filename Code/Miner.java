@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches for proof of work nonces on several threads. The nonce space is split into one
+ * contiguous range per thread. Each thread hashes the fixed part of the header once and then only
+ * the last SHA-256 block per nonce, through its own {@link Sha256Midstate}.
+ * <p>
+ * A miner listens to its chain and counts the changes of the main chain's tip in a generation
+ * number. A search runs for a given generation, taken when its block was assembled, and stops as
+ * soon as the generation moves on, since a block on the old tip would no longer extend the main
+ * chain; a tip change between assembling the block and starting the search is not lost. It runs
+ * one search at a time.
+ * <p>
+ * Chain listeners run on the thread changing the chain, which cannot be the thread blocked in a
+ * search, so the listener only catches tip changes made between searches. A thread that learns of
+ * a new tip while another one mines, such as one receiving blocks from peers, calls
+ * {@link #cancel()}, which is thread-safe, and hands the block to the chain once the search has
+ * returned.
+ */
+public class Miner implements ChainListener, Closeable {
+
+    /** nonces a thread tries between checks for a result or a cancellation */
+    private static final int CHECK_INTERVAL = 4096;
+
+    /** Outcome of a search */
+    public static class Result {
+        /** the nonce found, meaningful only if {@link #found} */
+        public final long nonce;
+        public final boolean found;
+        /** number of nonces tried by all threads */
+        public final long hashes;
+        public final long nanos;
+
+        Result(long nonce, boolean found, long hashes, long nanos) {
+            this.nonce = nonce;
+            this.found = found;
+            this.hashes = hashes;
+            this.nanos = nanos;
+        }
+
+        public double getHashesPerSecond() {
+            return nanos == 0 ? 0 : hashes * 1e9 / nanos;
+        }
+    }
+
+    private final BlockChain blockChain;
+    private final int threads;
+    private final ExecutorService executor;
+    /** incremented on every tip change and every {@link #cancel()} */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Creates a miner using every available processor */
+    public Miner(BlockChain blockChain) {
+        this(blockChain, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a miner using {@code threads} threads; {@code blockChain} may be null */
+    public Miner(BlockChain blockChain, int threads) {
+        this.blockChain = blockChain;
+        this.threads = threads;
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (blockChain != null)
+            blockChain.addChainListener(this);
+    }
+
+    /**
+     * @return the current generation, to take before reading the tip a block is assembled on and
+     *         pass to {@link #mine(Block, long)}
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /** Same as {@link #mine(Block, long)} for the current generation */
+    public Result mine(Block block) throws InterruptedException {
+        return mine(block, getGeneration());
+    }
+
+    /**
+     * Searches for a nonce that gives {@code block}'s header the number of leading zero bits its
+     * target requires, and finalizes the block with it
+     *
+     * @return the result; the block is left unchanged if no nonce was found, including when the
+     *         generation is no longer {@code generation}
+     */
+    public Result mine(Block block, long generation) throws InterruptedException {
+        if (block.getHeader() == null)
+            block.finalize();
+        BlockHeader header = block.getHeader();
+        Result result = search(header.getRawPrefix(), header.getBits(), generation);
+        if (result.found) {
+            block.setNonce(result.nonce);
+            block.finalize();
+        }
+        return result;
+    }
+
+    /** Same as {@link #search(byte[], int, long)} for the current generation */
+    public Result search(byte[] prefix, int bits) throws InterruptedException {
+        return search(prefix, bits, getGeneration());
+    }
+
+    /**
+     * Searches for a nonce that, appended to {@code prefix}, hashes to at least {@code bits}
+     * leading zero bits, until one is found, the nonce space is exhausted or the generation is no
+     * longer {@code generation}
+     */
+    public Result search(byte[] prefix, int bits, long generation) throws InterruptedException {
+        AtomicLong winner = new AtomicLong();
+        AtomicLong hashes = new AtomicLong();
+        boolean[] found = new boolean[1];
+        // set once a nonce is found, so that the other threads stop
+        AtomicBoolean stop = new AtomicBoolean();
+        Object lock = new Object();
+        long start = System.nanoTime();
+        if (this.generation.get() != generation)
+            return new Result(0, false, 0, 0);
+        CountDownLatch done = new CountDownLatch(threads);
+        // split the unsigned 64-bit nonce space into equal ranges
+        long step = Long.divideUnsigned(-1L, threads);
+        for (int t = 0; t < threads; t++) {
+            long from = step * t;
+            long to = t == threads - 1 ? -1L : from + step;
+            executor.execute(() -> {
+                try {
+                    Sha256Midstate sha = new Sha256Midstate(prefix);
+                    long nonce = from;
+                    long tried = 0;
+                    while (true) {
+                        if (BlockHeader.leadingZeroBits(sha.hash(nonce)) >= bits) {
+                            synchronized (lock) {
+                                if (!found[0]) {
+                                    found[0] = true;
+                                    winner.set(nonce);
+                                }
+                            }
+                            stop.set(true);
+                            tried++;
+                            break;
+                        }
+                        tried++;
+                        if (nonce == to)
+                            break;
+                        nonce++;
+                        if ((tried & (CHECK_INTERVAL - 1)) == 0
+                                && (stop.get() || this.generation.get() != generation))
+                            break;
+                    }
+                    hashes.addAndGet(tried);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        synchronized (lock) {
+            return new Result(winner.get(), found[0], hashes.get(), nanos);
+        }
+    }
+
+    /**
+     * Cancels the search in progress, if any, by moving on to the next generation; may be called
+     * from any thread
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    public void tipChanged(Block tip, int height, UTXOPool utxoPool) {
+        cancel();
+    }
+
+    public void tipReset(Block tip, int height, UTXOPool utxoPool) {
+        cancel();
+    }
+
+    /** Stops listening to the chain and stops the mining threads */
+    public void close() {
+        if (blockChain != null)
+            blockChain.removeChainListener(this);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,67 @@
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+
+/**
+ * Measures mining throughput: hashes per second of a full header hash with {@code MessageDigest},
+ * of {@link Sha256Midstate} on one thread, and of a {@link Miner} on one thread and on every
+ * available processor.
+ * <p>
+ * Usage: {@code java MinerBenchmark [bits]}; the default target is 22 leading zero bits.
+ */
+public class MinerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bits = args.length > 0 ? Integer.parseInt(args[0]) : 22;
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        Block genesis = new Block(null, keyGen.genKeyPair().getPublic());
+        genesis.finalize();
+        Block block = new Block(genesis.getHash(), keyGen.genKeyPair().getPublic(), 2);
+        block.setBits(bits);
+        block.finalize();
+        BlockHeader header = block.getHeader();
+        byte[] prefix = header.getRawPrefix();
+        int attempts = 2000000;
+
+        for (int round = 0; round < 3; round++) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] raw = header.getRawHeader();
+            long start = System.nanoTime();
+            int zeros = 0;
+            for (long nonce = 0; nonce < attempts; nonce++) {
+                for (int i = 0; i < 8; i++)
+                    raw[raw.length - 8 + i] = (byte) (nonce >>> (56 - 8 * i));
+                zeros += BlockHeader.leadingZeroBits(md.digest(raw));
+            }
+            double digestRate = attempts * 1e9 / (System.nanoTime() - start);
+
+            Sha256Midstate sha = new Sha256Midstate(prefix);
+            start = System.nanoTime();
+            for (long nonce = 0; nonce < attempts; nonce++)
+                zeros += BlockHeader.leadingZeroBits(sha.hash(nonce));
+            double midstateRate = attempts * 1e9 / (System.nanoTime() - start);
+            System.out.printf("round %d: MessageDigest %.0f H/s, midstate %.0f H/s (%d)%n", round, digestRate,
+                    midstateRate, zeros);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[] { 1, cores }) {
+            Miner miner = new Miner(null, threads);
+            long hashes = 0;
+            long nanos = 0;
+            for (int i = 0; i < 5; i++) {
+                // a different height per round gives a different search
+                Block next = new Block(genesis.getHash(), block.getCoinbase().getOutput(0).address, 2 + i);
+                next.setBits(bits);
+                Miner.Result result = miner.mine(next);
+                if (!result.found || !next.getHeader().hasValidWork())
+                    throw new IllegalStateException("no valid nonce found");
+                hashes += result.hashes;
+                nanos += result.nanos;
+            }
+            miner.close();
+            System.out.printf("miner, %d threads, %d bits: %.0f H/s over %d hashes%n", threads, bits,
+                    hashes * 1e9 / nanos, hashes);
+        }
+    }
+}
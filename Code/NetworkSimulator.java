@@ -0,0 +1,500 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * A discrete-event simulation of a network of {@link BlockHandler} nodes in one JVM. Nodes are
+ * joined into a random graph by links with a latency and a bandwidth, gossip blocks and
+ * transactions by announcing their hashes and sending them to peers that ask, mine blocks as a
+ * Poisson process split by hash power, and create transactions spending their own coins.
+ * <p>
+ * Each node handles one message at a time and stays busy for the modeled validation time of what
+ * it handled, so that slow validation delays relaying. With the default model, a run is fully
+ * determined by its {@link Config}: keys come from a seeded generator, blocks are stamped with the
+ * simulated time, and events at the same time run in the order they were scheduled. The CPU time
+ * each node really spends is measured either way and reported, and can be made the busy time
+ * instead with {@link Config#measuredCpu}. Node work runs on a single worker thread, so that the
+ * parallel streams it starts, such as batch signature verification and sharded UTXO updates, run
+ * on that thread too and are counted in its CPU time.
+ * <p>
+ * Usage: {@code java NetworkSimulator [nodes] [blocks] [blockIntervalMillis] [latencyMillis]
+ * [cutOffAge]}
+ */
+public class NetworkSimulator {
+
+    /** Parameters of a simulation; times are simulated milliseconds */
+    public static class Config {
+        public int nodes = 20;
+        /** number of peers each node connects to; links carry messages both ways */
+        public int degree = 4;
+        public long latencyMillis = 100;
+        /** bandwidth of every link in each direction */
+        public long bandwidthBytesPerSecond = 1250000;
+        /** mean time between two blocks anywhere in the network */
+        public long blockIntervalMillis = 5000;
+        /** number of blocks to mine before the network is left to settle */
+        public int blocks = 100;
+        /** the share of blocks each node mines, or null for equal shares */
+        public double[] hashPower;
+        /** transactions created per second anywhere in the network */
+        public double txPerSecond = 5;
+        /** window depth of every node's retention policy */
+        public int cutOffAge = BlockChain.CUT_OFF_AGE;
+        /** modeled time to handle a block, plus the time per transaction it holds */
+        public double blockCostMillis = 2;
+        /** modeled time to handle a transaction */
+        public double txCostMillis = 0.5;
+        /** whether nodes stay busy for the measured CPU time of each message; not repeatable */
+        public boolean measuredCpu;
+        public long seed = 1;
+    }
+
+    /** Outcome of a simulation */
+    public static class Report {
+        public long simulatedMillis;
+        public int blocksMined;
+        public int txsCreated;
+        /** blocks mined that are not on the main chain of node 0 at the end */
+        public int staleBlocks;
+        /** the most blocks any node disconnected in one reorganization */
+        public int maxReorgDepth;
+        /** blocks that nodes rejected as older than the cut-off age */
+        public int cutOffRejections;
+        /** microseconds from a block being mined to each other node accepting it */
+        public final LatencyHistogram propagation = new LatencyHistogram();
+        /** microseconds from a block being mined to the last node accepting it */
+        public final LatencyHistogram fullPropagation = new LatencyHistogram();
+        /**
+         * measured CPU time of each node, on the one thread that runs all node work including its
+         * parallel phases
+         */
+        public long[] cpuNanos;
+        /** hash of node 0's max height block at the end */
+        public byte[] tipHash;
+
+        public double getStaleRate() {
+            return blocksMined == 0 ? 0 : (double) staleBlocks / blocksMined;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("simulated %.1f s, %d blocks mined, %d transactions created%n",
+                    simulatedMillis / 1000.0, blocksMined, txsCreated));
+            sb.append(String.format("propagation to each node: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    propagation.getValueAtPercentile(50) / 1000.0, propagation.getValueAtPercentile(90) / 1000.0,
+                    propagation.getValueAtPercentile(99) / 1000.0, propagation.getMax() / 1000.0));
+            sb.append(String.format("propagation to all nodes: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, %d of %d blocks%n",
+                    fullPropagation.getValueAtPercentile(50) / 1000.0,
+                    fullPropagation.getValueAtPercentile(90) / 1000.0,
+                    fullPropagation.getValueAtPercentile(99) / 1000.0, fullPropagation.getCount(), blocksMined));
+            sb.append(String.format("stale blocks: %d (%.2f%%), max reorg depth %d, cut-off rejections %d%n",
+                    staleBlocks, 100 * getStaleRate(), maxReorgDepth, cutOffRejections));
+            long[] sorted = cpuNanos.clone();
+            Arrays.sort(sorted);
+            sb.append(String.format("CPU per node (one thread): min %.1f ms, median %.1f ms, max %.1f ms%n", sorted[0] / 1e6,
+                    sorted[sorted.length / 2] / 1e6, sorted[sorted.length - 1] / 1e6));
+            return sb.toString();
+        }
+    }
+
+    /** timestamp of the genesis block, to which simulated time is added */
+    private static final long EPOCH_MILLIS = 1600000000000L;
+    private static final int INV_BYTES = Hash256.LENGTH + 4;
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable action;
+
+        Event(long time, long seq, Runnable action) {
+            this.time = time;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        public int compareTo(Event other) {
+            int c = Long.compare(time, other.time);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private class Node implements ChainListener {
+        final int id;
+        final KeyPair keyPair;
+        final BlockChain blockChain;
+        final BlockHandler blockHandler;
+        final List<Node> peers = new ArrayList<Node>();
+        /** hashes of the blocks and transactions this node has or has asked for */
+        final Set<Hash256> known = new HashSet<Hash256>();
+        /** blocks whose parent has not arrived, by the parent's hash */
+        final Map<Hash256, List<Block>> orphans = new HashMap<Hash256, List<Block>>();
+        /** outputs paying this node, confirmed or not, oldest first */
+        final List<UTXO> coins = new ArrayList<UTXO>();
+        /** messages to send once the one being handled is done */
+        final List<Runnable> outbox = new ArrayList<Runnable>();
+        long busyUntil;
+        long cpuNanos;
+        int disconnectRun;
+
+        Node(int id, KeyPair keyPair, Block genesisBlock) {
+            this.id = id;
+            this.keyPair = keyPair;
+            blockChain = new BlockChain(genesisBlock,
+                    new RetentionPolicy(config.cutOffAge, Integer.MAX_VALUE, Long.MAX_VALUE));
+            blockHandler = new BlockHandler(blockChain);
+            blockChain.addChainListener(this);
+            known.add(genesisBlock.getId());
+        }
+
+        public void blockConnected(Block block, int height, UTXOPool before, UTXOPool after) {
+            disconnectRun = 0;
+        }
+
+        public void blockDisconnected(Block block, int height, UTXOPool before, UTXOPool after) {
+            disconnectRun++;
+            report.maxReorgDepth = Math.max(report.maxReorgDepth, disconnectRun);
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    /**
+     * runs node work; a parallel stream started from one of its tasks runs in it, and with one
+     * thread entirely on the thread whose CPU time is measured
+     */
+    private final ForkJoinPool worker = new ForkJoinPool(1);
+    private final Block genesisBlock;
+    private final Node[] nodes;
+    /** the time each directed link is busy until, by sender and receiver */
+    private final long[][] linkBusyUntil;
+    /** every block mined, and when, by hash */
+    private final Map<Hash256, Block> minedBlocks = new HashMap<Hash256, Block>();
+    private final Map<Hash256, Long> minedAt = new HashMap<Hash256, Long>();
+    private final Map<Hash256, Integer> reached = new HashMap<Hash256, Integer>();
+    private final Map<Hash256, Integer> wireSizes = new HashMap<Hash256, Integer>();
+    private final Report report = new Report();
+    private long now;
+    private long seq;
+
+    public NetworkSimulator(Config config) throws GeneralSecurityException {
+        this.config = config;
+        random = new Random(config.seed);
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(config.seed);
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024, keyRandom);
+        KeyPair genesisKeys = keyGen.genKeyPair();
+        genesisBlock = new Block(null, genesisKeys.getPublic(), 0, EPOCH_MILLIS);
+        genesisBlock.finalize();
+        nodes = new Node[config.nodes];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = new Node(i, keyGen.genKeyPair(), genesisBlock);
+        // a ring keeps the graph connected, and random links make up the rest of each degree
+        for (int i = 0; i < nodes.length && nodes.length > 1; i++)
+            connect(nodes[i], nodes[(i + 1) % nodes.length]);
+        for (Node node : nodes)
+            while (node.peers.size() < Math.min(config.degree, nodes.length - 1))
+                connect(node, nodes[random.nextInt(nodes.length)]);
+        linkBusyUntil = new long[nodes.length][nodes.length];
+    }
+
+    private static void connect(Node a, Node b) {
+        if (a == b || a.peers.contains(b))
+            return;
+        a.peers.add(b);
+        b.peers.add(a);
+    }
+
+    /** Runs the simulation until all blocks are mined and every message has been delivered */
+    public Report run() {
+        scheduleMining(0);
+        if (config.txPerSecond > 0)
+            scheduleTx(0);
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+        worker.shutdown();
+        report.simulatedMillis = now / 1000;
+        report.cpuNanos = new long[nodes.length];
+        for (Node node : nodes)
+            report.cpuNanos[node.id] = node.cpuNanos;
+        Block tip = nodes[0].blockChain.getMaxHeightBlock();
+        report.tipHash = tip.getHash();
+        int mainChain = 0;
+        for (Block block = minedBlocks.get(tip.getId()); block != null; block = minedBlocks.get(block.getHeader().getPrevId()))
+            mainChain++;
+        report.staleBlocks = report.blocksMined - mainChain;
+        return report;
+    }
+
+    private void schedule(long time, Runnable action) {
+        events.add(new Event(time, seq++, action));
+    }
+
+    /** @return an exponentially distributed delay in microseconds with mean {@code meanMillis} */
+    private long exponential(double meanMillis) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanMillis * 1000);
+    }
+
+    private void scheduleMining(long after) {
+        if (report.blocksMined >= config.blocks)
+            return;
+        schedule(after + exponential(config.blockIntervalMillis), () -> {
+            Node miner = pickMiner();
+            report.blocksMined++;
+            onNode(miner, () -> mine(miner));
+            scheduleMining(now);
+        });
+    }
+
+    private void scheduleTx(long after) {
+        if (report.blocksMined >= config.blocks)
+            return;
+        schedule(after + exponential(1000 / config.txPerSecond), () -> {
+            Node node = nodes[random.nextInt(nodes.length)];
+            onNode(node, () -> createTx(node));
+            scheduleTx(now);
+        });
+    }
+
+    private Node pickMiner() {
+        if (config.hashPower == null)
+            return nodes[random.nextInt(nodes.length)];
+        double total = 0;
+        for (double power : config.hashPower)
+            total += power;
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < nodes.length - 1; i++) {
+            r -= config.hashPower[i];
+            if (r < 0)
+                return nodes[i];
+        }
+        return nodes[nodes.length - 1];
+    }
+
+    /** A piece of work done by a node */
+    private interface Work {
+        /** @return the modeled time it took, in microseconds */
+        long run();
+    }
+
+    /**
+     * Runs {@code work} on {@code node} once it is no longer busy, keeps it busy for the time the
+     * work took, and sends the messages the work queued once that time has passed
+     */
+    private void onNode(Node node, Work work) {
+        if (now < node.busyUntil) {
+            schedule(node.busyUntil, () -> onNode(node, work));
+            return;
+        }
+        long[] measured = new long[1];
+        long modeled = worker.submit(() -> {
+            long cpuStart = cpuTime();
+            long time = work.run();
+            measured[0] = cpuTime() - cpuStart;
+            return time;
+        }).join();
+        long cpu = measured[0];
+        node.cpuNanos += cpu;
+        node.busyUntil = now + (config.measuredCpu ? cpu / 1000 : modeled);
+        for (Runnable send : node.outbox)
+            schedule(node.busyUntil, send);
+        node.outbox.clear();
+    }
+
+    private long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /** Queues {@code bytes} from {@code from} to {@code to}, which runs {@code work} on arrival */
+    private void send(Node from, Node to, int bytes, Work work) {
+        from.outbox.add(() -> {
+            long start = Math.max(now, linkBusyUntil[from.id][to.id]);
+            long done = start + bytes * 1000000L / config.bandwidthBytesPerSecond;
+            linkBusyUntil[from.id][to.id] = done;
+            schedule(done + config.latencyMillis * 1000, () -> onNode(to, work));
+        });
+    }
+
+    /**
+     * Announces the block or transaction {@code id} to the peers of {@code node} but
+     * {@code except}; {@code sendTo} sends it to a peer that asks for it
+     */
+    private void announce(Node node, Hash256 id, Node except, Consumer<Node> sendTo) {
+        for (Node peer : node.peers) {
+            if (peer == except)
+                continue;
+            send(node, peer, INV_BYTES, () -> {
+                // ask for it unless it is already here or on its way
+                if (peer.known.add(id))
+                    send(peer, node, INV_BYTES, () -> {
+                        sendTo.accept(peer);
+                        return 0;
+                    });
+                return 0;
+            });
+        }
+    }
+
+    private long mine(Node miner) {
+        BlockChain blockChain = miner.blockChain;
+        Block parent = blockChain.getMaxHeightBlock();
+        Block block = new Block(parent.getHash(), miner.keyPair.getPublic(), blockChain.getBlockchainHeight() + 1,
+                EPOCH_MILLIS + now / 1000);
+        TxHandler handler = new TxHandler(blockChain.getMaxHeightUTXOPool());
+        for (Transaction tx : handler.handleTxs(blockChain.getTransactionPool().getTransactions().toArray(new Transaction[0])))
+            block.addTransaction(tx);
+        block.finalize();
+        Hash256 id = block.getId();
+        minedBlocks.put(id, block);
+        minedAt.put(id, now);
+        reached.put(id, 0);
+        miner.known.add(id);
+        if (miner.blockHandler.submitBlock(block).isValid()) {
+            miner.coins.add(new UTXO(block.getCoinbase().getId(), 0));
+            relayBlock(miner, block, null);
+        }
+        return blockCost(block);
+    }
+
+    private long blockCost(Block block) {
+        return (long) ((config.blockCostMillis + config.txCostMillis * block.getTransactions().size()) * 1000);
+    }
+
+    private void relayBlock(Node node, Block block, Node from) {
+        int bytes = wireSize(block);
+        announce(node, block.getId(), from, peer -> send(node, peer, bytes, () -> receiveBlock(peer, block, node)));
+    }
+
+    private long receiveBlock(Node node, Block block, Node from) {
+        ValidationResult result = node.blockHandler.submitBlock(block);
+        long cost = blockCost(block);
+        if (result == ValidationResult.UNKNOWN_PARENT) {
+            node.orphans.computeIfAbsent(block.getHeader().getPrevId(), k -> new ArrayList<Block>()).add(block);
+            return cost;
+        }
+        if (result == ValidationResult.CUTOFF_TOO_OLD)
+            report.cutOffRejections++;
+        if (!result.isValid())
+            return cost;
+        Hash256 id = block.getId();
+        long delay = now - minedAt.get(id);
+        report.propagation.record(delay);
+        int count = reached.merge(id, 1, Integer::sum);
+        if (count == nodes.length - 1)
+            report.fullPropagation.record(delay);
+        relayBlock(node, block, from);
+        List<Block> children = node.orphans.remove(id);
+        if (children != null)
+            for (Block child : children)
+                cost += receiveBlock(node, child, from);
+        return cost;
+    }
+
+    private long createTx(Node node) {
+        UTXOPool utxoPool = node.blockChain.getMaxHeightUTXOPool();
+        for (int i = 0; i < node.coins.size(); i++) {
+            UTXO coin = node.coins.get(i);
+            Transaction.Output output = utxoPool.getTxOutput(coin);
+            if (output == null)
+                continue;
+            node.coins.remove(i);
+            Transaction tx = new Transaction();
+            tx.addInput(coin.getTxHash(), coin.getIndex());
+            tx.addOutput(output.value / 2, node.keyPair.getPublic());
+            tx.addOutput(output.value - output.value / 2, node.keyPair.getPublic());
+            try {
+                Signature signer = SignatureScheme.RSA.newSignature();
+                signer.initSign(node.keyPair.getPrivate());
+                signer.update(tx.getRawDataToSign(0));
+                tx.addSignature(signer.sign(), 0);
+            } catch (GeneralSecurityException x) {
+                throw new IllegalStateException(x);
+            }
+            tx.finalize();
+            node.coins.add(new UTXO(tx.getId(), 0));
+            node.coins.add(new UTXO(tx.getId(), 1));
+            node.known.add(tx.getId());
+            report.txsCreated++;
+            node.blockHandler.submitTx(tx);
+            relayTx(node, tx, null);
+            break;
+        }
+        return (long) (config.txCostMillis * 1000);
+    }
+
+    private void relayTx(Node node, Transaction tx, Node from) {
+        int bytes = wireSize(tx);
+        announce(node, tx.getId(), from, peer -> send(node, peer, bytes, () -> receiveTx(peer, tx, node)));
+    }
+
+    private long receiveTx(Node node, Transaction tx, Node from) {
+        ValidationResult result = node.blockHandler.submitTx(tx);
+        if (!result.isPermanent())
+            relayTx(node, tx, from);
+        return (long) (config.txCostMillis * 1000);
+    }
+
+    private int wireSize(Block block) {
+        return wireSizes.computeIfAbsent(block.getId(), k -> serializedSize(out -> WireFormat.writeBlock(out, block)));
+    }
+
+    private int wireSize(Transaction tx) {
+        return wireSizes.computeIfAbsent(tx.getId(), k -> serializedSize(out -> WireFormat.writeTransaction(out, tx)));
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static int serializedSize(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException x) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(x);
+        }
+        return bytes.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        if (args.length > 0)
+            config.nodes = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.blocks = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            config.blockIntervalMillis = Long.parseLong(args[2]);
+        if (args.length > 3)
+            config.latencyMillis = Long.parseLong(args[3]);
+        if (args.length > 4)
+            config.cutOffAge = Integer.parseInt(args[4]);
+        System.out.printf("%d nodes of degree %d, %d blocks every %d ms, %d ms latency, %d bytes/s links, cut-off age %d%n",
+                config.nodes, config.degree, config.blocks, config.blockIntervalMillis, config.latencyMillis,
+                config.bandwidthBytesPerSecond, config.cutOffAge);
+        System.out.print(new NetworkSimulator(config).run());
+    }
+}
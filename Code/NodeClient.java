@@ -0,0 +1,124 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A client of a {@link NodeService}. Requests can be pipelined: the {@code send} methods write a
+ * request and return its id without waiting, {@link #flush} sends them, and {@link #receive} reads
+ * the next response. Responses arrive in the order the requests were sent. The blocking methods
+ * send one request and wait for its response, and must not be mixed with requests still in
+ * flight. Not thread-safe.
+ */
+public class NodeClient implements Closeable {
+
+    /** A response from the service */
+    public static class Response {
+        public final int id;
+        public final ValidationResult result;
+        /** the payload after the result */
+        public final DataInputStream payload;
+
+        Response(int id, ValidationResult result, DataInputStream payload) {
+            this.id = id;
+            this.result = result;
+            this.payload = payload;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private int nextId;
+
+    public NodeClient(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Sends a {@code SUBMIT_TX} request without flushing it; @return its id */
+    public int sendTx(Transaction tx) throws IOException {
+        DataOutputStream body = begin(NodeService.SUBMIT_TX);
+        WireFormat.writeTransaction(body, tx);
+        return end();
+    }
+
+    /** Sends a {@code SUBMIT_BLOCK} request without flushing it; @return its id */
+    public int sendBlock(Block block) throws IOException {
+        DataOutputStream body = begin(NodeService.SUBMIT_BLOCK);
+        WireFormat.writeBlock(body, block);
+        return end();
+    }
+
+    /** Sends a {@code GET_TIP} request without flushing it; @return its id */
+    public int sendGetTip() throws IOException {
+        begin(NodeService.GET_TIP);
+        return end();
+    }
+
+    /** Sends the requests written so far */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** @return the next response, blocking until it arrives */
+    public Response receive() throws IOException {
+        int length = in.readInt();
+        if (length < 5 || length > NodeService.MAX_FRAME_LENGTH)
+            throw new IOException("bad frame length " + length);
+        int id = in.readInt();
+        ValidationResult result = ValidationResult.values()[in.readUnsignedByte()];
+        byte[] payload = new byte[length - 5];
+        in.readFully(payload);
+        return new Response(id, result, new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    /** Submits {@code tx} and waits for the result */
+    public ValidationResult submitTx(Transaction tx) throws IOException {
+        sendTx(tx);
+        flush();
+        return receive().result;
+    }
+
+    /** Submits {@code block} and waits for the result */
+    public ValidationResult submitBlock(Block block) throws IOException {
+        sendBlock(block);
+        flush();
+        return receive().result;
+    }
+
+    /** @return the height of the service's max height block, waiting for the response */
+    public int getTipHeight() throws IOException {
+        sendGetTip();
+        flush();
+        return receive().payload.readInt();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private DataOutputStream begin(byte type) throws IOException {
+        frame.reset();
+        DataOutputStream body = new DataOutputStream(frame);
+        body.writeInt(nextId);
+        body.writeByte(type);
+        return body;
+    }
+
+    private int end() throws IOException {
+        out.writeInt(frame.size());
+        frame.writeTo(out);
+        return nextId++;
+    }
+}
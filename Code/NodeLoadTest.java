@@ -0,0 +1,115 @@
+import java.net.InetSocketAddress;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load-tests a {@link NodeService} over many concurrent connections and reports request latency.
+ * Every connection keeps {@code depth} requests pipelined, alternating tip queries with
+ * transaction submissions. Each transaction is distinct, has no inputs and pays a negative amount,
+ * so it is decoded and validated but never enters the mempool.
+ * <p>
+ * Usage: {@code java NodeLoadTest [connections] [requests per connection] [depth] [host port]};
+ * without a host and port it starts a service on loopback over a fresh chain.
+ */
+public class NodeLoadTest {
+
+    private static final long LATENCY_UNIT_NANOS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        PublicKey key = keyGen.genKeyPair().getPublic();
+
+        NodeService service = null;
+        InetSocketAddress address;
+        if (args.length > 4) {
+            address = new InetSocketAddress(args[3], Integer.parseInt(args[4]));
+        } else {
+            Block genesis = new Block(null, key);
+            genesis.finalize();
+            service = new NodeService(new BlockHandler(new BlockChain(genesis)));
+            address = service.getAddress();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            Thread thread = new Thread(null, () -> {
+                NodeClient client = null;
+                try {
+                    client = new NodeClient(address);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+                connected.countDown();
+                try {
+                    go.await();
+                    if (client != null)
+                        run(client, connection, requests, depth, key, latency);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    try {
+                        if (client != null)
+                            client.close();
+                    } catch (Exception e) {
+                        // nothing to clean up
+                    }
+                    done.countDown();
+                }
+            }, "load-" + c, 256 << 10);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        connected.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long completed = latency.getCount();
+        System.out.printf("%d connections, %d requests each, depth %d: %d completed, %d connections failed%n",
+                connections, requests, depth, completed, failures.get());
+        System.out.printf("throughput %.0f requests/s%n", completed / (elapsed / 1e9));
+        System.out.printf("latency p50 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                latency.getValueAtPercentile(99.9), latency.getMax());
+        if (service != null)
+            service.close();
+    }
+
+    private static void run(NodeClient client, int connection, int requests, int depth, PublicKey key,
+            LatencyHistogram latency) throws Exception {
+        long[] sentAt = new long[requests];
+        int sent = 0;
+        int received = 0;
+        while (received < requests) {
+            while (sent < requests && sent - received < depth) {
+                sentAt[sent] = System.nanoTime();
+                if (sent % 2 == 0) {
+                    client.sendGetTip();
+                } else {
+                    Transaction tx = new Transaction();
+                    tx.addOutput(-(connection * (long) requests + sent + 1), key);
+                    tx.finalize();
+                    client.sendTx(tx);
+                }
+                sent++;
+            }
+            client.flush();
+            NodeClient.Response response = client.receive();
+            latency.record((System.nanoTime() - sentAt[response.id]) / LATENCY_UNIT_NANOS);
+            received++;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Phase timers, counters and gauges for block and transaction processing. A freshly created
+ * instance is disabled: {@link #start()} then returns without reading the clock and every
+ * recording method returns after a single field read, so instrumented code paths cost next to
+ * nothing until {@link #setEnabled(boolean)} is called.
+ * <p>
+ * Results can be pulled with {@link #exportText()} or through JMX after {@link #registerMBean}.
+ */
+public class NodeMetrics implements NodeMetricsMBean {
+
+    /** A timed section of block or transaction processing */
+    public enum Phase {
+        /** the whole of {@code BlockChain.addBlock} */
+        ADD_BLOCK,
+        /** copying the parent's UTXO pool into a new {@code TxHandler} */
+        UTXO_COPY,
+        /** the whole of {@code TxHandler.handleTxs} */
+        HANDLE_TXS,
+        /** a single signature verification */
+        SIG_VERIFY,
+        /** verifying all signatures of a block's transactions in parallel */
+        BATCH_VERIFY,
+        /** the whole of {@code TxHandler.applyBlockTxs} */
+        APPLY_BLOCK_TXS,
+        /** removing block states that fell behind the cut-off age */
+        PRUNE
+    }
+
+    /** A monotonically increasing event count */
+    public enum Counter {
+        BLOCKS_ACCEPTED,
+        BLOCKS_REJECTED,
+        /** blocks stored without validation, as they could not become the max height block */
+        BLOCKS_DEFERRED,
+        TXS_VALIDATED,
+        SIG_VERIFIES,
+        /** block transactions whose signatures were not verified again, as the mempool had */
+        TXS_PREVERIFIED,
+        /** passes over the proposed transactions made by {@code TxHandler.handleTxs} */
+        HANDLE_TXS_PASSES
+    }
+
+    /** Shared always-disabled instance for components created without metrics */
+    public static final NodeMetrics DISABLED = new NodeMetrics();
+
+    private volatile boolean enabled;
+    private final Map<Phase, LatencyHistogram> timers = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<Counter, LongAdder>(Counter.class);
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<String, LongAdder>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    public NodeMetrics() {
+        for (Phase phase : Phase.values())
+            timers.put(phase, new LatencyHistogram());
+        for (Counter counter : Counter.values())
+            counters.put(counter, new LongAdder());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (this == DISABLED)
+            throw new UnsupportedOperationException("the shared DISABLED metrics cannot be enabled");
+        this.enabled = enabled;
+    }
+
+    /** @return a start timestamp for {@link #stop}, or 0 if metrics are disabled */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records the time elapsed since {@code startNanos} (as returned by {@link #start()}) */
+    public void stop(Phase phase, long startNanos) {
+        if (enabled && startNanos != 0)
+            timers.get(phase).record(System.nanoTime() - startNanos);
+    }
+
+    public void increment(Counter counter) {
+        if (enabled)
+            counters.get(counter).increment();
+    }
+
+    /** Counts a rejected block under {@code reason} as well as in the total */
+    public void blockRejected(String reason) {
+        if (!enabled)
+            return;
+        counters.get(Counter.BLOCKS_REJECTED).increment();
+        rejections.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers a gauge whose value is read from {@code value} whenever metrics are pulled, on the
+     * pulling thread, so {@code value} must be safe to call from any thread
+     */
+    public void registerGauge(String name, LongSupplier value) {
+        if (this != DISABLED)
+            gauges.put(name, value);
+    }
+
+    public LatencyHistogram getTimer(Phase phase) {
+        return timers.get(phase);
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    /** @return the number of rejected blocks per reason */
+    public Map<String, Long> getRejections() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> e : rejections.entrySet())
+            result.put(e.getKey(), e.getValue().sum());
+        return result;
+    }
+
+    public long getBlocksAccepted() {
+        return getCount(Counter.BLOCKS_ACCEPTED);
+    }
+
+    public long getBlocksRejected() {
+        return getCount(Counter.BLOCKS_REJECTED);
+    }
+
+    public long getTxsValidated() {
+        return getCount(Counter.TXS_VALIDATED);
+    }
+
+    public long getSignatureVerifications() {
+        return getCount(Counter.SIG_VERIFIES);
+    }
+
+    public long getUtxoSetSize() {
+        return gauge("utxo_set_size");
+    }
+
+    public long getBlockStateCount() {
+        return gauge("block_states");
+    }
+
+    public long getMempoolSize() {
+        return gauge("mempool_size");
+    }
+
+    public double getAddBlockP50Micros() {
+        return timers.get(Phase.ADD_BLOCK).getValueAtPercentile(50) / 1000.0;
+    }
+
+    public double getAddBlockP99Micros() {
+        return timers.get(Phase.ADD_BLOCK).getValueAtPercentile(99) / 1000.0;
+    }
+
+    private long gauge(String name) {
+        LongSupplier value = gauges.get(name);
+        return value == null ? 0 : value.getAsLong();
+    }
+
+    /**
+     * @return all counters, gauges and phase timers in the Prometheus text exposition format; phase
+     *         latencies are reported in seconds
+     */
+    public String exportText() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            String name = "blockchain_" + counter.name().toLowerCase() + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(getCount(counter)).append('\n');
+        }
+        for (Map.Entry<String, Long> e : getRejections().entrySet())
+            sb.append("blockchain_blocks_rejected_total{reason=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue()).append('\n');
+        for (String name : new TreeMap<String, LongSupplier>(gauges).keySet()) {
+            sb.append("# TYPE blockchain_").append(name).append(" gauge\n");
+            sb.append("blockchain_").append(name).append(' ').append(gauge(name)).append('\n');
+        }
+        sb.append("# TYPE blockchain_phase_seconds summary\n");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = timers.get(phase);
+            String label = "blockchain_phase_seconds{phase=\"" + phase.name().toLowerCase() + "\"";
+            for (String q : new String[] { "0.5", "0.9", "0.99", "0.999" })
+                sb.append(label).append(",quantile=\"").append(q).append("\"} ")
+                        .append(h.getValueAtPercentile(Double.parseDouble(q) * 100) / 1e9).append('\n');
+            sb.append("blockchain_phase_seconds_count{phase=\"").append(phase.name().toLowerCase())
+                    .append("\"} ").append(h.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Clears all counters and timers; gauges are left registered */
+    public void reset() {
+        for (LatencyHistogram h : timers.values())
+            h.reset();
+        for (LongAdder a : counters.values())
+            a.reset();
+        rejections.clear();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server under
+     * {@code blockchain:type=NodeMetrics,name=<name>}
+     */
+    public void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("blockchain:type=NodeMetrics,name=" + name));
+        } catch (JMException x) {
+            x.printStackTrace(System.err);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/** Management interface through which {@link NodeMetrics} is exposed over JMX */
+public interface NodeMetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getBlocksAccepted();
+
+    long getBlocksRejected();
+
+    long getTxsValidated();
+
+    long getSignatureVerifications();
+
+    long getUtxoSetSize();
+
+    long getBlockStateCount();
+
+    long getMempoolSize();
+
+    /** @return the 50th percentile of {@code BlockChain.addBlock} latency in microseconds */
+    double getAddBlockP50Micros();
+
+    /** @return the 99th percentile of {@code BlockChain.addBlock} latency in microseconds */
+    double getAddBlockP99Micros();
+
+    /** @return every metric in the text exposition format of {@link NodeMetrics#exportText()} */
+    String exportText();
+
+    void reset();
+}
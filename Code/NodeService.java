@@ -0,0 +1,439 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local node service that accepts block and transaction submissions and tip queries over a
+ * socket, in front of a {@link BlockHandler}.
+ * <p>
+ * Every connection has its own thread, which reads and decodes requests. Decoded requests go
+ * through one bounded queue to a single handler thread, which is the only thread calling into the
+ * {@code BlockHandler} while the service runs. The handler thread answers requests in the order
+ * they were queued, so responses on a connection arrive in request order.
+ * <p>
+ * A client may pipeline up to {@code maxInFlight} requests on a connection before reading
+ * responses. Backpressure comes from two limits:
+ * <ul>
+ * <li>A connection with that many requests unanswered stops reading, and TCP flow control then
+ * stops the client.</li>
+ * <li>When the queue is full, every connection stops reading until the handler thread catches
+ * up.</li>
+ * </ul>
+ * The handler thread never writes to a socket. It encodes each response and hands it to the
+ * connection's writer thread through a queue of {@code maxInFlight} responses, and a request's
+ * permit is returned once its response is queued. A client that reads what it is sent never has
+ * more than {@code maxInFlight} responses waiting. One that keeps sending without reading
+ * eventually blocks its writer on a full socket buffer and then fills the queue, and the
+ * connection is dropped; the handler thread and other connections do not wait for it.
+ * <p>
+ * Frames in both directions are an {@code int} length of the rest of the frame, then an
+ * {@code int} request id chosen by the client. A request continues with a type byte and its
+ * payload. A response continues with the ordinal of a {@link ValidationResult} and its payload.
+ * <ul>
+ * <li>{@link #SUBMIT_TX} is sent with a transaction in {@link WireFormat}. The response is the
+ * result of {@link BlockHandler#submitTx}.</li>
+ * <li>{@link #SUBMIT_BLOCK} is sent with a block. The response is the result of
+ * {@link BlockHandler#submitBlock}.</li>
+ * <li>{@link #GET_TIP} has no payload. The response is {@code VALID}, then the {@code int}
+ * height and the hash of the max height block.</li>
+ * </ul>
+ * A request that cannot be decoded or has an unknown type closes its connection. A frame buffer
+ * grows with the bytes that actually arrive, so a length alone commits no memory.
+ * <p>
+ * With {@link #setMempoolFile}, the transaction pool is dumped through {@link MempoolFile}
+ * periodically while requests change it, and once more when the service closes.
+ * <p>
+ * Java 17 has no virtual threads, so connection threads are platform threads with small stacks,
+ * two per connection, and at most {@code maxConnections} connections are open at a time;
+ * connections beyond that are closed as soon as they are accepted.
+ */
+public class NodeService implements Closeable {
+
+    public static final byte SUBMIT_TX = 1;
+    public static final byte SUBMIT_BLOCK = 2;
+    public static final byte GET_TIP = 3;
+
+    /** largest frame accepted from a client */
+    public static final int MAX_FRAME_LENGTH = 32 << 20;
+
+    private static final long CONNECTION_STACK_SIZE = 256 << 10;
+
+    /** size a frame buffer starts at, doubling as bytes arrive up to the frame length */
+    private static final int INITIAL_FRAME_BUFFER = 4096;
+
+    private final BlockHandler handler;
+    private final ServerSocket serverSocket;
+    private final int maxInFlight;
+    private final int maxConnections;
+    private final BlockingQueue<Request> queue;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final Thread acceptThread;
+    private final Thread handlerThread;
+    private volatile boolean closed;
+    private volatile File mempoolFile;
+    private volatile long dumpIntervalNanos;
+    /** writes periodic mempool dumps, so that the handler thread only takes the snapshot */
+    private ExecutorService dumper;
+
+    /**
+     * Starts a service on an ephemeral loopback port, allowing 64 requests in flight per connection
+     * and 1024 connections
+     */
+    public NodeService(BlockHandler handler) throws IOException {
+        this(handler, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64, 4096, 1024);
+    }
+
+    /**
+     * Starts a service listening on {@code address}; from then on only the service may use
+     * {@code handler}, until it is closed
+     *
+     * @param maxInFlight requests a connection may send before it has to read their responses
+     * @param queueCapacity requests waiting for the handler thread before connections stop reading
+     * @param maxConnections connections open at a time, each with a reader and a writer thread
+     */
+    public NodeService(BlockHandler handler, InetSocketAddress address, int maxInFlight, int queueCapacity,
+            int maxConnections) throws IOException {
+        this.handler = handler;
+        this.maxInFlight = maxInFlight;
+        this.maxConnections = maxConnections;
+        queue = new ArrayBlockingQueue<Request>(queueCapacity);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address, 1024);
+        NodeMetrics metrics = handler.getBlockChain().getMetrics();
+        metrics.registerGauge("service_connections", () -> connectionCount.get());
+        metrics.registerGauge("service_queue_depth", () -> queue.size());
+        handlerThread = new Thread(this::handleRequests, "node-service-handler");
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+        acceptThread = new Thread(this::acceptConnections, "node-service-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /** @return the address the service listens on */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /** @return the number of open connections */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Dumps the transaction pool to {@code file} every {@code intervalMillis} while requests are
+     * handled, and when the service closes. Call it before the first request.
+     */
+    public synchronized void setMempoolFile(File file, long intervalMillis) {
+        if (dumper == null)
+            dumper = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "node-service-mempool-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+        dumpIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mempoolFile = file;
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and stops the handler thread and the
+     * connection threads, then dumps the transaction pool if a mempool file is set
+     */
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // closing a connection interrupts its threads, which may wait for the handler thread
+        List<Connection> open = new ArrayList<Connection>(connections);
+        for (Connection connection : open)
+            connection.close();
+        handlerThread.interrupt();
+        try {
+            handlerThread.join();
+            for (Connection connection : open) {
+                connection.reader.join();
+                connection.writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        synchronized (this) {
+            if (dumper == null)
+                return;
+            dumper.shutdown();
+            try {
+                dumper.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the handler thread has stopped, so the pool can be read here
+        MempoolFile.save(mempoolFile, handler.getBlockChain().getTransactionPool().getTransactions());
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (connectionCount.get() >= maxConnections) {
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connectionCount.incrementAndGet();
+                connection.reader.start();
+                connection.writer.start();
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void handleRequests() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        long lastDump = System.nanoTime();
+        // whether requests were handled since the last dump; nothing else changes the pool
+        boolean dirty = false;
+        while (true) {
+            Request request;
+            try {
+                if (dirty && mempoolFile != null) {
+                    long wait = lastDump + dumpIntervalNanos - System.nanoTime();
+                    request = queue.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                } else {
+                    request = queue.take();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (dirty && mempoolFile != null && System.nanoTime() - lastDump >= dumpIntervalNanos) {
+                dumpMempool();
+                lastDump = System.nanoTime();
+                dirty = false;
+            }
+            if (request == null)
+                continue;
+            dirty = true;
+            payload.reset();
+            ValidationResult result;
+            try {
+                result = handle(request, new DataOutputStream(payload));
+            } catch (IOException e) {
+                // writing to a ByteArrayOutputStream does not fail
+                throw new IllegalStateException(e);
+            } catch (RuntimeException e) {
+                // a request the chain cannot handle must not stop the service
+                e.printStackTrace(System.err);
+                request.connection.close();
+                continue;
+            }
+            request.connection.respond(request.id, result, payload);
+        }
+    }
+
+    /** Snapshots the transaction pool and has the dumper write it */
+    private void dumpMempool() {
+        File file = mempoolFile;
+        List<Transaction> txs = handler.getBlockChain().getTransactionPool().getTransactions();
+        dumper.execute(() -> {
+            try {
+                MempoolFile.save(file, txs);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        });
+    }
+
+    private ValidationResult handle(Request request, DataOutputStream payload) throws IOException {
+        switch (request.type) {
+        case SUBMIT_TX:
+            return handler.submitTx((Transaction) request.body);
+        case SUBMIT_BLOCK:
+            return handler.submitBlock((Block) request.body);
+        default:
+            BlockChain blockChain = handler.getBlockChain();
+            payload.writeInt(blockChain.getBlockchainHeight());
+            payload.write(blockChain.getMaxHeightBlock().getHash());
+            return ValidationResult.VALID;
+        }
+    }
+
+    private static class Request {
+        final Connection connection;
+        final int id;
+        final byte type;
+        final Object body;
+
+        Request(Connection connection, int id, byte type, Object body) {
+            this.connection = connection;
+            this.id = id;
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        /** encoded response frames waiting for the writer thread */
+        private final BlockingQueue<byte[]> responses = new ArrayBlockingQueue<byte[]>(maxInFlight);
+        private final Thread reader;
+        private final Thread writer;
+        private volatile boolean open = true;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            reader = new Thread(null, this::readRequests, "node-service-connection", CONNECTION_STACK_SIZE);
+            reader.setDaemon(true);
+            writer = new Thread(null, this::writeResponses, "node-service-writer", CONNECTION_STACK_SIZE);
+            writer.setDaemon(true);
+        }
+
+        void readRequests() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (open) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < 5 || length > MAX_FRAME_LENGTH)
+                        throw new IOException("bad frame length " + length);
+                    byte[] frame = readFrame(in, length);
+                    DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame));
+                    int id = body.readInt();
+                    byte type = body.readByte();
+                    Object decoded;
+                    if (type == SUBMIT_TX)
+                        decoded = WireFormat.readTransaction(body);
+                    else if (type == SUBMIT_BLOCK)
+                        decoded = WireFormat.readBlock(body);
+                    else if (type == GET_TIP)
+                        decoded = null;
+                    else
+                        throw new IOException("unknown request type " + type);
+                    inFlight.acquire();
+                    queue.put(new Request(this, id, type, decoded));
+                }
+            } catch (SocketException e) {
+                // closed by the client or by close()
+            } catch (IOException e) {
+                if (open && !closed)
+                    System.err.println("node service: dropping connection: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /** Reads {@code length} bytes, growing the buffer only as far as the bytes received */
+        private byte[] readFrame(DataInputStream in, int length) throws IOException {
+            byte[] frame = new byte[Math.min(length, INITIAL_FRAME_BUFFER)];
+            int received = 0;
+            while (true) {
+                in.readFully(frame, received, frame.length - received);
+                received = frame.length;
+                if (received == length)
+                    return frame;
+                frame = Arrays.copyOf(frame, (int) Math.min((long) received * 2, length));
+            }
+        }
+
+        /**
+         * Queues a response for the writer thread without blocking; a connection whose queue is
+         * full is not reading its responses and is dropped
+         */
+        void respond(int id, ValidationResult result, ByteArrayOutputStream payload) {
+            byte[] frame = new byte[9 + payload.size()];
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            buffer.putInt(5 + payload.size());
+            buffer.putInt(id);
+            buffer.put((byte) result.ordinal());
+            System.arraycopy(payload.toByteArray(), 0, frame, 9, payload.size());
+            if (!responses.offer(frame)) {
+                if (open && !closed)
+                    System.err.println("node service: dropping connection: responses not read");
+                close();
+            }
+            inFlight.release();
+        }
+
+        /** Writes queued responses, flushing whenever the queue runs empty */
+        void writeResponses() {
+            try {
+                while (open) {
+                    byte[] frame = responses.poll();
+                    if (frame == null) {
+                        out.flush();
+                        frame = responses.take();
+                    }
+                    out.write(frame);
+                }
+            } catch (IOException e) {
+                // closed by the client or by close()
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (!open)
+                return;
+            open = false;
+            if (connections.remove(this))
+                connectionCount.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            // wakes the reader if it waits for an in-flight permit or for room in the queue, and
+            // the writer if it waits for a response
+            if (Thread.currentThread() != reader)
+                reader.interrupt();
+            if (Thread.currentThread() != writer)
+                writer.interrupt();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A hash map from outpoints, a transaction hash and an output index, to values, specialized for the
+ * UTXO set. Hashes are stored flat in a {@code long[]}, four words per slot, next to a tag word per
+ * slot that holds the output index and 31 bits of the hash. Collisions are resolved by linear
+ * probing over the tags, so a miss rarely reads more than one cache line, and deletion shifts
+ * entries back rather than leaving tombstones. There are no per-entry objects, lookups can be made
+ * straight from a hash held in a {@code byte[]} without allocating, and copying a map copies three
+ * arrays.
+ * <p>
+ * Not thread-safe; a map that is no longer changed can be read by any number of threads.
+ */
+public class OutpointMap<V> {
+
+    private static final int WORDS = 4;
+    /**
+     * a tag holds the output index in its low 32 bits, this flag, and the top 31 bits of the first
+     * word of the hash; unused slots have a tag of 0
+     */
+    private static final long OCCUPIED = 1L << 32;
+    private static final long HASH_BITS = -1L << 33;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
+    private long[] tags;
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int shift;
+    private int size;
+    private int resizeAt;
+
+    /** Creates an empty map */
+    public OutpointMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates an empty map that holds {@code expectedSize} entries without resizing */
+    public OutpointMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /** Creates a map with the same entries as {@code other} */
+    public OutpointMap(OutpointMap<V> other) {
+        tags = other.tags.clone();
+        keys = other.keys.clone();
+        values = other.values.clone();
+        mask = other.mask;
+        shift = other.shift;
+        size = other.size;
+        resizeAt = other.resizeAt;
+    }
+
+    /** @return the number of entries in the map */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of slots in the map, of which at most three quarters are in use */
+    public int getCapacity() {
+        return tags.length;
+    }
+
+    /** @return the value of {@code utxo}, or null if it is not in the map */
+    public V get(UTXO utxo) {
+        return get(utxo.getTxId(), utxo.getIndex());
+    }
+
+    /** @return the value of output {@code index} of transaction {@code txId}, or null */
+    @SuppressWarnings("unchecked")
+    public V get(Hash256 txId, int index) {
+        int slot = find(txId.w0, txId.w1, txId.w2, txId.w3, index);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /**
+     * @return the value of output {@code index} of the transaction whose hash is the 32 bytes of
+     *         {@code hash} starting at {@code offset}, or null; does not allocate
+     */
+    @SuppressWarnings("unchecked")
+    public V get(byte[] hash, int offset, int index) {
+        int slot = find((long) LONG_BE.get(hash, offset), (long) LONG_BE.get(hash, offset + 8),
+                (long) LONG_BE.get(hash, offset + 16), (long) LONG_BE.get(hash, offset + 24), index);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /** @return true if {@code utxo} is in the map */
+    public boolean containsKey(UTXO utxo) {
+        Hash256 txId = utxo.getTxId();
+        return find(txId.w0, txId.w1, txId.w2, txId.w3, utxo.getIndex()) >= 0;
+    }
+
+    /**
+     * Maps {@code utxo} to {@code value}, which must not be null
+     *
+     * @return the value {@code utxo} was mapped to before, or null
+     */
+    public V put(UTXO utxo, V value) {
+        return put(utxo.getTxId(), utxo.getIndex(), value);
+    }
+
+    /**
+     * Maps output {@code index} of transaction {@code txId} to {@code value}; see
+     * {@link #put(UTXO, Object)}
+     */
+    @SuppressWarnings("unchecked")
+    public V put(Hash256 txId, int index, V value) {
+        if (value == null)
+            throw new NullPointerException("value");
+        long tag = tagOf(txId.w0, index);
+        int slot = slotOf(tag);
+        while (true) {
+            long t = tags[slot];
+            int k = slot * WORDS;
+            if (t == 0) {
+                tags[slot] = tag;
+                keys[k] = txId.w0;
+                keys[k + 1] = txId.w1;
+                keys[k + 2] = txId.w2;
+                keys[k + 3] = txId.w3;
+                values[slot] = value;
+                if (++size > resizeAt)
+                    allocateAndRehash(tags.length * 2);
+                return null;
+            }
+            if (t == tag && keys[k] == txId.w0 && keys[k + 1] == txId.w1 && keys[k + 2] == txId.w2
+                    && keys[k + 3] == txId.w3) {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes {@code utxo} from the map
+     *
+     * @return the value {@code utxo} was mapped to, or null if it was not in the map
+     */
+    public V remove(UTXO utxo) {
+        return remove(utxo.getTxId(), utxo.getIndex());
+    }
+
+    /** Removes output {@code index} of transaction {@code txId}; see {@link #remove(UTXO)} */
+    @SuppressWarnings("unchecked")
+    public V remove(Hash256 txId, int index) {
+        int slot = find(txId.w0, txId.w1, txId.w2, txId.w3, index);
+        if (slot < 0)
+            return null;
+        V old = (V) values[slot];
+        // shift later entries of the probe run back so that lookups need no tombstones
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        long t;
+        while ((t = tags[next]) != 0) {
+            int home = slotOf(t);
+            // move the entry unless its home lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                tags[hole] = t;
+                System.arraycopy(keys, next * WORDS, keys, hole * WORDS, WORDS);
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tags[hole] = 0;
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    /** Removes all entries */
+    public void clear() {
+        Arrays.fill(tags, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /** Calls {@code action} on every entry, in no particular order */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<UTXO, ? super V> action) {
+        for (int slot = 0; slot < values.length; slot++)
+            if (tags[slot] != 0)
+                action.accept(keyAt(slot), (V) values[slot]);
+    }
+
+    /**
+     * @return a spliterator over immutable copies of the entries, which splits by slot range. The
+     *         map must not be changed while it is in use.
+     */
+    public Spliterator<Map.Entry<UTXO, V>> spliterator() {
+        return new EntrySpliterator(0, values.length);
+    }
+
+    private UTXO keyAt(int slot) {
+        int k = slot * WORDS;
+        return new UTXO(new Hash256(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]), (int) tags[slot]);
+    }
+
+    private int find(long w0, long w1, long w2, long w3, int index) {
+        long tag = tagOf(w0, index);
+        int slot = slotOf(tag);
+        while (true) {
+            long t = tags[slot];
+            if (t == 0)
+                return -1;
+            int k = slot * WORDS;
+            if (t == tag && keys[k] == w0 && keys[k + 1] == w1 && keys[k + 2] == w2 && keys[k + 3] == w3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static long tagOf(long w0, int index) {
+        return (w0 & HASH_BITS) | OCCUPIED | (index & 0xFFFFFFFFL);
+    }
+
+    /** @return the home slot of an entry, which only depends on its tag, so moves read no keys */
+    private int slotOf(long tag) {
+        // Fibonacci hashing mixes the index into the hash bits, so that outputs of one transaction
+        // do not share a probe run
+        return (int) ((tag * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        // keep the load factor at or below 3/4
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 4 / 3 + 1);
+        if (needed > MAX_CAPACITY)
+            throw new IllegalArgumentException("too many entries: " + expectedSize);
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        tags = new long[capacity];
+        keys = new long[capacity * WORDS];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private void allocateAndRehash(int capacity) {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalStateException("map is full");
+        long[] oldTags = tags;
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldTags.length; slot++) {
+            long t = oldTags[slot];
+            if (t == 0)
+                continue;
+            int to = slotOf(t);
+            while (tags[to] != 0)
+                to = (to + 1) & mask;
+            tags[to] = t;
+            System.arraycopy(oldKeys, slot * WORDS, keys, to * WORDS, WORDS);
+            values[to] = oldValues[slot];
+        }
+    }
+
+    private class EntrySpliterator implements Spliterator<Map.Entry<UTXO, V>> {
+
+        private int slot;
+        private final int end;
+
+        EntrySpliterator(int slot, int end) {
+            this.slot = slot;
+            this.end = end;
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, V>> action) {
+            while (slot < end) {
+                int s = slot++;
+                if (tags[s] != 0) {
+                    action.accept(new AbstractMap.SimpleImmutableEntry<UTXO, V>(keyAt(s), (V) values[s]));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Spliterator<Map.Entry<UTXO, V>> trySplit() {
+            int mid = (slot + end) >>> 1;
+            if (end - slot < 1024)
+                return null;
+            EntrySpliterator prefix = new EntrySpliterator(slot, mid);
+            slot = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            // entries are spread evenly over the slots
+            return (long) size * (end - slot) / values.length;
+        }
+
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+}
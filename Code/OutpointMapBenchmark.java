@@ -0,0 +1,152 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares {@link OutpointMap} with the {@code HashMap<UTXO, ...>} it replaced in {@link UTXOPool}:
+ * the time per insert, per lookup of a present and of an absent outpoint, per lookup straight from
+ * a hash held in a {@code byte[]} (which needs a new {@code UTXO} for the {@code HashMap}), per
+ * remove, and for a mix of one insert, two lookups and one remove, as a block applies them.
+ * <p>
+ * Usage: {@code java -Xmx6g OutpointMapBenchmark [entries]}; the default is 10M entries.
+ */
+public class OutpointMapBenchmark {
+
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        Random random = new Random(42);
+        byte[] hashes = new byte[entries * Hash256.LENGTH];
+        random.nextBytes(hashes);
+        UTXO[] present = new UTXO[entries];
+        UTXO[] absent = new UTXO[entries];
+        int[] indices = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            // most transactions have one or two outputs
+            indices[i] = random.nextInt(2);
+            Hash256 txId = Hash256.of(Arrays.copyOfRange(hashes, i * 32, i * 32 + 32));
+            present[i] = new UTXO(txId, indices[i]);
+            absent[i] = new UTXO(txId, indices[i] + 2);
+        }
+        // look outpoints up in a different order than they were inserted in, as a block does, so
+        // that neither map gains from having allocated its entries in lookup order
+        int[] order = new int[entries];
+        for (int i = 0; i < entries; i++)
+            order[i] = i;
+        for (int i = entries - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("round %d, %d entries%n", round, entries);
+            runHashMap(entries, hashes, present, absent, indices, order);
+            runOutpointMap(entries, hashes, present, absent, indices, order);
+        }
+    }
+
+    private static void runHashMap(int entries, byte[] hashes, UTXO[] present, UTXO[] absent, int[] indices,
+            int[] order) {
+        HashMap<UTXO, Object> map = new HashMap<UTXO, Object>();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            map.put(present[i], VALUE);
+        long insert = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (map.get(present[order[i]]) != null)
+                found++;
+        long hit = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (map.get(absent[order[i]]) != null)
+                found++;
+        long miss = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            int o = order[i];
+            if (map.get(new UTXO(Arrays.copyOfRange(hashes, o * 32, o * 32 + 32), indices[o])) != null)
+                found++;
+        }
+        long fromBytes = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (order[i] % 2 == 0)
+                map.remove(present[order[i]]);
+        long remove = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i + 1 < entries; i += 2) {
+            map.put(present[order[i]], VALUE);
+            if (map.get(present[order[i + 1]]) != null)
+                found++;
+            if (map.get(absent[order[i]]) != null)
+                found++;
+            map.remove(present[order[i + 1]]);
+        }
+        long mixed = System.nanoTime() - start;
+        report("HashMap", entries, insert, hit, miss, fromBytes, remove, mixed, found);
+    }
+
+    private static void runOutpointMap(int entries, byte[] hashes, UTXO[] present, UTXO[] absent, int[] indices,
+            int[] order) {
+        OutpointMap<Object> map = new OutpointMap<Object>();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            map.put(present[i], VALUE);
+        long insert = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (map.get(present[order[i]]) != null)
+                found++;
+        long hit = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (map.get(absent[order[i]]) != null)
+                found++;
+        long miss = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (map.get(hashes, order[i] * 32, indices[order[i]]) != null)
+                found++;
+        long fromBytes = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+            if (order[i] % 2 == 0)
+                map.remove(present[order[i]]);
+        long remove = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i + 1 < entries; i += 2) {
+            map.put(present[order[i]], VALUE);
+            if (map.get(present[order[i + 1]]) != null)
+                found++;
+            if (map.get(absent[order[i]]) != null)
+                found++;
+            map.remove(present[order[i + 1]]);
+        }
+        long mixed = System.nanoTime() - start;
+        report("OutpointMap", entries, insert, hit, miss, fromBytes, remove, mixed, found);
+    }
+
+    private static void report(String name, int entries, long insert, long hit, long miss, long fromBytes,
+            long remove, long mixed, int found) {
+        System.out.printf("  %-11s insert %5.0f ns, hit %5.0f ns, miss %5.0f ns, from bytes %5.0f ns, "
+                + "remove %5.0f ns, mixed %5.0f ns/op (found %d)%n", name, (double) insert / entries,
+                (double) hit / entries, (double) miss / entries, (double) fromBytes / entries,
+                (double) remove / (entries / 2), (double) mixed / (entries / 2), found);
+    }
+}
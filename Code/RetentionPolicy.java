@@ -0,0 +1,70 @@
+/**
+ * Controls which block states a {@code BlockChain} keeps in memory. Every retained block state
+ * holds a full UTXO pool, so the policy bounds them three ways:
+ * <ul>
+ * <li>the window depth: blocks at {@code height <= maxHeight - windowDepth} are dropped and no
+ * block may be added there (this is {@code BlockChain.CUT_OFF_AGE} by default),</li>
+ * <li>the maximum number of side branches kept alongside the main chain, and</li>
+ * <li>a heap budget for all retained block states, as {@link #estimateStateBytes} estimates.</li>
+ * </ul>
+ * When either of the last two is exceeded, side branches are evicted tip first in
+ * least-likely-to-win order: the lowest tip goes first and, among tips of equal height, the one
+ * that arrived last. Blocks on the main chain within the window are never evicted.
+ */
+public class RetentionPolicy {
+
+    /**
+     * heap used per slot of a pool's {@code OutpointMap} shards, used or free: an 8 byte tag, a 32
+     * byte hash and a 4 byte compressed reference to the output
+     */
+    public static final long BYTES_PER_SLOT = 44;
+    /** approximate heap used by a shard besides its slots: the map, its reference and arrays */
+    public static final long BYTES_PER_SHARD = 96;
+    /** approximate fixed heap used by a block state and its UTXO pool object */
+    public static final long BYTES_PER_STATE = 64;
+
+    /** keeps {@code BlockChain.CUT_OFF_AGE} blocks with no limit on side branches or memory */
+    public static final RetentionPolicy DEFAULT = new RetentionPolicy(BlockChain.CUT_OFF_AGE,
+            Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final int windowDepth;
+    private final int maxSideBranches;
+    private final long heapBudgetBytes;
+
+    public RetentionPolicy(int windowDepth, int maxSideBranches, long heapBudgetBytes) {
+        if (windowDepth < 1)
+            throw new IllegalArgumentException("windowDepth must be at least 1: " + windowDepth);
+        if (maxSideBranches < 0)
+            throw new IllegalArgumentException("maxSideBranches must not be negative: " + maxSideBranches);
+        if (heapBudgetBytes < 0)
+            throw new IllegalArgumentException("heapBudgetBytes must not be negative: " + heapBudgetBytes);
+        this.windowDepth = windowDepth;
+        this.maxSideBranches = maxSideBranches;
+        this.heapBudgetBytes = heapBudgetBytes;
+    }
+
+    public int getWindowDepth() {
+        return windowDepth;
+    }
+
+    public int getMaxSideBranches() {
+        return maxSideBranches;
+    }
+
+    public long getHeapBudgetBytes() {
+        return heapBudgetBytes;
+    }
+
+    /**
+     * @return the approximate heap retained by a block state whose UTXO pool is {@code utxoPool},
+     *         which is null for a block not validated yet. Transaction outputs are shared between
+     *         the pools of parent and child states, so only the pool's own shards are counted, by
+     *         their capacity, as a map's arrays are allocated in full whether its slots are used
+     *         or not.
+     */
+    public long estimateStateBytes(UTXOPool utxoPool) {
+        if (utxoPool == null)
+            return BYTES_PER_STATE;
+        return BYTES_PER_STATE + UTXOPool.SHARDS * BYTES_PER_SHARD + BYTES_PER_SLOT * utxoPool.getCapacity();
+    }
+}
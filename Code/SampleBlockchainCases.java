@@ -1,11 +1,36 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 public class SampleBlockchainCases {
 
@@ -14,6 +39,26 @@ public class SampleBlockchainCases {
 		try {
 			case1();
 			case2();
+			case3();
+			case4();
+			case5();
+			case6();
+			case7();
+			case8();
+			case9();
+			case10();
+			case11();
+			case12();
+			case13();
+			case14();
+			case15();
+			case16();
+			case17();
+			case18();
+			case19();
+			case20();
+			case21();
+			case22();
 		}
 		catch(Exception e) {
 			e.printStackTrace();
@@ -49,6 +94,11 @@ public class SampleBlockchainCases {
 		if(!isSuccessful) {
 			throw new RuntimeException("Unexpected failure");
 		}
+		// The block's header proves that tx is in the block
+		if(!MerkleTree.verifyBranch(tx.getHash(), block.getMerkleIndex(tx), block.getMerkleBranch(tx),
+				block.getHeader().getMerkleRoot())) {
+			throw new RuntimeException("Merkle branch of tx does not verify");
+		}
 		System.out.println("Case 1 is OK");
 	}
 	
@@ -96,6 +146,1292 @@ public class SampleBlockchainCases {
 	
 	
 
+	private static void case3()  throws Exception {
+		
+		// This case checks that enabled metrics count accepted and rejected blocks
+		
+		Block genesisBlock = new Block(null, generateNewKeyPair().getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		blockChain.getMetrics().setEnabled(true);
+		
+		Block block = new Block(genesisBlock.getHash(), generateNewKeyPair().getPublic());
+		block.finalize();
+		blockHandler.processBlock(block);
+		Block orphan = new Block(new byte[32], generateNewKeyPair().getPublic());
+		orphan.finalize();
+		blockHandler.processBlock(orphan);
+		
+		NodeMetrics metrics = blockChain.getMetrics();
+		if(metrics.getBlocksAccepted() != 1 || metrics.getBlocksRejected() != 1
+				|| metrics.getRejections().get("unknown_parent") != 1 || metrics.getBlockStateCount() != 2) {
+			throw new RuntimeException("Unexpected metrics:\n" + metrics.exportText());
+		}
+		// Gauges pulled from another thread read the values the chain published
+		long[] pulled = new long[2];
+		Thread puller = new Thread(() -> {
+			pulled[0] = metrics.getUtxoSetSize();
+			pulled[1] = metrics.getMempoolSize();
+		});
+		puller.start();
+		puller.join();
+		if(pulled[0] != 2 || pulled[1] != 0) {
+			throw new RuntimeException("Unexpected gauges:\n" + metrics.exportText());
+		}
+		System.out.println("Case 3 is OK");	
+	}
+
+	private static void case4()  throws Exception {
+		
+		// This case checks headers ahead of their blocks
+		
+		Block genesisBlock = new Block(null, generateNewKeyPair().getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		
+		Block block2 = new Block(genesisBlock.getHash(), generateNewKeyPair().getPublic(), 2);
+		block2.finalize();
+		Block block3 = new Block(block2.getHash(), generateNewKeyPair().getPublic(), 3);
+		block3.finalize();
+		Block badHeight = new Block(block2.getHash(), generateNewKeyPair().getPublic(), 5);
+		badHeight.finalize();
+		
+		if(blockHandler.processHeader(block2.getHeader()) != ValidationResult.VALID
+				|| blockHandler.processHeader(block3.getHeader()) != ValidationResult.VALID
+				|| blockHandler.processHeader(badHeight.getHeader()) != ValidationResult.BAD_HEIGHT) {
+			throw new RuntimeException("Unexpected header result");
+		}
+		if(blockChain.getBestHeader().getHeight() != 3 || blockChain.getBlockchainHeight() != 1) {
+			throw new RuntimeException("Headers should lead the blocks");
+		}
+		// The body of block3 cannot be connected before the body of block2
+		if(blockHandler.submitBlock(block3) != ValidationResult.UNKNOWN_PARENT
+				|| !blockHandler.processBlock(block2) || !blockHandler.processBlock(block3)) {
+			throw new RuntimeException("Unexpected failure");
+		}
+		// A transaction that is not finalized cannot be committed to
+		try {
+			new Block(block3.getHash(), generateNewKeyPair().getPublic(), 4).addTransaction(new Transaction());
+			throw new RuntimeException("An unfinalized transaction should not be added");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+		// Headers that cost no work are only kept up to a limit
+		byte[] prevHash = block3.getHash();
+		PublicKey key = generateNewKeyPair().getPublic();
+		for(int i = 0; i < BlockChain.MAX_HEADERS; i++) {
+			Block block = new Block(prevHash, key, 4 + i);
+			block.finalize();
+			if(blockHandler.processHeader(block.getHeader()) != ValidationResult.VALID) {
+				throw new RuntimeException("Header " + i + " should be accepted");
+			}
+			prevHash = block.getHash();
+		}
+		Block extra = new Block(prevHash, key, 4 + BlockChain.MAX_HEADERS);
+		extra.finalize();
+		if(blockHandler.processHeader(extra.getHeader()) != ValidationResult.TOO_MANY_HEADERS
+				|| blockChain.headersMap.size() != BlockChain.MAX_HEADERS) {
+			throw new RuntimeException("Headers should be bounded");
+		}
+		System.out.println("Case 4 is OK");	
+	}
+
+	private static void case5()  throws Exception {
+		
+		// This case checks that a retention policy without side branches evicts forks
+		
+		Block genesisBlock = new Block(null, generateNewKeyPair().getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock, new RetentionPolicy(3, 0, Long.MAX_VALUE));
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		
+		Block mainBlock = new Block(genesisBlock.getHash(), generateNewKeyPair().getPublic());
+		mainBlock.finalize();
+		Block forkBlock = new Block(genesisBlock.getHash(), generateNewKeyPair().getPublic());
+		forkBlock.finalize();
+		Block onFork = new Block(forkBlock.getHash(), generateNewKeyPair().getPublic());
+		onFork.finalize();
+		
+		if(!blockHandler.processBlock(mainBlock) || !blockHandler.processBlock(forkBlock)) {
+			throw new RuntimeException("Unexpected failure");
+		}
+		// The fork lost to the earlier block at the same height, so it has been evicted
+		if(blockHandler.submitBlock(onFork) != ValidationResult.UNKNOWN_PARENT) {
+			throw new RuntimeException("The fork should have been evicted");
+		}
+		
+		Block prevBlock = mainBlock;
+		for(int i = 0; i < 5; i++) {
+			Block block = new Block(prevBlock.getHash(), generateNewKeyPair().getPublic());
+			block.finalize();
+			if(!blockHandler.processBlock(block)) {
+				throw new RuntimeException("Unexpected failure");
+			}
+			prevBlock = block;
+		}
+		// Only the window of 3 blocks at the tip is retained
+		if(blockChain.getMetrics().getBlockStateCount() != 4) {
+			throw new RuntimeException("Unexpected number of block states: " + blockChain.getMetrics().getBlockStateCount());
+		}
+		System.out.println("Case 5 is OK");	
+	}
+
+	private static void case6()  throws Exception {
+		
+		// This case checks the address and transaction indexes across a reorganization
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		AddressIndex index = blockChain.getAddressIndex();
+		blockChain.setTxIndex(new TxIndex());
+		
+		Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+		Transaction tx = new Transaction();
+		tx.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx.addOutput(Block.COINBASE, keyPair2.getPublic());
+		tx.addSignature(sign(keyPair1.getPrivate(), tx.getRawDataToSign(0)), 0);
+		tx.finalize();
+		block.addTransaction(tx);
+		block.finalize();
+		blockHandler.processBlock(block);
+		if(index.getBalance(keyPair1.getPublic()) != 0 || index.getBalance(keyPair2.getPublic()) != 2 * Block.COINBASE
+				|| index.getCoins(keyPair2.getPublic()).size() != 2) {
+			throw new RuntimeException("Unexpected balances after connecting the block");
+		}
+		TxIndex.Location location = blockChain.getTxIndex().get(tx.getHash());
+		if(location == null || location.getHeight() != 2 || location.getIndex() != 1
+				|| blockChain.getConfirmedTransaction(tx.getHash()) != tx) {
+			throw new RuntimeException("tx should be indexed in the block");
+		}
+		
+		// A longer branch on the genesis block without tx takes over the main chain
+		Block fork1 = new Block(genesisBlock.getHash(), generateNewKeyPair().getPublic());
+		fork1.finalize();
+		Block fork2 = new Block(fork1.getHash(), generateNewKeyPair().getPublic());
+		fork2.finalize();
+		blockHandler.processBlock(fork1);
+		blockHandler.processBlock(fork2);
+		if(index.getBalance(keyPair1.getPublic()) != Block.COINBASE || index.getBalance(keyPair2.getPublic()) != 0
+				|| index.getAddressCount() != 3) {
+			throw new RuntimeException("Unexpected balances after the reorganization");
+		}
+		if(blockChain.getTxIndex().get(tx.getHash()) != null || blockChain.getTxIndex().size() != 2) {
+			throw new RuntimeException("tx should no longer be indexed");
+		}
+		System.out.println("Case 6 is OK");	
+	}
+
+	private static void case7()  throws Exception {
+		
+		// This case checks that replicas fed the same blocks agree on their UTXO set commitments
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain replica1 = new BlockChain(genesisBlock);
+		BlockChain replica2 = new BlockChain(genesisBlock);
+		
+		Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+		Transaction tx = new Transaction();
+		tx.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx.addOutput(Block.COINBASE / 2, keyPair2.getPublic());
+		tx.addOutput(Block.COINBASE / 2, keyPair1.getPublic());
+		tx.addSignature(sign(keyPair1.getPrivate(), tx.getRawDataToSign(0)), 0);
+		tx.finalize();
+		block.addTransaction(tx);
+		block.finalize();
+		if(!replica1.addBlock(block) || !replica2.addBlock(block)) {
+			throw new RuntimeException("Unexpected failure");
+		}
+		
+		if(UtxoCommitment.findDivergence(replica1.getMainChainCommitments(), replica2.getMainChainCommitments()) != null
+				|| replica1.getMainChainCommitments().size() != 2) {
+			throw new RuntimeException("Replicas should agree");
+		}
+		
+		// The same UTXOs added in another order form the same set
+		UTXOPool snapshot = new UTXOPool();
+		snapshot.addUTXO(new UTXO(tx.getHash(), 1), tx.getOutput(1));
+		snapshot.addUTXO(new UTXO(block.getCoinbase().getHash(), 0), block.getCoinbase().getOutput(0));
+		snapshot.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+		if(!replica1.verifyUtxoSnapshot(block.getHash(), snapshot)) {
+			throw new RuntimeException("The snapshot should match the commitment");
+		}
+		snapshot.removeUTXO(new UTXO(tx.getHash(), 1));
+		if(replica1.verifyUtxoSnapshot(block.getHash(), snapshot)) {
+			throw new RuntimeException("The snapshot should no longer match the commitment");
+		}
+		System.out.println("Case 7 is OK");	
+	}
+
+	private static void case8()  throws Exception {
+		
+		// This case submits a block and transactions to a node service over loopback
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockHandler blockHandler = new BlockHandler(new BlockChain(genesisBlock));
+		
+		Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic(), 2);
+		Transaction tx = new Transaction();
+		tx.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx.addOutput(Block.COINBASE, keyPair2.getPublic());
+		tx.addSignature(sign(keyPair1.getPrivate(), tx.getRawDataToSign(0)), 0);
+		tx.finalize();
+		block.addTransaction(tx);
+		block.finalize();
+		
+		Transaction bad = new Transaction();
+		bad.addOutput(-1, keyPair1.getPublic());
+		bad.finalize();
+		
+		try (NodeService service = new NodeService(blockHandler);
+				NodeClient client = new NodeClient(service.getAddress())) {
+			// pipeline all requests before reading any response
+			client.sendTx(bad);
+			client.sendBlock(block);
+			client.sendGetTip();
+			client.flush();
+			if(client.receive().result != ValidationResult.NEGATIVE_OUTPUT
+					|| client.receive().result != ValidationResult.VALID) {
+				throw new RuntimeException("Unexpected results");
+			}
+			NodeClient.Response tip = client.receive();
+			byte[] tipHash = new byte[32];
+			if(tip.payload.readInt() != 2) {
+				throw new RuntimeException("The block should be the new tip");
+			}
+			tip.payload.readFully(tipHash);
+			if(!Arrays.equals(tipHash, block.getHash())) {
+				throw new RuntimeException("The tip should have the block's hash");
+			}
+			
+			// A client that keeps sending without reading is dropped without stalling the others
+			try (Socket greedy = new Socket()) {
+				greedy.setReceiveBufferSize(4096);
+				greedy.connect(service.getAddress());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(greedy.getOutputStream()));
+				try {
+					for(int i = 0; i < 1000000; i++) {
+						out.writeInt(5);
+						out.writeInt(i);
+						out.writeByte(NodeService.GET_TIP);
+					}
+					out.flush();
+				} catch (IOException x) {
+					// dropped while sending
+				}
+				long deadline = System.currentTimeMillis() + 10000;
+				while(service.getConnectionCount() != 1 && System.currentTimeMillis() < deadline) {
+					Thread.sleep(1);
+				}
+				if(service.getConnectionCount() != 1 || client.getTipHeight() != 2) {
+					throw new RuntimeException("The client not reading should be dropped");
+				}
+			}
+		}
+		
+		// Connections beyond the limit are closed, and close() stops a reader waiting in a frame
+		NodeService service = new NodeService(blockHandler,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64, 16, 1);
+		try (Socket first = new Socket()) {
+			first.connect(service.getAddress());
+			DataOutputStream out = new DataOutputStream(first.getOutputStream());
+			out.writeInt(NodeService.MAX_FRAME_LENGTH);
+			out.writeInt(1);
+			out.flush();
+			while(service.getConnectionCount() != 1) {
+				Thread.sleep(1);
+			}
+			try (Socket second = new Socket()) {
+				second.connect(service.getAddress());
+				if(second.getInputStream().read() != -1) {
+					throw new RuntimeException("The connection over the limit should be closed");
+				}
+			}
+			service.close();
+			if(service.getConnectionCount() != 0) {
+				throw new RuntimeException("Closing the service should close its connections");
+			}
+		}
+		System.out.println("Case 8 is OK");	
+	}
+
+	private static void case9()  throws Exception {
+		
+		// This case checks proof of work on a chain that requires it
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		blockChain.setRequiredWork(12);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		
+		// The midstate hash of a nonce is the hash of the header with that nonce
+		Block block = new Block(genesisBlock.getHash(), keyPair1.getPublic(), 2);
+		block.setBits(12);
+		block.setNonce(12345);
+		block.finalize();
+		Sha256Midstate sha = new Sha256Midstate(block.getHeader().getRawPrefix());
+		if(!Arrays.equals(sha.hash(12345), block.getHash())) {
+			throw new RuntimeException("The midstate hash should match the header hash");
+		}
+		
+		// A block without enough work is rejected before anything else is checked
+		for (long nonce = 0; block.getHeader().hasValidWork(); nonce++) {
+			block.setNonce(nonce);
+			block.finalize();
+		}
+		if(blockChain.submitBlock(block) != ValidationResult.INSUFFICIENT_WORK) {
+			throw new RuntimeException("The block should lack work");
+		}
+		
+		try (Miner miner = new Miner(blockChain, 2)) {
+			long generation = miner.getGeneration();
+			Block mined = blockHandler.createBlock(keyPair1.getPublic(), miner);
+			if(mined == null || !mined.getHeader().hasValidWork() || blockChain.getBlockchainHeight() != 2) {
+				throw new RuntimeException("The mined block should be added");
+			}
+			
+			// A block assembled before the tip changed is not mined
+			Block stale = new Block(genesisBlock.getHash(), keyPair1.getPublic(), 2);
+			stale.setBits(12);
+			stale.finalize();
+			if(miner.mine(stale, generation).found) {
+				throw new RuntimeException("The search should be cancelled by the earlier tip change");
+			}
+			
+		}
+		
+		// The handler keeps one miner, and another thread can stop its search without touching the
+		// chain
+		if(blockHandler.createBlock(keyPair1.getPublic()) == null || blockChain.getBlockchainHeight() != 3) {
+			throw new RuntimeException("The block mined by the handler's own miner should be added");
+		}
+		Miner handlerMiner = blockHandler.getMiner();
+		blockChain.setRequiredWork(255);
+		Block[] created = new Block[] {genesisBlock};
+		Thread mining = new Thread(() -> created[0] = blockHandler.createBlock(keyPair1.getPublic()));
+		mining.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(mining.isAlive() && System.currentTimeMillis() < deadline) {
+			// a cancellation before the block is assembled is not seen by its search, so repeat it
+			blockHandler.cancelMining();
+			mining.join(10);
+		}
+		if(mining.isAlive() || created[0] != null || blockHandler.getMiner() != handlerMiner
+				|| blockChain.getBlockchainHeight() != 3) {
+			throw new RuntimeException("Cancelling should stop the handler's search");
+		}
+		System.out.println("Case 9 is OK");	
+	}
+
+	private static void case10()  throws Exception {
+		
+		// This case pays to and spends from an Ed25519 key next to RSA keys
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair edKeyPair = SignatureScheme.ED25519.generateKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		
+		Block block = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE, edKeyPair.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		Transaction tx2 = new Transaction();
+		tx2.addInput(tx1.getHash(), 0);
+		tx2.addOutput(Block.COINBASE, keyPair1.getPublic());
+		Signature edSigner = SignatureScheme.ED25519.newSignature();
+		edSigner.initSign(edKeyPair.getPrivate());
+		edSigner.update(tx2.getRawDataToSign(0));
+		tx2.addSignature(edSigner.sign(), 0);
+		tx2.finalize();
+		// tx2 comes first, so its key is found among the block's outputs
+		block.addTransaction(tx2);
+		block.addTransaction(tx1);
+		block.finalize();
+		
+		if(tx1.getOutput(0).key.getEncoded().length != 33
+				|| KeyRegistry.decode(tx1.getOutput(0).key.getEncoded()) != tx1.getOutput(0).key) {
+			throw new RuntimeException("The key should be encoded in 33 bytes");
+		}
+		
+		// A key decoded from untrusted bytes is parsed, but not interned until an output pays it
+		byte[] unseen = SignatureScheme.ED25519.encode(SignatureScheme.ED25519.generateKeyPair().getPublic());
+		int interned = KeyRegistry.size();
+		if(KeyRegistry.decode(unseen).getId() != -1 || KeyRegistry.size() > interned) {
+			throw new RuntimeException("Decoding a key should not intern it");
+		}
+		if(!blockChain.addBlock(block)) {
+			throw new RuntimeException("The block should be valid");
+		}
+		System.out.println("Case 10 is OK");	
+	}
+
+	private static void case11()  throws Exception {
+		
+		// This case checks that side branch blocks are validated only once they could win
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		blockChain.setLazySideBranchValidation(true);
+		blockChain.getMetrics().setEnabled(true);
+		
+		Block block1 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		block1.finalize();
+		Block block2 = new Block(block1.getHash(), keyPair1.getPublic());
+		block2.finalize();
+		if(!blockChain.addBlock(block1) || !blockChain.addBlock(block2)) {
+			throw new RuntimeException("Unexpected failure");
+		}
+		
+		// A side branch whose second block spends an output that does not exist; the nonce keeps
+		// side1 apart from block1 when both are created in the same millisecond
+		Block side1 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		side1.setNonce(1);
+		side1.finalize();
+		Block side2 = new Block(side1.getHash(), keyPair1.getPublic());
+		Transaction tx = new Transaction();
+		tx.addInput(new byte[32], 0);
+		tx.addOutput(1, keyPair1.getPublic());
+		tx.addSignature(sign(keyPair1.getPrivate(), tx.getRawDataToSign(0)), 0);
+		tx.finalize();
+		side2.addTransaction(tx);
+		side2.finalize();
+		// Neither can become the max height block, so both are stored without validation
+		if(!blockChain.addBlock(side1) || !blockChain.addBlock(side2)
+				|| blockChain.getMetrics().getCount(NodeMetrics.Counter.BLOCKS_DEFERRED) != 2
+				|| blockChain.getUtxoCommitment(side1.getHash()) != null) {
+			throw new RuntimeException("The side branch should be stored unvalidated");
+		}
+		
+		// A block that would be the new max height block validates its branch first
+		Block side3 = new Block(side2.getHash(), keyPair1.getPublic());
+		side3.finalize();
+		if(blockChain.submitBlock(side3) != ValidationResult.UNKNOWN_PARENT
+				|| blockChain.getMaxHeightBlock() != block2
+				|| blockChain.getUtxoCommitment(side1.getHash()) == null
+				|| blockChain.submitBlock(side3) != ValidationResult.UNKNOWN_PARENT) {
+			throw new RuntimeException("The invalid side branch should be dropped");
+		}
+		
+		// The valid part of the branch can still win
+		Block other2 = new Block(side1.getHash(), keyPair1.getPublic());
+		other2.finalize();
+		Block other3 = new Block(other2.getHash(), keyPair1.getPublic());
+		other3.finalize();
+		if(!blockChain.addBlock(other2) || !blockChain.addBlock(other3)
+				|| blockChain.getMaxHeightBlock() != other3) {
+			throw new RuntimeException("The side branch should become the main chain");
+		}
+		System.out.println("Case 11 is OK");	
+	}
+
+	private static void case12()  throws Exception {
+		
+		// This case checks that applying a block's transactions shard by shard in parallel gives
+		// the same UTXO set as accepting them one by one
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		UTXOPool utxoPool = new UTXOPool();
+		utxoPool.addUTXO(new UTXO(genesisBlock.getCoinbase().getHash(), 0), genesisBlock.getCoinbase().getOutput(0));
+		
+		// txB and txC spend outputs of txA, and txD spends an output of txB
+		Transaction txA = new Transaction();
+		txA.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		for (int i = 0; i < 3; i++)
+			txA.addOutput(Block.COINBASE / 4, keyPair2.getPublic());
+		txA.addSignature(sign(keyPair1.getPrivate(), txA.getRawDataToSign(0)), 0);
+		txA.finalize();
+		Transaction txB = new Transaction();
+		txB.addInput(txA.getHash(), 0);
+		txB.addOutput(Block.COINBASE / 8, keyPair1.getPublic());
+		txB.addOutput(Block.COINBASE / 8, keyPair2.getPublic());
+		txB.addSignature(sign(keyPair2.getPrivate(), txB.getRawDataToSign(0)), 0);
+		txB.finalize();
+		Transaction txC = new Transaction();
+		txC.addInput(txA.getHash(), 1);
+		txC.addOutput(Block.COINBASE / 4, keyPair1.getPublic());
+		txC.addSignature(sign(keyPair2.getPrivate(), txC.getRawDataToSign(0)), 0);
+		txC.finalize();
+		Transaction txD = new Transaction();
+		txD.addInput(txB.getHash(), 1);
+		txD.addOutput(Block.COINBASE / 16, keyPair1.getPublic());
+		txD.addSignature(sign(keyPair2.getPrivate(), txD.getRawDataToSign(0)), 0);
+		txD.finalize();
+		Transaction[] blockTxs = {txD, txC, txB, txA};
+		
+		// Only the copy for a block state keeps the set hash; the other is hashed from scratch
+		TxHandler sequential = new TxHandler(utxoPool);
+		TxHandler parallel = new TxHandler(utxoPool, NodeMetrics.DISABLED, true);
+		if(sequential.getUTXOPool().isTrackingSetHash() || !parallel.getUTXOPool().isTrackingSetHash()) {
+			throw new RuntimeException("Only the block state copy should track the set hash");
+		}
+		if(sequential.handleTxs(blockTxs).length != 4 || !parallel.applyBlockTxs(blockTxs)) {
+			throw new RuntimeException("All transactions should be valid");
+		}
+		UTXOSetInfo expected = sequential.getUTXOPool().getSetInfo();
+		UTXOSetInfo actual = parallel.getUTXOPool().getSetInfo();
+		if(actual.getCount() != 4 || actual.getCount() != expected.getCount()
+				|| actual.getTotalValue() != expected.getTotalValue()
+				|| !Arrays.equals(actual.getSetHash(), expected.getSetHash())) {
+			throw new RuntimeException("Parallel application should match sequential application");
+		}
+		
+		// Spending txA's output twice within a block leaves the pool unchanged
+		Transaction txE = new Transaction();
+		txE.addInput(txA.getHash(), 1);
+		txE.addOutput(1, keyPair1.getPublic());
+		txE.addSignature(sign(keyPair2.getPrivate(), txE.getRawDataToSign(0)), 0);
+		txE.finalize();
+		TxHandler conflicting = new TxHandler(utxoPool);
+		if(conflicting.applyBlockTxs(new Transaction[] {txA, txC, txE})
+				|| !Arrays.equals(conflicting.getUTXOPool().getSetInfo().getSetHash(), utxoPool.getSetInfo().getSetHash())) {
+			throw new RuntimeException("The double spend should be rejected");
+		}
+		System.out.println("Case 12 is OK");	
+	}
+
+	private static void case13()  throws Exception {
+		
+		// This case relays a block as a compact block to a node that has most of its transactions
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain receiverChain = new BlockChain(genesisBlock);
+		receiverChain.getMetrics().setEnabled(true);
+		BlockHandler receiver = new BlockHandler(receiverChain);
+		
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE / 2, keyPair1.getPublic());
+		tx1.addOutput(Block.COINBASE / 2, keyPair1.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		Transaction[] spends = new Transaction[2];
+		for (int i = 0; i < 2; i++) {
+			spends[i] = new Transaction();
+			spends[i].addInput(tx1.getHash(), i);
+			spends[i].addOutput(Block.COINBASE / 2, keyPair1.getPublic());
+			spends[i].addSignature(sign(keyPair1.getPrivate(), spends[i].getRawDataToSign(0)), 0);
+			spends[i].finalize();
+		}
+		Block block = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		block.addTransaction(tx1);
+		block.addTransaction(spends[0]);
+		block.addTransaction(spends[1]);
+		block.finalize();
+		
+		// The receiver has tx1 and the first spend, which are validated as they arrive
+		receiver.processTx(tx1);
+		receiver.processTx(spends[0]);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		WireFormat.writeCompactBlock(new DataOutputStream(bytes), new CompactBlock(block, 42, tx -> false));
+		CompactBlock compactBlock = WireFormat.readCompactBlock(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		CompactBlock.Reconstruction reconstruction = compactBlock.reconstruct(receiverChain.getTransactionPool());
+		int[] missing = reconstruction.getMissing();
+		if(missing.length != 1 || missing[0] != 2 || !reconstruction.fill(missing, new Transaction[] {spends[1]})) {
+			throw new RuntimeException("Only the second spend should be missing");
+		}
+		Block rebuilt = reconstruction.getBlock();
+		if(rebuilt == null || !Arrays.equals(rebuilt.getHash(), block.getHash()) || !receiver.processBlock(rebuilt)) {
+			throw new RuntimeException("The rebuilt block should be the block");
+		}
+		// tx1 was verified against the receiver's tip; the first spend's input did not exist yet
+		if(receiverChain.getMetrics().getCount(NodeMetrics.Counter.TXS_PREVERIFIED) != 1) {
+			throw new RuntimeException("Only tx1 should skip signature verification");
+		}
+		System.out.println("Case 13 is OK");	
+	}
+
+	private static void case14()  throws Exception {
+		
+		// This case checks that a simulated network converges and that a simulation is repeatable
+		
+		NetworkSimulator.Config config = new NetworkSimulator.Config();
+		config.nodes = 5;
+		config.degree = 2;
+		config.blocks = 8;
+		config.txPerSecond = 1;
+		NetworkSimulator.Report report1 = new NetworkSimulator(config).run();
+		NetworkSimulator.Report report2 = new NetworkSimulator(config).run();
+		if(report1.blocksMined != 8 || report1.fullPropagation.getCount() != 8
+				|| report1.propagation.getCount() != 8 * 4) {
+			throw new RuntimeException("Every block should reach every node:\n" + report1);
+		}
+		if(!Arrays.equals(report1.tipHash, report2.tipHash) || report1.staleBlocks != report2.staleBlocks
+				|| report1.propagation.getMax() != report2.propagation.getMax()) {
+			throw new RuntimeException("The same configuration should give the same run");
+		}
+		System.out.println("Case 14 is OK");	
+	}
+
+	private static void case15()  throws Exception {
+		
+		// This case dumps the transaction pool and loads it into a restarted node
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE, keyPair1.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		// tx2 spends tx1, which is still pending
+		Transaction tx2 = new Transaction();
+		tx2.addInput(tx1.getHash(), 0);
+		tx2.addOutput(Block.COINBASE, keyPair1.getPublic());
+		tx2.addSignature(sign(keyPair1.getPrivate(), tx2.getRawDataToSign(0)), 0);
+		tx2.finalize();
+		// tx3 has a bad signature
+		Transaction tx3 = new Transaction();
+		tx3.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx3.addOutput(1, keyPair1.getPublic());
+		tx3.addSignature(new byte[128], 0);
+		tx3.finalize();
+		blockChain.addTransaction(tx1);
+		blockChain.addTransaction(tx2);
+		blockChain.addTransaction(tx3);
+		
+		File file = File.createTempFile("mempool", ".dat");
+		file.deleteOnExit();
+		MempoolFile.save(file, Arrays.asList(tx3, tx1, tx2));
+		
+		BlockChain restarted = new BlockChain(genesisBlock);
+		if(MempoolFile.load(file, new BlockHandler(restarted)) != 2
+				|| !restarted.getTransactionPool().isVerified(tx1.getId())
+				|| restarted.getTransactionPool().isVerified(tx2.getId())
+				|| restarted.getTransactionPool().getTransaction(tx3.getId()) != null) {
+			throw new RuntimeException("tx1 and tx2 should be loaded, and only tx1 verified");
+		}
+		
+		// A dump cut off in its last record loads up to the record before it
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		if(MempoolFile.load(file, new BlockHandler(new BlockChain(genesisBlock))) != 1) {
+			throw new RuntimeException("The truncated record of tx2 should be skipped");
+		}
+		// A corrupt record length stops the load after the records before it
+		MempoolFile.save(file, Arrays.asList(tx3, tx1, tx2));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length());
+			raf.writeInt(-1);
+			raf.writeInt(0);
+		}
+		if(MempoolFile.load(file, new BlockHandler(new BlockChain(genesisBlock))) != 2) {
+			throw new RuntimeException("The records before the bad length should be loaded");
+		}
+		System.out.println("Case 15 is OK");	
+	}
+
+	private static void case16()  throws Exception {
+		
+		// This case follows a reorganization and the transaction pool through the event stream
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		ChainEventStream.Subscriber subscriber = blockChain.getEventStream().subscribe(false);
+		
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE, keyPair1.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		blockChain.addTransaction(tx1);
+		Block block2 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		block2.addTransaction(tx1);
+		block2.finalize();
+		// The fork overtakes block2 at its second block
+		Block fork2 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		fork2.setNonce(1);
+		fork2.finalize();
+		Block fork3 = new Block(fork2.getHash(), keyPair1.getPublic());
+		fork3.finalize();
+		if(!blockChain.addBlock(block2) || !blockChain.addBlock(fork2) || !blockChain.addBlock(fork3)) {
+			throw new RuntimeException("The blocks should be added");
+		}
+		
+		List<String> events = new ArrayList<String>();
+		subscriber.poll(event -> events.add(event.getType() + " " + event.getHeight()), 100);
+		List<String> expected = Arrays.asList("TX_ADMITTED 0", "TX_EVICTED 0", "BLOCK_CONNECTED 2", "TIP_CHANGED 2",
+				"BLOCK_DISCONNECTED 2", "BLOCK_CONNECTED 2", "BLOCK_CONNECTED 3", "TIP_CHANGED 3");
+		if(!events.equals(expected) || subscriber.getLag() != 0) {
+			throw new RuntimeException("Unexpected events " + events);
+		}
+		
+		// A tip reached along a pruned path is a reset, after which consumers rebuild
+		blockChain.getEventStream().tipReset(fork3, 3, null);
+		events.clear();
+		subscriber.poll(event -> events.add(event.getType() + " " + event.getHeight()), 100);
+		if(!events.equals(Arrays.asList("TIP_RESET 3"))) {
+			throw new RuntimeException("Unexpected events " + events);
+		}
+		
+		// A subscriber a whole ring behind is dropped, while a blocking one holds the producer back
+		ChainEventStream stream = new ChainEventStream(4);
+		ChainEventStream.Subscriber dropping = stream.subscribe(false);
+		ChainEventStream.Subscriber blocking = stream.subscribe(true);
+		for (int i = 0; i < 4; i++) {
+			stream.txAdmitted(tx1);
+		}
+		Thread producer = new Thread(() -> stream.txEvicted(tx1));
+		producer.start();
+		Thread.sleep(100);
+		if(!producer.isAlive() || blocking.poll(event -> {}, 1) != 1) {
+			throw new RuntimeException("The producer should wait for the blocking subscriber");
+		}
+		producer.join();
+		if(dropping.poll(event -> {}, 100) != 0 || !dropping.isDropped() || blocking.getLag() != 4) {
+			throw new RuntimeException("Only the non-blocking subscriber should be dropped");
+		}
+		System.out.println("Case 16 is OK");	
+	}
+
+	private static void case17()  throws Exception {
+		
+		// This case selects coins for payments with both strategies and checks the signed
+		// transactions
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		// keyPair1 owns coins of 50, 30, 20 and 10
+		Transaction funding = new Transaction();
+		long[] values = {50, 30, 20, 10};
+		for (long value : values) {
+			funding.addOutput(value, keyPair1.getPublic());
+		}
+		funding.finalize();
+		UTXOPool utxoPool = new UTXOPool();
+		for (int i = 0; i < values.length; i++) {
+			utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+		
+		TxBuilder exact = new TxBuilder();
+		exact.addKey(keyPair1);
+		exact.setCoinSelection(TxBuilder.CoinSelection.BRANCH_AND_BOUND);
+		exact.addPayment(keyPair2.getPublic(), 40);
+		List<Transaction> txs = exact.build(utxoPool);
+		// 30 and 10 match without change, where largest first would take 50
+		if(txs.size() != 1 || txs.get(0).numInputs() != 2 || txs.get(0).numOutputs() != 1
+				|| !new TxHandler(utxoPool).isValidTx(txs.get(0)) || exact.getBalance(utxoPool) != 70) {
+			throw new RuntimeException("Branch and bound should spend 30 and 10");
+		}
+		byte[][] sigData = txs.get(0).getAllRawDataToSign();
+		for (int i = 0; i < sigData.length; i++) {
+			if(!Arrays.equals(sigData[i], txs.get(0).getRawDataToSign(i))) {
+				throw new RuntimeException("The data to sign should not depend on how it is computed");
+			}
+		}
+		
+		TxBuilder batched = new TxBuilder();
+		batched.addKey(keyPair1);
+		batched.setMaxOutputs(2);
+		batched.setFee(1);
+		batched.addPayment(keyPair2.getPublic(), 25);
+		batched.addPayment(keyPair2.getPublic(), 10);
+		batched.addPayment(keyPair2.getPublic(), 15);
+		txs = batched.build(utxoPool);
+		// 25 and 10 plus the fee take 50 and leave 14 of change; 15 plus the fee take 30
+		TxHandler txHandler = new TxHandler(utxoPool);
+		if(txs.size() != 2 || txs.get(0).numInputs() != 1 || txs.get(0).getOutput(2).value != 14
+				|| txs.get(1).getOutput(1).value != 14 || !txHandler.isValidTx(txs.get(0)) || !txHandler.isValidTx(txs.get(1))) {
+			throw new RuntimeException("Largest first should pay the batches from 50 and 30");
+		}
+		batched.addPayment(keyPair2.getPublic(), 31);
+		try {
+			batched.build(utxoPool);
+			throw new RuntimeException("Only 20 and 10 are left");
+		} catch (IllegalStateException x) {
+			if(batched.getPendingPayments() != 1 || batched.getBalance(utxoPool) != 30) {
+				throw new RuntimeException("A failed build should reserve nothing");
+			}
+		}
+		
+		// Releasing the transaction that spent 30 makes it spendable again
+		batched.release(txs.get(1));
+		if(batched.getBalance(utxoPool) != 60) {
+			throw new RuntimeException("The released coin should be spendable");
+		}
+		
+		// Once the first transaction is confirmed, its spent coin is no longer reserved
+		UTXOPool confirmed = new UTXOPool(utxoPool);
+		confirmed.removeUTXO(new UTXO(funding.getHash(), 0));
+		for (int i = 0; i < txs.get(0).numOutputs(); i++) {
+			confirmed.addUTXO(new UTXO(txs.get(0).getHash(), i), txs.get(0).getOutput(i));
+		}
+		txs = batched.build(confirmed);
+		// 31 plus the fee take 30 and 20, the largest coins left
+		if(txs.size() != 1 || txs.get(0).numInputs() != 2 || batched.getReservedCount() != 2
+				|| !new TxHandler(confirmed).isValidTx(txs.get(0))) {
+			throw new RuntimeException("Only the coins of the new transaction should be reserved");
+		}
+		System.out.println("Case 17 is OK");	
+	}
+
+	private static void case18()  throws Exception {
+		
+		// This case records the calls a node processes and replays them into a fresh chain
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		File file = File.createTempFile("trace", ".dat");
+		file.deleteOnExit();
+		WorkloadTrace.Recorder recorder = new WorkloadTrace.Recorder(file, blockChain);
+		blockHandler.setRecorder(recorder);
+		
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE, keyPair1.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		Transaction badTx = new Transaction();
+		badTx.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		badTx.addOutput(1, keyPair1.getPublic());
+		badTx.addSignature(new byte[128], 0);
+		badTx.finalize();
+		blockHandler.processTx(tx1);
+		blockHandler.processTx(badTx);
+		// A transaction that is not finalized is rejected without being cached or recorded
+		Transaction unfinalized = new Transaction();
+		unfinalized.addOutput(-1, keyPair1.getPublic());
+		if(blockHandler.submitTx(unfinalized) != ValidationResult.INVALID_TRANSACTION
+				|| blockHandler.submitTx(new Transaction()) != ValidationResult.INVALID_TRANSACTION
+				|| blockChain.getTransactionPool().size() != 1) {
+			throw new RuntimeException("Unfinalized transactions should be rejected");
+		}
+		// The node mines block2, and a peer sends block3 on top of it, its header first
+		Block block2 = blockHandler.createBlock(keyPair1.getPublic());
+		Block block3 = new Block(block2.getHash(), keyPair1.getPublic(), 3);
+		block3.finalize();
+		blockHandler.processHeader(block3.getHeader());
+		blockHandler.processBlock(block3);
+		blockHandler.processBlock(block3);
+		blockHandler.setRecorder(null);
+		recorder.close();
+		
+		for (boolean timed : new boolean[] {false, true}) {
+			WorkloadTrace.Report report = WorkloadTrace.replay(file, timed);
+			if(report.txs != 2 || report.blocks != 3 || report.headers != 1 || report.mismatches != 0
+					|| report.height != 3 || !Arrays.equals(report.tipHash, block3.getHash())) {
+				throw new RuntimeException("The replay should reach the same chain:\n" + report);
+			}
+			if(timed != (report.lagNanos.getCount() == 6)) {
+				throw new RuntimeException("Only a timed replay waits for each call");
+			}
+		}
+		// The first failed write stops the recording
+		File full = new File("/dev/full");
+		if(full.exists()) {
+			WorkloadTrace.Recorder failing = new WorkloadTrace.Recorder(full, new BlockChain(genesisBlock));
+			for(int i = 0; i < 100 && failing.getFailure() == null; i++) {
+				failing.recordTx(failing.start(), tx1, ValidationResult.VALID);
+			}
+			IOException failure = failing.getFailure();
+			failing.recordTx(failing.start(), tx1, ValidationResult.VALID);
+			if(failure == null || failing.getFailure() != failure) {
+				throw new RuntimeException("The recorder should fail once and stop");
+			}
+			try {
+				failing.close();
+				throw new RuntimeException("Closing a failed recorder should report its failure");
+			} catch (IOException x) {
+				if(x != failure) {
+					throw x;
+				}
+			}
+		}
+		System.out.println("Case 18 is OK");	
+	}
+
+	private static void case19()  throws Exception {
+		
+		// This case submits a block whose transaction list was padded to keep its header's hash
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		BlockHandler blockHandler = new BlockHandler(blockChain);
+		
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisBlock.getCoinbase().getHash(), 0);
+		tx1.addOutput(Block.COINBASE, keyPair1.getPublic());
+		tx1.addSignature(sign(keyPair1.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		Transaction tx2 = new Transaction();
+		tx2.addOutput(0, keyPair1.getPublic());
+		tx2.finalize();
+		long timestamp = System.currentTimeMillis();
+		Block honest = new Block(genesisBlock.getHash(), keyPair1.getPublic(), 2, timestamp);
+		honest.addTransaction(tx1);
+		honest.addTransaction(tx2);
+		honest.finalize();
+		// [cb, tx1, tx2, tx2] pairs tx2 with itself just as [cb, tx1, tx2] does
+		Block padded = new Block(genesisBlock.getHash(), keyPair1.getPublic(), 2, timestamp);
+		padded.addTransaction(tx1);
+		padded.addTransaction(tx2);
+		padded.addTransaction(tx2);
+		padded.finalize();
+		if(!Arrays.equals(honest.getHash(), padded.getHash())) {
+			throw new RuntimeException("Both lists should have the same root");
+		}
+		if(blockHandler.submitBlock(padded) != ValidationResult.BAD_MERKLE_ROOT
+				|| blockHandler.submitBlock(honest) != ValidationResult.VALID) {
+			throw new RuntimeException("The padded list should not get the honest block rejected");
+		}
+		
+		// With lazy validation, the honest side branch block is stored, and an invalid one fails
+		// its child
+		BlockChain lazyChain = new BlockChain(genesisBlock);
+		lazyChain.setLazySideBranchValidation(true);
+		BlockHandler lazyHandler = new BlockHandler(lazyChain);
+		Block main2 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		main2.finalize();
+		Block honestChild = new Block(honest.getHash(), keyPair1.getPublic());
+		honestChild.finalize();
+		if(!lazyHandler.processBlock(main2) || lazyHandler.submitBlock(padded) != ValidationResult.BAD_MERKLE_ROOT
+				|| lazyHandler.submitBlock(honest) != ValidationResult.VALID
+				|| lazyHandler.submitBlock(honestChild) != ValidationResult.VALID || lazyChain.getBlockchainHeight() != 3) {
+			throw new RuntimeException("The honest side branch should take over");
+		}
+		Transaction missingInput = new Transaction();
+		missingInput.addInput(new byte[32], 0);
+		missingInput.addOutput(1, keyPair1.getPublic());
+		missingInput.addSignature(sign(keyPair1.getPrivate(), missingInput.getRawDataToSign(0)), 0);
+		missingInput.finalize();
+		Block invalid = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		invalid.addTransaction(missingInput);
+		invalid.finalize();
+		Block invalidChild = new Block(invalid.getHash(), keyPair1.getPublic());
+		invalidChild.finalize();
+		Block invalidGrandchild = new Block(invalidChild.getHash(), keyPair1.getPublic());
+		invalidGrandchild.finalize();
+		if(lazyHandler.submitBlock(invalid) != ValidationResult.VALID || lazyHandler.submitBlock(invalidChild) != ValidationResult.VALID
+				|| lazyHandler.submitBlock(invalidGrandchild) != ValidationResult.UNKNOWN_PARENT) {
+			throw new RuntimeException("A block on an invalid stored branch should not be blamed for it");
+		}
+		System.out.println("Case 19 is OK");	
+	}
+
+	private static void case20()  throws Exception {
+		
+		// This case disconnects a block whose coinbase repeats an earlier one
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		BlockChain blockChain = new BlockChain(genesisBlock);
+		AddressIndex addressIndex = blockChain.getAddressIndex();
+		// block1 pays keyPair1 too, so its coinbase has the same hash as the genesis coinbase
+		Block block1 = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+		block1.finalize();
+		Block fork1 = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+		fork1.finalize();
+		Block fork2 = new Block(fork1.getHash(), keyPair2.getPublic());
+		fork2.finalize();
+		if(!blockChain.addBlock(block1) || !blockChain.addBlock(fork1) || !blockChain.addBlock(fork2)
+				|| blockChain.getMaxHeightBlock() != fork2) {
+			throw new RuntimeException("The fork should overtake block1");
+		}
+		AddressIndex rebuilt = new AddressIndex(blockChain.getMaxHeightUTXOPool());
+		if(addressIndex.getBalance(keyPair1.getPublic()) != Block.COINBASE
+				|| addressIndex.getBalance(keyPair1.getPublic()) != rebuilt.getBalance(keyPair1.getPublic())
+				|| addressIndex.getCoins(keyPair1.getPublic()).size() != 1) {
+			throw new RuntimeException("The genesis coinbase should still be indexed");
+		}
+		
+		// A persistent transaction index sees block1's coinbase again in block2, which a fork then
+		// overtakes
+		File file = File.createTempFile("txindex", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		BlockChain indexedChain = new BlockChain(genesisBlock);
+		TxIndex txIndex = new TxIndex(file);
+		indexedChain.setTxIndex(txIndex);
+		Block block2 = new Block(block1.getHash(), keyPair1.getPublic());
+		block2.finalize();
+		Block fork2b = new Block(block1.getHash(), keyPair2.getPublic());
+		fork2b.finalize();
+		Block fork3b = new Block(fork2b.getHash(), keyPair2.getPublic());
+		fork3b.finalize();
+		byte[] coinbaseHash = block1.getCoinbase().getHash();
+		if(!indexedChain.addBlock(block1) || !indexedChain.addBlock(block2)
+				|| txIndex.get(coinbaseHash).getHeight() != 3 || txIndex.size() != 1) {
+			throw new RuntimeException("block2's coinbase should shadow block1's");
+		}
+		if(!indexedChain.addBlock(fork2b) || !indexedChain.addBlock(fork3b)
+				|| !Arrays.equals(txIndex.get(coinbaseHash).getBlockHash(), block1.getHash()) || txIndex.size() != 2) {
+			throw new RuntimeException("block1's coinbase should be uncovered");
+		}
+		txIndex.close();
+		
+		// A record torn by a crash is dropped when the index is opened again, and the log of five
+		// blocks is replaced by a snapshot of the entries left
+		long length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(length);
+			raf.write(new byte[] {0, 0, 1, 0, 7});
+		}
+		TxIndex reopened = new TxIndex(file);
+		if(file.length() >= length || reopened.size() != 2
+				|| !Arrays.equals(reopened.get(coinbaseHash).getBlockHash(), block1.getHash())
+				|| reopened.get(fork3b.getCoinbase().getHash()).getHeight() != 4) {
+			throw new RuntimeException("The index should reopen as it was closed");
+		}
+		reopened.close();
+		reopened = new TxIndex(file);
+		if(reopened.size() != 2 || !Arrays.equals(reopened.get(coinbaseHash).getBlockHash(), block1.getHash())) {
+			throw new RuntimeException("The snapshot should reopen as it was written");
+		}
+		// At its last tip the index is kept; anywhere else it cannot tell what it missed
+		reopened.tipReset(fork3b, 4, null);
+		if(reopened.size() != 2) {
+			throw new RuntimeException("The index should be kept at its own tip");
+		}
+		reopened.tipReset(block2, 3, null);
+		if(reopened.size() != 0 || reopened.get(coinbaseHash) != null) {
+			throw new RuntimeException("The index should be cleared on a reset elsewhere");
+		}
+		reopened.close();
+		// The reset starts the file over, so what was cleared is not replayed again
+		reopened = new TxIndex(file);
+		reopened.tipReset(block2, 3, null);
+		if(reopened.size() != 0) {
+			throw new RuntimeException("The index should reopen empty at block2");
+		}
+		reopened.close();
+		// A snapshot keeps a shadowed location behind the one shadowing it
+		reopened = new TxIndex(file);
+		reopened.blockConnected(block1, 2, null, null);
+		reopened.blockConnected(block2, 3, null, null);
+		reopened.close();
+		reopened = new TxIndex(file);
+		if(reopened.get(coinbaseHash).getHeight() != 3) {
+			throw new RuntimeException("block2's coinbase should still shadow block1's");
+		}
+		reopened.blockDisconnected(block2, 3, null, null);
+		if(reopened.get(coinbaseHash).getHeight() != 2 || reopened.size() != 1) {
+			throw new RuntimeException("block1's coinbase should be uncovered after the snapshot");
+		}
+		reopened.close();
+		System.out.println("Case 20 is OK");	
+	}
+
+	private static void case21()  throws Exception {
+		
+		// This case checks a transaction in the legacy encoding against the pre-series format,
+		// and the rejection of outputs whose sum overflows
+		
+		KeyPair keyPair1 = generateNewKeyPair();
+		KeyPair keyPair2 = generateNewKeyPair();
+		
+		Block genesisBlock = new Block(null, keyPair1.getPublic());
+		genesisBlock.finalize();
+		Transaction coinbase = genesisBlock.getCoinbase();
+		UTXOPool pool = new UTXOPool();
+		pool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+		
+		// Before the series an output was its double value, public exponent and modulus
+		RSAPublicKey payee = (RSAPublicKey) keyPair2.getPublic();
+		ByteArrayOutputStream outputs = new ByteArrayOutputStream();
+		outputs.write(ByteBuffer.allocate(8).putDouble(25).array());
+		outputs.write(payee.getPublicExponent().toByteArray());
+		outputs.write(payee.getModulus().toByteArray());
+		ByteArrayOutputStream toSign = new ByteArrayOutputStream();
+		toSign.write(coinbase.getHash());
+		toSign.write(ByteBuffer.allocate(4).putInt(0).array());
+		outputs.writeTo(toSign);
+		byte[] signature = sign(keyPair1.getPrivate(), toSign.toByteArray());
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		raw.write(coinbase.getHash());
+		raw.write(ByteBuffer.allocate(4).putInt(0).array());
+		raw.write(signature);
+		outputs.writeTo(raw);
+		byte[] preSeriesHash = MessageDigest.getInstance("SHA-256").digest(raw.toByteArray());
+		
+		Transaction legacy = new Transaction(Transaction.Encoding.LEGACY);
+		legacy.addInput(coinbase.getHash(), 0);
+		legacy.addOutput(Block.COINBASE, keyPair2.getPublic());
+		legacy.addSignature(signature, 0);
+		legacy.finalize();
+		if(!Arrays.equals(legacy.getRawDataToSign(0), toSign.toByteArray())
+				|| !Arrays.equals(legacy.getHash(), preSeriesHash)) {
+			throw new RuntimeException("The legacy encoding should match the pre-series format");
+		}
+		if(new TxHandler(pool).validateTx(legacy) != ValidationResult.VALID) {
+			throw new RuntimeException("The pre-series signature should verify");
+		}
+		Transaction copy = new Transaction(legacy);
+		copy.finalize();
+		if(!Arrays.equals(copy.getHash(), preSeriesHash)) {
+			throw new RuntimeException("A copy should keep the legacy encoding");
+		}
+		
+		// Outputs whose sum wraps around are rejected before any signature is checked
+		Transaction overflow = new Transaction();
+		overflow.addInput(coinbase.getHash(), 0);
+		overflow.addOutput(Long.MAX_VALUE, keyPair2.getPublic());
+		overflow.addOutput(Block.COINBASE, keyPair2.getPublic());
+		overflow.finalize();
+		if(new TxHandler(pool).validateTx(overflow) != ValidationResult.VALUE_OVERFLOW) {
+			throw new RuntimeException("The outputs should overflow");
+		}
+		System.out.println("Case 21 is OK");	
+	}
+
+	private static void case22()  throws Exception {
+		
+		// This case checks the outpoint map against a HashMap
+		
+		// Keys sharing the first word and index share a home slot; with the last slot of a new map
+		// as home, their probe run wraps past the end of the table
+		OutpointMap<Integer> map = new OutpointMap<Integer>();
+		Map<UTXO, Integer> mirror = new HashMap<UTXO, Integer>();
+		long last = 0;
+		while(homeSlot(last, 0, 16) != 15) {
+			last += 1L << 33;
+		}
+		long first = 0;
+		while(homeSlot(first, 0, 16) != 0) {
+			first += 1L << 33;
+		}
+		for(int i = 0; i < 8; i++) {
+			UTXO utxo = new UTXO(new Hash256(last, i, 0, 0), 0);
+			map.put(utxo, i);
+			mirror.put(utxo, i);
+		}
+		UTXO displaced = new UTXO(new Hash256(first, 0, 0, 0), 0);
+		map.put(displaced, 100);
+		mirror.put(displaced, 100);
+		// removal in the middle and at the start of the run shifts the later entries back
+		for(int i : new int[] {3, 0, 7}) {
+			UTXO utxo = new UTXO(new Hash256(last, i, 0, 0), 0);
+			if(map.remove(utxo) != i) {
+				throw new RuntimeException("Unexpected removal of " + i);
+			}
+			mirror.remove(utxo);
+			checkOutpointMap(map, mirror);
+		}
+		
+		// Random changes over few first words collide often and resize the map many times
+		Random random = new Random(42);
+		map = new OutpointMap<Integer>();
+		mirror.clear();
+		for(int op = 0; op < 200000; op++) {
+			UTXO utxo = new UTXO(new Hash256((long) random.nextInt(64) << 30, random.nextInt(64), 7, 11),
+					random.nextInt(4));
+			int action = random.nextInt(op < 100000 ? 3 : 5);
+			if(action == 0) {
+				if(!Objects.equals(map.put(utxo, op), mirror.put(utxo, op))) {
+					throw new RuntimeException("Unexpected put of " + utxo);
+				}
+			} else if(action == 1 || action > 2) {
+				if(!Objects.equals(map.remove(utxo), mirror.remove(utxo))) {
+					throw new RuntimeException("Unexpected removal of " + utxo);
+				}
+			} else {
+				byte[] buffer = new byte[40];
+				System.arraycopy(utxo.getTxHash(), 0, buffer, 5, 32);
+				Integer expected = mirror.get(utxo);
+				if(!Objects.equals(map.get(utxo), expected)
+						|| !Objects.equals(map.get(buffer, 5, utxo.getIndex()), expected)
+						|| map.containsKey(utxo) != (expected != null)) {
+					throw new RuntimeException("Unexpected lookup of " + utxo);
+				}
+			}
+			if(op % 20000 == 0) {
+				checkOutpointMap(map, mirror);
+			}
+		}
+		checkOutpointMap(map, mirror);
+		
+		// The parts of a split spliterator cover every entry once
+		Spliterator<Map.Entry<UTXO, Integer>> suffix = map.spliterator();
+		Spliterator<Map.Entry<UTXO, Integer>> prefix = suffix.trySplit();
+		Spliterator<Map.Entry<UTXO, Integer>> quarter = prefix == null ? null : prefix.trySplit();
+		if(map.getCapacity() < 2048 || quarter == null) {
+			throw new RuntimeException("A large map should split");
+		}
+		Map<UTXO, Integer> split = new HashMap<UTXO, Integer>();
+		for(Spliterator<Map.Entry<UTXO, Integer>> part : Arrays.asList(quarter, prefix, suffix)) {
+			part.forEachRemaining(e -> {
+				if(split.put(e.getKey(), e.getValue()) != null) {
+					throw new RuntimeException("Entry seen twice: " + e.getKey());
+				}
+			});
+		}
+		Map<UTXO, Integer> parallel = StreamSupport.stream(map.spliterator(), true)
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		if(!split.equals(mirror) || !parallel.equals(mirror)) {
+			throw new RuntimeException("The parts of the map should hold every entry");
+		}
+		System.out.println("Case 22 is OK");	
+	}
+	
+	/** @return OutpointMap's home slot of output {@code index} of a hash that begins {@code w0} */
+	private static int homeSlot(long w0, int index, int capacity) {
+		long tag = (w0 & (-1L << 33)) | (1L << 32) | (index & 0xFFFFFFFFL);
+		return (int) ((tag * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+	}
+	
+	private static void checkOutpointMap(OutpointMap<Integer> map, Map<UTXO, Integer> mirror) {
+		Map<UTXO, Integer> seen = new HashMap<UTXO, Integer>();
+		map.forEach((utxo, value) -> seen.put(utxo, value));
+		if(map.size() != mirror.size() || !seen.equals(mirror)) {
+			throw new RuntimeException("The outpoint map differs from the HashMap");
+		}
+		for(Map.Entry<UTXO, Integer> e : mirror.entrySet()) {
+			if(!e.getValue().equals(map.get(e.getKey()))) {
+				throw new RuntimeException("The outpoint map lost " + e.getKey());
+			}
+		}
+	}
+
 	private static KeyPair generateNewKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException {
 		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
 		keyGen.initialize(1024); // Warning: This is a small value for testing. 1024-bit RSA keys do not provide the recommended security level.
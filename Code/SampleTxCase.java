@@ -43,7 +43,7 @@ public class SampleTxCase {
 		KeyPair keyPair1 = generateNewKeyPair();
 
 		// specify an output of value 10, and the public key
-		tx1.addOutput(10.0, keyPair1.getPublic());
+		tx1.addOutput(10 * Transaction.COIN, keyPair1.getPublic());
 		// needed to compute the id of tx1
 		tx1.finalize();
 
@@ -53,6 +53,7 @@ public class SampleTxCase {
 		/************** RUNNING TEST CASES ****************/
 		System.out.println("case1: " + (case1(tx1, keyPair1, pool) ? "Success" : "Fail"));
 		System.out.println("case2: " + (case2(tx1, keyPair1, pool) ? "Success" : "Fail"));
+		System.out.println("case3: " + (case3(tx1, keyPair1, pool) ? "Success" : "Fail"));
 
 		/*
 		 * The previous code only checks the validity. To update the
@@ -75,8 +76,8 @@ public class SampleTxCase {
 		tx2.addInput(tx1.getHash(), 0);
 
 		KeyPair keyPair2 = generateNewKeyPair();
-		tx2.addOutput(9.0, keyPair2.getPublic());
-		tx2.addOutput(1.0, keyPair2.getPublic());
+		tx2.addOutput(9 * Transaction.COIN, keyPair2.getPublic());
+		tx2.addOutput(1 * Transaction.COIN, keyPair2.getPublic());
 
 		byte[] sig1_2 = sign(keyPair1.getPrivate(), tx2.getRawDataToSign(0));
 		tx2.addSignature(sig1_2, 0);
@@ -88,8 +89,8 @@ public class SampleTxCase {
 		tx3.addInput(tx1.getHash(), 0);
 
 		KeyPair keyPair3 = generateNewKeyPair();
-		tx3.addOutput(9.0, keyPair3.getPublic());
-		tx3.addOutput(1.0, keyPair3.getPublic());
+		tx3.addOutput(9 * Transaction.COIN, keyPair3.getPublic());
+		tx3.addOutput(1 * Transaction.COIN, keyPair3.getPublic());
 
 		byte[] sig1_3 = sign(keyPair1.getPrivate(), tx3.getRawDataToSign(0));
 		tx3.addSignature(sig1_3, 0);
@@ -101,7 +102,7 @@ public class SampleTxCase {
 		tx4.addInput(tx2.getHash(), 0);
 
 		KeyPair keyPair4 = generateNewKeyPair();
-		tx4.addOutput(5.0, keyPair4.getPublic());
+		tx4.addOutput(5 * Transaction.COIN, keyPair4.getPublic());
 
 		byte[] sig3_4 = sign(keyPair2.getPrivate(), tx4.getRawDataToSign(0));
 		tx4.addSignature(sig3_4, 0);
@@ -114,7 +115,7 @@ public class SampleTxCase {
 		tx5.addInput(tx2.getHash(), 1);
 
 		KeyPair keyPair5 = generateNewKeyPair();
-		tx5.addOutput(6.0, keyPair5.getPublic());
+		tx5.addOutput(6 * Transaction.COIN, keyPair5.getPublic());
 
 		byte[] sig2_5 = sign(keyPair2.getPrivate(), tx5.getRawDataToSign(1));
 		tx5.addSignature(sig2_5, 1);
@@ -151,8 +152,8 @@ public class SampleTxCase {
 		tx2.addInput(tx1.getHash(), 0);
 
 		KeyPair keyPair2 = generateNewKeyPair();
-		tx2.addOutput(9.0, keyPair2.getPublic());
-		tx2.addOutput(1.0, keyPair2.getPublic());
+		tx2.addOutput(9 * Transaction.COIN, keyPair2.getPublic());
+		tx2.addOutput(1 * Transaction.COIN, keyPair2.getPublic());
 		
 		byte[] sig1_2 = sign(keyPair2.getPrivate(), tx2.getRawDataToSign(0));
 		tx2.addSignature(sig1_2, 0);
@@ -164,8 +165,8 @@ public class SampleTxCase {
 		tx3.addInput(tx1.getHash(), 0);
 
 		KeyPair keyPair3 = generateNewKeyPair();
-		tx3.addOutput(7.0, keyPair3.getPublic());
-		tx3.addOutput(5.0, keyPair3.getPublic());
+		tx3.addOutput(7 * Transaction.COIN, keyPair3.getPublic());
+		tx3.addOutput(5 * Transaction.COIN, keyPair3.getPublic());
 
 		byte[] sig1_3 = sign(keyPair1.getPrivate(), tx3.getRawDataToSign(0));
 		tx3.addSignature(sig1_3, 0);
@@ -177,8 +178,8 @@ public class SampleTxCase {
 		tx4.addInput(tx1.getHash(), 0);
 
 		KeyPair keyPair4 = generateNewKeyPair();
-		tx4.addOutput(7.0, keyPair4.getPublic());
-		tx4.addOutput(-1.0, keyPair4.getPublic());
+		tx4.addOutput(7 * Transaction.COIN, keyPair4.getPublic());
+		tx4.addOutput(-1 * Transaction.COIN, keyPair4.getPublic());
 
 		byte[] sig1_4 = sign(keyPair1.getPrivate(), tx4.getRawDataToSign(0));
 		tx4.addSignature(sig1_4, 0);
@@ -191,8 +192,8 @@ public class SampleTxCase {
 
 		KeyPair keyPair5_0 = generateNewKeyPair();
 		KeyPair keyPair5_1 = generateNewKeyPair();
-		tx5.addOutput(8.0, keyPair5_0.getPublic());
-		tx5.addOutput(2.0, keyPair5_1.getPublic());
+		tx5.addOutput(8 * Transaction.COIN, keyPair5_0.getPublic());
+		tx5.addOutput(2 * Transaction.COIN, keyPair5_1.getPublic());
 
 		byte[] sig1_5 = sign(keyPair1.getPrivate(), tx5.getRawDataToSign(0));
 		tx5.addSignature(sig1_5, 0);
@@ -205,8 +206,8 @@ public class SampleTxCase {
 
 		KeyPair keyPair6_0 = generateNewKeyPair();
 		KeyPair keyPair6_1 = generateNewKeyPair();
-		tx6.addOutput(5.0, keyPair6_0.getPublic());
-		tx6.addOutput(3.0, keyPair6_1.getPublic());
+		tx6.addOutput(5 * Transaction.COIN, keyPair6_0.getPublic());
+		tx6.addOutput(3 * Transaction.COIN, keyPair6_1.getPublic());
 
 		byte[] sig5_6 = sign(keyPair5_0.getPrivate(), tx6.getRawDataToSign(0));
 		tx6.addSignature(sig5_6, 0);
@@ -220,7 +221,7 @@ public class SampleTxCase {
 		tx7.addInput(tx6.getHash(), 1);
 
 		KeyPair keyPair7 = generateNewKeyPair();
-		tx7.addOutput(10.0, keyPair7.getPublic());
+		tx7.addOutput(10 * Transaction.COIN, keyPair7.getPublic());
 
 		byte[] sig5_7 = sign(keyPair5_1.getPrivate(), tx7.getRawDataToSign(0));
 		tx7.addSignature(sig5_7, 0);
@@ -247,6 +248,47 @@ public class SampleTxCase {
 		}
 	}
 
+	/*
+	 * This case tests that spam failing the cheap checks (overspending, negative
+	 * outputs, double claims and unknown inputs) is rejected without verifying a
+	 * single signature.
+	 */
+	private static boolean case3(Transaction tx1, KeyPair keyPair1, UTXOPool pool)
+			throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, NoSuchProviderException {
+		NodeMetrics metrics = new NodeMetrics();
+		metrics.setEnabled(true);
+		TxHandler txHandler = new TxHandler(pool, metrics);
+
+		Transaction[] spam = new Transaction[100];
+		for (int i = 0; i < spam.length; i++) {
+			Transaction tx = new Transaction();
+			switch (i % 4) {
+			case 0:
+				tx.addInput(tx1.getHash(), 0);
+				tx.addOutput((10 + i) * Transaction.COIN + 1, keyPair1.getPublic());
+				break;
+			case 1:
+				tx.addInput(tx1.getHash(), 0);
+				tx.addOutput(-1 * Transaction.COIN, keyPair1.getPublic());
+				break;
+			case 2:
+				tx.addInput(tx1.getHash(), 0);
+				tx.addInput(tx1.getHash(), 0);
+				tx.addOutput(1 * Transaction.COIN, keyPair1.getPublic());
+				break;
+			default:
+				tx.addInput(tx1.getHash(), i);
+				tx.addOutput(1 * Transaction.COIN, keyPair1.getPublic());
+			}
+			tx.addSignature(new byte[256], 0);
+			tx.finalize();
+			spam[i] = tx;
+		}
+
+		Transaction[] txValidArr = txHandler.handleTxs(spam);
+		return txValidArr.length == 0 && metrics.getSignatureVerifications() == 0;
+	}
+
 	public static KeyPair generateNewKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException {
 		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
 		keyGen.initialize(2048);
@@ -0,0 +1,53 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of a fixed prefix followed by a varying 8-byte nonce. The 64-byte blocks that lie wholly
+ * within the prefix are hashed once into a midstate; each nonce then costs a copy of that state and
+ * the compression of the last block or two, and allocates only the copy.
+ * <p>
+ * The midstate lives in a {@code MessageDigest} that is cloned per nonce rather than in a SHA-256
+ * written here, because the JDK's implementation is compiled to the CPU's SHA instructions where
+ * they exist and is several times faster than plain Java.
+ * <p>
+ * An instance is not thread-safe; each mining thread uses its own.
+ */
+public class Sha256Midstate {
+
+    private final MessageDigest midstate;
+    /** the rest of the prefix, followed by room for the nonce */
+    private final byte[] tail;
+    private final byte[] hash = new byte[32];
+
+    public Sha256Midstate(byte[] prefix) {
+        int full = prefix.length / 64 * 64;
+        try {
+            midstate = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        midstate.update(prefix, 0, full);
+        tail = new byte[prefix.length - full + 8];
+        System.arraycopy(prefix, full, tail, 0, prefix.length - full);
+    }
+
+    /**
+     * Hashes the prefix followed by {@code nonce} in big-endian order
+     *
+     * @return the hash; the array is reused by the next call
+     */
+    public byte[] hash(long nonce) {
+        for (int i = 0; i < 8; i++)
+            tail[tail.length - 8 + i] = (byte) (nonce >>> (56 - 8 * i));
+        try {
+            MessageDigest md = (MessageDigest) midstate.clone();
+            md.update(tail);
+            md.digest(hash, 0, hash.length);
+        } catch (CloneNotSupportedException | DigestException x) {
+            // the JDK's SHA-256 is cloneable and the output array is large enough
+            throw new IllegalStateException(x);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.security.KeyPair;
+import java.security.Signature;
+
+/**
+ * Compares the signature schemes: bytes per transaction, in the raw encoding that is hashed and on
+ * the wire, and verify throughput one signature at a time through each thread's verifier of the
+ * scheme and in a batch over a whole block. Every transaction spends one output and pays two.
+ * <p>
+ * Usage: {@code java SignatureBenchmark [transactions]}
+ */
+public class SignatureBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        for (SignatureScheme scheme : SignatureScheme.values())
+            run(scheme, count);
+    }
+
+    private static void run(SignatureScheme scheme, int count) throws Exception {
+        KeyPair[] keyPairs = new KeyPair[16];
+        for (int i = 0; i < keyPairs.length; i++)
+            keyPairs[i] = scheme.generateKeyPair();
+        Signature signer = scheme.newSignature();
+
+        // every transaction spends the output of a funding transaction to a random key
+        UTXOPool utxoPool = new UTXOPool();
+        Transaction[] txs = new Transaction[count];
+        long rawBytes = 0;
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            KeyPair from = keyPairs[i % keyPairs.length];
+            Transaction funding = new Transaction(Block.COINBASE + i, from.getPublic());
+            utxoPool.addUTXO(new UTXO(funding.getId(), 0), funding.getOutput(0));
+            Transaction tx = new Transaction();
+            tx.addInput(funding.getHash(), 0);
+            tx.addOutput(Block.COINBASE / 2, keyPairs[(i + 1) % keyPairs.length].getPublic());
+            tx.addOutput(Block.COINBASE / 2, from.getPublic());
+            signer.initSign(from.getPrivate());
+            signer.update(tx.getRawDataToSign(0));
+            tx.addSignature(signer.sign(), 0);
+            tx.finalize();
+            txs[i] = tx;
+            rawBytes += tx.getRawTx().length;
+            WireFormat.writeTransaction(new DataOutputStream(wire), tx);
+        }
+        System.out.printf("%s: %d raw bytes/tx, %d wire bytes/tx, %d byte signatures%n", scheme,
+                rawBytes / count, wire.size() / count, txs[0].getInput(0).signature.length);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int valid = 0;
+            for (Transaction tx : txs)
+                if (TxHandler.verifySignatures(utxoPool, tx, NodeMetrics.DISABLED).isValid())
+                    valid++;
+            double sequential = count * 1e9 / (System.nanoTime() - start);
+
+            start = System.nanoTime();
+            valid += TxHandler.verifySignaturesBatch(utxoPool, txs, NodeMetrics.DISABLED).size();
+            double batch = count * 1e9 / (System.nanoTime() - start);
+            if (valid != 2 * count)
+                throw new IllegalStateException("a signature did not verify");
+            System.out.printf("  round %d: %.0f verifies/s one at a time, %.0f verifies/s in a batch%n", round,
+                    sequential, batch);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * A signature scheme that outputs can be paid to. Keys are encoded compactly, starting with the
+ * scheme's tag byte:
+ * <ul>
+ * <li>{@link #RSA} keys as the length of the public exponent in one byte, the exponent and the
+ * modulus, as unsigned big-endian numbers.</li>
+ * <li>{@link #ED25519} keys as their 32-byte encoded point, against 44 bytes for X.509.</li>
+ * </ul>
+ */
+public enum SignatureScheme {
+    /** SHA256withRSA */
+    RSA((byte) 1, "RSA", "SHA256withRSA"),
+    /** Ed25519 signatures through the JDK's EdDSA */
+    ED25519((byte) 2, "Ed25519", "Ed25519");
+
+    /** the X.509 encoding of an Ed25519 key is this prefix followed by the 32-byte point */
+    private static final byte[] ED25519_X509_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03,
+            0x21, 0x00 };
+    private static final int ED25519_KEY_LENGTH = 32;
+
+    private final byte tag;
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    /** one verifier per thread, so that parallel verification needs no locking */
+    private final ThreadLocal<Signature> verifiers;
+
+    private SignatureScheme(byte tag, String keyAlgorithm, String signatureAlgorithm) {
+        this.tag = tag;
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        verifiers = ThreadLocal.withInitial(() -> newSignature());
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    /** @return the scheme of {@code key} */
+    public static SignatureScheme of(PublicKey key) {
+        if (key instanceof RSAPublicKey)
+            return RSA;
+        if (key instanceof EdECPublicKey && "Ed25519".equals(((EdECPublicKey) key).getParams().getName()))
+            return ED25519;
+        throw new IllegalArgumentException("unsupported key algorithm " + key.getAlgorithm());
+    }
+
+    /** @return the scheme whose tag starts the encoded key {@code encoded} */
+    public static SignatureScheme of(byte[] encoded) {
+        if (encoded.length > 0)
+            for (SignatureScheme scheme : values())
+                if (scheme.tag == encoded[0])
+                    return scheme;
+        throw new IllegalArgumentException("unknown signature scheme");
+    }
+
+    /** @return a new signature object for signing or verifying with this scheme */
+    public Signature newSignature() {
+        try {
+            return Signature.getInstance(signatureAlgorithm);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** @return a new key pair; RSA keys are 1024 bits, as in the sample cases */
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+        if (this == RSA)
+            keyGen.initialize(1024);
+        return keyGen.genKeyPair();
+    }
+
+    /** @return the compact, tagged encoding of {@code key}, which must belong to this scheme */
+    public byte[] encode(PublicKey key) {
+        if (this == RSA) {
+            byte[] exponent = unsigned(((RSAPublicKey) key).getPublicExponent());
+            byte[] modulus = unsigned(((RSAPublicKey) key).getModulus());
+            byte[] encoded = new byte[2 + exponent.length + modulus.length];
+            encoded[0] = tag;
+            encoded[1] = (byte) exponent.length;
+            System.arraycopy(exponent, 0, encoded, 2, exponent.length);
+            System.arraycopy(modulus, 0, encoded, 2 + exponent.length, modulus.length);
+            return encoded;
+        }
+        byte[] x509 = key.getEncoded();
+        byte[] encoded = new byte[1 + ED25519_KEY_LENGTH];
+        encoded[0] = tag;
+        System.arraycopy(x509, x509.length - ED25519_KEY_LENGTH, encoded, 1, ED25519_KEY_LENGTH);
+        return encoded;
+    }
+
+    /** @return the key encoded by {@link #encode} as {@code encoded} */
+    public PublicKey decode(byte[] encoded) throws GeneralSecurityException {
+        if (encoded.length < 2 || encoded[0] != tag)
+            throw new GeneralSecurityException("not a " + name() + " key");
+        KeyFactory keyFactory = KeyFactory.getInstance(keyAlgorithm);
+        if (this == RSA) {
+            int exponentLength = encoded[1] & 0xFF;
+            if (2 + exponentLength >= encoded.length)
+                throw new GeneralSecurityException("truncated RSA key");
+            BigInteger exponent = new BigInteger(1, Arrays.copyOfRange(encoded, 2, 2 + exponentLength));
+            BigInteger modulus = new BigInteger(1, Arrays.copyOfRange(encoded, 2 + exponentLength, encoded.length));
+            return keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        }
+        if (encoded.length != 1 + ED25519_KEY_LENGTH)
+            throw new GeneralSecurityException("bad Ed25519 key length");
+        byte[] x509 = Arrays.copyOf(ED25519_X509_PREFIX, ED25519_X509_PREFIX.length + ED25519_KEY_LENGTH);
+        System.arraycopy(encoded, 1, x509, ED25519_X509_PREFIX.length, ED25519_KEY_LENGTH);
+        return keyFactory.generatePublic(new X509EncodedKeySpec(x509));
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under {@code key},
+     *         using the calling thread's verifier; false if it is not, or is malformed
+     */
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        if (signature == null)
+            return false;
+        Signature verifier = verifiers.get();
+        try {
+            verifier.initVerify(key);
+            verifier.update(message);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            // a failed verify leaves the verifier in an unknown state
+            verifiers.remove();
+            return false;
+        }
+    }
+
+    private static byte[] unsigned(BigInteger n) {
+        byte[] b = n.toByteArray();
+        return b.length > 1 && b[0] == 0 ? Arrays.copyOfRange(b, 1, b.length) : b;
+    }
+}
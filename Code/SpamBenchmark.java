@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Measures the CPU time spent rejecting spam with the checks in their current order, where the
+ * cheap checks all run before any signature is verified, and in the order they had before, where
+ * each input's signature was verified right after its lookup. The spam is the worst case for the
+ * old order: transactions properly signed by the owner of a coin that overspend it, pay a negative
+ * output or claim it twice. Transactions claiming an unknown input are also sent; both orders
+ * reject them before any signature.
+ * <p>
+ * Usage: {@code java SpamBenchmark [transactions]}; the default is 2000.
+ */
+public class SpamBenchmark {
+
+    private static final String[] KINDS = { "overspend", "negative output", "double claim", "unknown input" };
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        KeyPair owner = SignatureScheme.RSA.generateKeyPair();
+        Transaction funding = new Transaction(Block.COINBASE, owner.getPublic());
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(funding.getId(), 0), funding.getOutput(0));
+
+        Transaction[][] spam = new Transaction[KINDS.length][count];
+        Signature signer = SignatureScheme.RSA.newSignature();
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            for (int i = 0; i < count; i++) {
+                Transaction tx = new Transaction();
+                tx.addInput(funding.getHash(), kind == 3 ? 1 + i : 0);
+                if (kind == 2)
+                    tx.addInput(funding.getHash(), 0);
+                tx.addOutput(kind == 0 ? Block.COINBASE + 1 + i : kind == 1 ? -1 - i : 1 + i, owner.getPublic());
+                for (int j = 0; j < tx.numInputs(); j++) {
+                    signer.initSign(owner.getPrivate());
+                    signer.update(tx.getRawDataToSign(j));
+                    tx.addSignature(signer.sign(), j);
+                }
+                tx.finalize();
+                spam[kind][i] = tx;
+            }
+        }
+        System.out.printf("%d transactions of each kind, signed with %s%n", count, SignatureScheme.RSA);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < 3; round++) {
+            long oldTotal = 0;
+            long newTotal = 0;
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                long start = threads.getCurrentThreadCpuTime();
+                for (Transaction tx : spam[kind])
+                    if (validateOldOrder(utxoPool, tx))
+                        throw new IllegalStateException("spam accepted");
+                long oldNanos = threads.getCurrentThreadCpuTime() - start;
+
+                start = threads.getCurrentThreadCpuTime();
+                for (Transaction tx : spam[kind])
+                    if (TxHandler.validateTx(utxoPool, tx, NodeMetrics.DISABLED).isValid())
+                        throw new IllegalStateException("spam accepted");
+                long newNanos = threads.getCurrentThreadCpuTime() - start;
+
+                System.out.printf("round %d, %-16s old order %8.1f us/tx, cheap checks first %6.2f us/tx%n", round,
+                        KINDS[kind] + ":", oldNanos / 1e3 / count, newNanos / 1e3 / count);
+                oldTotal += oldNanos;
+                newTotal += newNanos;
+            }
+            System.out.printf("round %d, all spam: %.1f ms CPU in the old order, %.1f ms with cheap checks first, %.1f%% saved%n",
+                    round, oldTotal / 1e6, newTotal / 1e6, 100.0 * (oldTotal - newTotal) / oldTotal);
+        }
+    }
+
+    /**
+     * The checks of {@link TxHandler#isValidTx} in the order they had before: each input is looked
+     * up, then its signature is verified, then it is checked for a second claim, and the outputs
+     * are only checked after all inputs
+     */
+    private static boolean validateOldOrder(UTXOPool utxoPool, Transaction tx) {
+        long inputSum = 0;
+        long outputSum = 0;
+        Set<UTXO> utxoSet = new HashSet<UTXO>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            Transaction.Output prevOutput = utxoPool.getTxOutput(input.getUTXO());
+            if (prevOutput == null)
+                return false;
+            if (!Crypto.verifySignature(prevOutput.key, tx.getRawDataToSign(i), input.signature))
+                return false;
+            if (!utxoSet.add(input.getUTXO()))
+                return false;
+            inputSum += prevOutput.value;
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            Transaction.Output output = tx.getOutput(i);
+            if (output.value < 0)
+                return false;
+            outputSum += output.value;
+        }
+        return inputSum >= outputSum;
+    }
+}
@@ -1,4 +1,5 @@
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -9,6 +10,21 @@ import java.util.Arrays;
 
 public class Transaction {
 
+    /** number of base units in one bitcoin; all amounts are held as whole base units */
+    public static final long COIN = 100000000L;
+
+    /** How a transaction serializes its outputs for its hash and the data its inputs sign */
+    public enum Encoding {
+        /** amounts as 8-byte base units, keys in their compact {@link SignatureScheme} encoding */
+        STANDARD,
+        /**
+         * amounts as the 8-byte {@code double} bitcoin values and RSA keys as their public exponent
+         * followed by their modulus, as transactions were serialized before amounts became base
+         * units, so hashes and signatures of transactions created that way still match
+         */
+        LEGACY
+    }
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -16,15 +32,35 @@ public class Transaction {
         public int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature;
+        /** {@code prevTxHash} as a {@code Hash256}, if it is 32 bytes long */
+        private Hash256 prevTxId;
 
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
                 prevTxHash = null;
             else
                 prevTxHash = Arrays.copyOf(prevHash, prevHash.length);
+            if (prevHash != null && prevHash.length == Hash256.LENGTH)
+                prevTxId = Hash256.of(prevHash);
             outputIndex = index;
         }
 
+        /**
+         * @return the hash of the transaction whose output is being used, or null if it is not a
+         *         32-byte hash; reflects {@code prevTxHash} as it was when the input was created
+         */
+        public Hash256 getPrevTxId() {
+            return prevTxId;
+        }
+
+        /**
+         * @return the UTXO claimed by this input, or null if {@code prevTxHash} is not a 32-byte
+         *         hash and so cannot name any UTXO
+         */
+        public UTXO getUTXO() {
+            return prevTxId == null ? null : new UTXO(prevTxId, outputIndex);
+        }
+
         public void addSignature(byte[] sig) {
             if (sig == null)
                 signature = null;
@@ -69,14 +105,17 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units ({@link Transaction#COIN} per bitcoin) */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** the interned entry of {@code address}, shared by all outputs paying the same key */
+        public final KeyRegistry.Entry key;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
+            key = KeyRegistry.intern(addr);
         }
 
         public boolean equals(Object other) {
@@ -91,45 +130,55 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            // interned keys are equal exactly when they are the same entry
+            return key == op.key;
         }
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 17 + Long.hashCode(value);
+            hash = hash * 31 + key.hashCode();
             return hash;
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** {@code hashCode()} of a transaction with a hash, taken from the hash's first bytes */
+    private int hashHashCode;
+    /** {@code hash} as a {@code Hash256}, if it is 32 bytes long */
+    private Hash256 id;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
+    /** fixed for the life of the transaction, so its hash never changes with the encoding */
+    private final Encoding encoding;
 
     public Transaction() {
+        this(Encoding.STANDARD);
+    }
+
+    /** creates an empty transaction serialized with {@code encoding} */
+    public Transaction(Encoding encoding) {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
         coinbase = false;
+        this.encoding = encoding;
     }
 
     public Transaction(Transaction tx) {
+        encoding = tx.encoding;
         hash = tx.hash.clone();
+        hashHashCode = tx.hashHashCode;
+        id = tx.id;
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
         coinbase = false;
     }
 
-    /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    /** create a coinbase transaction of value {@code coin} base units and calls finalize on it */
+    public Transaction(long coin, PublicKey address) {
+        encoding = Encoding.STANDARD;
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -137,6 +186,10 @@ public class Transaction {
         finalize();
     }
 
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
     public boolean isCoinbase() {
         return coinbase;
     }
@@ -146,7 +199,8 @@ public class Transaction {
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
+    /** adds an output of {@code value} base units to {@code address} */
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
     }
@@ -158,8 +212,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.equals(in.getUTXO())) {
                 inputs.remove(i);
                 return;
             }
@@ -182,17 +235,12 @@ public class Transaction {
         for (int i = 0; i < outputIndex.length; i++)
             sigData.add(outputIndex[i]);
         for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            byte[] value = encodeValue(op.value);
+            byte[] address = encodeKey(op);
             for (int i = 0; i < value.length; i++)
                 sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+            for (int i = 0; i < address.length; i++)
+                sigData.add(address[i]);
         }
         byte[] sigD = new byte[sigData.size()];
         int i = 0;
@@ -201,6 +249,31 @@ public class Transaction {
         return sigD;
     }
 
+    /**
+     * @return the data to sign for every input, as {@link #getRawDataToSign(int)} returns it for
+     *         one, encoding the outputs shared by all of them only once
+     */
+    public byte[][] getAllRawDataToSign() {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (Output op : outputs) {
+            encoded.writeBytes(encodeValue(op.value));
+            encoded.writeBytes(encodeKey(op));
+        }
+        byte[] outputData = encoded.toByteArray();
+        byte[][] sigData = new byte[inputs.size()][];
+        for (int i = 0; i < sigData.length; i++) {
+            Input in = inputs.get(i);
+            int prevLength = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+            ByteBuffer b = ByteBuffer.allocate(prevLength + Integer.SIZE / 8 + outputData.length);
+            if (in.prevTxHash != null)
+                b.put(in.prevTxHash);
+            b.putInt(in.outputIndex);
+            b.put(outputData);
+            sigData[i] = b.array();
+        }
+        return sigData;
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
@@ -223,17 +296,12 @@ public class Transaction {
                     rawTx.add(signature[i]);
         }
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            byte[] value = encodeValue(op.value);
+            byte[] address = encodeKey(op);
             for (int i = 0; i < value.length; i++)
                 rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            for (int i = 0; i < address.length; i++)
+                rawTx.add(address[i]);
         }
         byte[] tx = new byte[rawTx.size()];
         int i = 0;
@@ -242,11 +310,30 @@ public class Transaction {
         return tx;
     }
 
+    private byte[] encodeValue(long value) {
+        ByteBuffer b = ByteBuffer.allocate(Long.SIZE / 8);
+        if (encoding == Encoding.LEGACY)
+            b.putDouble((double) value / COIN);
+        else
+            b.putLong(value);
+        return b.array();
+    }
+
+    private byte[] encodeKey(Output op) {
+        if (encoding == Encoding.STANDARD || !(op.address instanceof RSAPublicKey))
+            return op.key.getEncoded();
+        RSAPublicKey key = (RSAPublicKey) op.address;
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        encoded.writeBytes(key.getPublicExponent().toByteArray());
+        encoded.writeBytes(key.getModulus().toByteArray());
+        return encoded.toByteArray();
+    }
+
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(getRawTx());
-            hash = md.digest();
+            setHash(md.digest());
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
@@ -254,12 +341,20 @@ public class Transaction {
 
     public void setHash(byte[] h) {
         hash = h;
+        if (h != null)
+            hashHashCode = h.length >= 4 ? ByteBuffer.wrap(h).getInt() : Arrays.hashCode(h);
+        id = h != null && h.length == Hash256.LENGTH ? Hash256.of(h) : null;
     }
 
     public byte[] getHash() {
         return hash;
     }
 
+    /** @return the transaction's hash as a {@code Hash256}, or null if it has no 32-byte hash */
+    public Hash256 getId() {
+        return id;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
@@ -299,6 +394,9 @@ public class Transaction {
         }
 
         Transaction tx = (Transaction) other;
+        // the hash of a finalized transaction commits to all its inputs and outputs
+        if (hash != null || tx.hash != null)
+            return hash != null && tx.hash != null && MessageDigest.isEqual(hash, tx.hash);
         // inputs and outputs should be same
         if (tx.numInputs() != numInputs())
             return false;
@@ -318,7 +416,14 @@ public class Transaction {
         return true;
     }
 
+    /**
+     * Transactions with a hash (normally set by {@link #finalize()}) are equal exactly when their
+     * hashes are, and {@code hashCode()} is cached from the hash. Transactions without one are
+     * compared input by input and output by output, and never equal a transaction with a hash.
+     */
     public int hashCode() {
+        if (hash != null)
+            return hashHashCode;
         int hash = 1;
         for (int i = 0; i < numInputs(); i++) {
             hash = hash * 31 + getInput(i).hashCode();
@@ -1,34 +1,82 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    private HashMap<Hash256, Transaction> H;
+
+    /** hashes of the transactions in the pool whose signatures are known to be valid */
+    private HashSet<Hash256> verified;
+
+    /** stream the pool's admissions and evictions are published to, or null */
+    private ChainEventStream eventStream;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new HashMap<Hash256, Transaction>();
+        verified = new HashSet<Hash256>();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = new HashMap<Hash256, Transaction>(txPool.H);
+        verified = new HashSet<Hash256>(txPool.verified);
+    }
+
+    /** Publishes the transactions later added to or removed from the pool to {@code eventStream} */
+    void setEventStream(ChainEventStream eventStream) {
+        this.eventStream = eventStream;
     }
 
     public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        addTransaction(tx, false);
+    }
+
+    /**
+     * Adds {@code tx}, remembering whether its signatures were verified. A transaction's hash
+     * covers its signatures and the outputs it claims, so once verified, they stay valid in every
+     * block that includes a transaction with the same hash.
+     */
+    public void addTransaction(Transaction tx, boolean signaturesVerified) {
+        Hash256 hash = tx.getId();
+        Transaction old = H.put(hash, tx);
+        if (signaturesVerified)
+            verified.add(hash);
+        else
+            verified.remove(hash);
+        if (old == null && eventStream != null)
+            eventStream.txAdmitted(tx);
+    }
+
+    /** @return true if the transaction with hash {@code txId} is pooled with verified signatures */
+    public boolean isVerified(Hash256 txId) {
+        return verified.contains(txId);
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        removeTransaction(Hash256.idOf(txHash));
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
+        Hash256 hash = Hash256.idOf(txHash);
         return H.get(hash);
     }
 
+    public void removeTransaction(Hash256 txId) {
+        Transaction tx = H.remove(txId);
+        verified.remove(txId);
+        if (tx != null && eventStream != null)
+            eventStream.txEvicted(tx);
+    }
+
+    public Transaction getTransaction(Hash256 txId) {
+        return H.get(txId);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
         for (Transaction tx : H.values())
@@ -0,0 +1,344 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Builds signed transactions paying queued payments from the coins a set of keys owns in a UTXO
+ * pool. Payments are batched, up to {@link #setMaxOutputs} per transaction, and each batch is
+ * funded by one of the {@link CoinSelection} strategies. The data to sign is computed once per
+ * transaction for all of its inputs, and the inputs of all transactions built together are signed
+ * in parallel.
+ * <p>
+ * Every build takes the UTXO pool to spend from, normally the one at the current tip. Coins spent
+ * by built transactions are reserved, so later builds do not spend them again, until they leave
+ * the pool a build is given or are released with {@link #release} for a transaction that was
+ * never broadcast. Change outputs are only spent once they are in the pool. The owned coins are
+ * looked up in the pool's attached {@link AddressIndex} if it has one, and by scanning the pool
+ * otherwise.
+ */
+public class TxBuilder {
+
+    public static final int DEFAULT_MAX_OUTPUTS = 1000;
+    /** number of steps after which branch and bound gives up looking for a changeless selection */
+    public static final int BNB_MAX_TRIES = 100000;
+
+    public enum CoinSelection {
+        /** spends the largest coins until the batch is covered, and pays the rest back as change */
+        LARGEST_FIRST,
+        /**
+         * searches for coins that cover the batch without change, leaving at most the change
+         * tolerance to the fee, and falls back to largest first if there are none
+         */
+        BRANCH_AND_BOUND
+    }
+
+    private static class Payment {
+        PublicKey to;
+        long value;
+    }
+
+    private static class Coin {
+        UTXO utxo;
+        Transaction.Output output;
+    }
+
+    private static final ThreadLocal<EnumMap<SignatureScheme, Signature>> signatures = ThreadLocal.withInitial(
+            () -> new EnumMap<SignatureScheme, Signature>(SignatureScheme.class));
+
+    /** the key pairs of the wallet, by address */
+    private final HashMap<Hash256, KeyPair> keys = new HashMap<Hash256, KeyPair>();
+    private final HashSet<UTXO> reserved = new HashSet<UTXO>();
+    private final ArrayList<Payment> payments = new ArrayList<Payment>();
+    private PublicKey changeKey;
+    private long fee;
+    private long changeTolerance;
+    private int maxOutputs = DEFAULT_MAX_OUTPUTS;
+    private CoinSelection coinSelection = CoinSelection.LARGEST_FIRST;
+
+    /** Adds {@code keyPair} to the wallet; the first key added receives the change */
+    public void addKey(KeyPair keyPair) {
+        keys.put(Hash256.of(AddressIndex.addressOf(keyPair.getPublic())), keyPair);
+        if (changeKey == null)
+            changeKey = keyPair.getPublic();
+    }
+
+    public void setChangeKey(PublicKey changeKey) {
+        this.changeKey = changeKey;
+    }
+
+    /** Sets the fee in base units left by every transaction built; 0 by default */
+    public void setFee(long fee) {
+        if (fee < 0)
+            throw new IllegalArgumentException("fee " + fee);
+        this.fee = fee;
+    }
+
+    /**
+     * Sets how much more than its payments and fee a changeless selection may spend, the excess
+     * going to the fee; 0 by default, which only accepts exact matches
+     */
+    public void setChangeTolerance(long changeTolerance) {
+        if (changeTolerance < 0)
+            throw new IllegalArgumentException("change tolerance " + changeTolerance);
+        this.changeTolerance = changeTolerance;
+    }
+
+    /** Sets the maximum payments per transaction; {@link #DEFAULT_MAX_OUTPUTS} by default */
+    public void setMaxOutputs(int maxOutputs) {
+        if (maxOutputs < 1)
+            throw new IllegalArgumentException("max outputs " + maxOutputs);
+        this.maxOutputs = maxOutputs;
+    }
+
+    public void setCoinSelection(CoinSelection coinSelection) {
+        this.coinSelection = coinSelection;
+    }
+
+    /** Queues a payment of {@code value} base units to {@code to} */
+    public void addPayment(PublicKey to, long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("value " + value);
+        Payment payment = new Payment();
+        payment.to = to;
+        payment.value = value;
+        payments.add(payment);
+    }
+
+    /** @return the number of payments queued and not built yet */
+    public int getPendingPayments() {
+        return payments.size();
+    }
+
+    /** @return the total value of the unreserved coins the wallet owns in {@code utxoPool} */
+    public long getBalance(UTXOPool utxoPool) {
+        long balance = 0;
+        for (Coin coin : getCoins(utxoPool))
+            balance += coin.output.value;
+        return balance;
+    }
+
+    /**
+     * Builds, signs and finalizes the transactions paying all queued payments from the coins of
+     * {@code utxoPool}, which is read but not changed, and reserves the coins they spend. First
+     * drops the reservations of coins no longer in the pool, which were spent. Nothing is
+     * reserved, and the payments stay queued, if they cannot all be paid.
+     *
+     * @return the transactions, in the order their payments were queued
+     * @throws IllegalStateException if the wallet does not own enough coins
+     */
+    public List<Transaction> build(UTXOPool utxoPool) {
+        reserved.removeIf(utxo -> !utxoPool.contains(utxo));
+        List<Coin> coins = getCoins(utxoPool);
+        // largest first, and the same order on every run over the same pool
+        coins.sort((a, b) -> a.output.value != b.output.value ? Long.compare(b.output.value, a.output.value)
+                : a.utxo.compareTo(b.utxo));
+        boolean[] taken = new boolean[coins.size()];
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        ArrayList<KeyPair[]> signers = new ArrayList<KeyPair[]>();
+        for (int from = 0; from < payments.size(); from += maxOutputs) {
+            List<Payment> batch = payments.subList(from, Math.min(from + maxOutputs, payments.size()));
+            long target = fee;
+            for (Payment payment : batch)
+                target = Math.addExact(target, payment.value);
+            List<Coin> selected = null;
+            if (coinSelection == CoinSelection.BRANCH_AND_BOUND)
+                selected = selectBranchAndBound(coins, taken, target);
+            boolean change = selected == null;
+            if (selected == null)
+                selected = selectLargestFirst(coins, taken, target);
+            if (selected == null)
+                throw new IllegalStateException("insufficient funds for " + target + " base units");
+
+            Transaction tx = new Transaction();
+            KeyPair[] txSigners = new KeyPair[selected.size()];
+            long total = 0;
+            for (int i = 0; i < selected.size(); i++) {
+                Coin coin = selected.get(i);
+                tx.addInput(coin.utxo.getTxHash(), coin.utxo.getIndex());
+                txSigners[i] = keys.get(Hash256.of(coin.output.key.getAddress()));
+                total += coin.output.value;
+            }
+            for (Payment payment : batch)
+                tx.addOutput(payment.value, payment.to);
+            if (change && total > target)
+                tx.addOutput(total - target, changeKey);
+            txs.add(tx);
+            signers.add(txSigners);
+        }
+        sign(txs, signers);
+        for (int i = 0; i < taken.length; i++)
+            if (taken[i])
+                reserved.add(coins.get(i).utxo);
+        payments.clear();
+        return txs;
+    }
+
+    /**
+     * Releases the coins reserved for {@code tx}, a transaction built here that will not be
+     * broadcast, so that later builds may spend them
+     */
+    public void release(Transaction tx) {
+        for (Transaction.Input input : tx.getInputs())
+            reserved.remove(input.getUTXO());
+    }
+
+    /** @return the number of coins reserved by built transactions */
+    public int getReservedCount() {
+        return reserved.size();
+    }
+
+    /** Signs every input of {@code txs} in parallel with its key pair in {@code signers} */
+    private static void sign(List<Transaction> txs, List<KeyPair[]> signers) {
+        byte[][][] sigData = new byte[txs.size()][][];
+        IntStream.range(0, txs.size()).parallel().forEach(t -> sigData[t] = txs.get(t).getAllRawDataToSign());
+        int inputs = 0;
+        for (Transaction tx : txs)
+            inputs += tx.numInputs();
+        // every input is a job, numbered in order of transaction and input
+        int[] txOf = new int[inputs];
+        int[] inputOf = new int[inputs];
+        for (int t = 0, job = 0; t < txs.size(); t++)
+            for (int i = 0; i < txs.get(t).numInputs(); i++, job++) {
+                txOf[job] = t;
+                inputOf[job] = i;
+            }
+        IntStream.range(0, inputs).parallel().forEach(job -> {
+            KeyPair signer = signers.get(txOf[job])[inputOf[job]];
+            SignatureScheme scheme = SignatureScheme.of(signer.getPublic());
+            Signature signature = signatures.get().computeIfAbsent(scheme, SignatureScheme::newSignature);
+            try {
+                signature.initSign(signer.getPrivate());
+                signature.update(sigData[txOf[job]][inputOf[job]]);
+                txs.get(txOf[job]).addSignature(signature.sign(), inputOf[job]);
+            } catch (GeneralSecurityException x) {
+                throw new IllegalStateException(x);
+            }
+        });
+        txs.parallelStream().forEach(Transaction::finalize);
+    }
+
+    /** @return the coins of the wallet's keys in {@code utxoPool} that are not reserved */
+    private List<Coin> getCoins(UTXOPool utxoPool) {
+        ArrayList<Coin> coins = new ArrayList<Coin>();
+        AddressIndex addressIndex = utxoPool.getAddressIndex();
+        if (addressIndex != null) {
+            for (KeyPair keyPair : keys.values())
+                for (Map.Entry<UTXO, Transaction.Output> entry : addressIndex.getCoins(keyPair.getPublic()).entrySet())
+                    addCoin(coins, entry.getKey(), entry.getValue());
+        } else {
+            utxoPool.stream().forEach(entry -> {
+                if (keys.containsKey(Hash256.of(entry.getValue().key.getAddress())))
+                    addCoin(coins, entry.getKey(), entry.getValue());
+            });
+        }
+        return coins;
+    }
+
+    private void addCoin(List<Coin> coins, UTXO utxo, Transaction.Output output) {
+        if (reserved.contains(utxo))
+            return;
+        Coin coin = new Coin();
+        coin.utxo = utxo;
+        coin.output = output;
+        coins.add(coin);
+    }
+
+    /**
+     * @return the largest coins not taken that add up to at least {@code target}, now taken, or
+     *         null
+     */
+    private static List<Coin> selectLargestFirst(List<Coin> coins, boolean[] taken, long target) {
+        ArrayList<Integer> selected = new ArrayList<Integer>();
+        long total = 0;
+        for (int i = 0; i < coins.size() && total < target; i++) {
+            if (taken[i])
+                continue;
+            selected.add(i);
+            total += coins.get(i).output.value;
+        }
+        return total < target ? null : take(coins, taken, selected);
+    }
+
+    /**
+     * Searches depth first, largest coins first, for coins not taken that add up to between
+     * {@code target} and {@code target} plus the change tolerance, keeping the one with the least
+     * excess
+     *
+     * @return the coins found, now taken, or null
+     */
+    private List<Coin> selectBranchAndBound(List<Coin> coins, boolean[] taken, long target) {
+        ArrayList<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < coins.size(); i++)
+            if (!taken[i])
+                candidates.add(i);
+        int n = candidates.size();
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++)
+            values[i] = coins.get(candidates.get(i)).output.value;
+        // remaining[d] is the value of the candidates from d on
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+        boolean[] included = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long total = 0;
+        int depth = 0;
+        for (int tries = 0; tries < BNB_MAX_TRIES; tries++) {
+            boolean backtrack = false;
+            if (total - target > changeTolerance || total + remaining[depth] < target) {
+                backtrack = true;
+            } else if (total >= target) {
+                if (total - target < bestExcess) {
+                    bestExcess = total - target;
+                    best = Arrays.copyOf(included, n);
+                    Arrays.fill(best, depth, n, false);
+                }
+                if (bestExcess == 0)
+                    break;
+                backtrack = true;
+            }
+            if (backtrack) {
+                // exclude the deepest included candidate, and explore without it
+                while (depth > 0 && !included[depth - 1])
+                    depth--;
+                if (depth == 0)
+                    break;
+                included[depth - 1] = false;
+                total -= values[depth - 1];
+            } else if (depth > 0 && !included[depth - 1] && values[depth] == values[depth - 1]) {
+                // a candidate of the same value as an excluded one would only repeat its branch
+                included[depth++] = false;
+            } else {
+                included[depth] = true;
+                total += values[depth++];
+            }
+        }
+        if (best == null)
+            return null;
+        ArrayList<Integer> selected = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            if (best[i])
+                selected.add(candidates.get(i));
+        return take(coins, taken, selected);
+    }
+
+    private static List<Coin> take(List<Coin> coins, boolean[] taken, List<Integer> selected) {
+        ArrayList<Coin> result = new ArrayList<Coin>(selected.size());
+        for (int i : selected) {
+            taken[i] = true;
+            result.add(coins.get(i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,87 @@
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Pays {@code payments} payments of one and a half coins' worth each from a wallet of equal
+ * coins, which takes two inputs per payment, and reports signed transactions and payments per
+ * second for:
+ * <ul>
+ * <li>transactions built by hand, one per payment, signing input by input as in
+ * {@code SampleTxCase},</li>
+ * <li>{@link TxBuilder} with one payment per transaction, on 1 and on all available threads,
+ * and</li>
+ * <li>{@link TxBuilder} batching {@code batch} payments per transaction.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java TxBuilderBenchmark [payments] [batch]}; the defaults are 2000 and 100.
+ */
+public class TxBuilderBenchmark {
+
+    private static final long COIN_VALUE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        KeyPair wallet = SignatureScheme.RSA.generateKeyPair();
+        KeyPair payee = SignatureScheme.RSA.generateKeyPair();
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 2 * count; i++)
+            funding.addOutput(COIN_VALUE, wallet.getPublic());
+        funding.finalize();
+        UTXOPool utxoPool = new UTXOPool();
+        for (int i = 0; i < 2 * count; i++)
+            utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d payments, %d threads available%n", count, threads);
+
+        for (int round = 0; round < 3; round++) {
+            Signature signer = SignatureScheme.RSA.newSignature();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Transaction tx = new Transaction();
+                tx.addInput(funding.getHash(), 2 * i);
+                tx.addInput(funding.getHash(), 2 * i + 1);
+                tx.addOutput(COIN_VALUE * 3 / 2, payee.getPublic());
+                tx.addOutput(COIN_VALUE / 2, wallet.getPublic());
+                for (int j = 0; j < 2; j++) {
+                    signer.initSign(wallet.getPrivate());
+                    signer.update(tx.getRawDataToSign(j));
+                    tx.addSignature(signer.sign(), j);
+                }
+                tx.finalize();
+            }
+            report(round, "by hand", count, count, System.nanoTime() - start);
+
+            for (int workers : threads == 1 ? new int[] { 1 } : new int[] { 1, threads }) {
+                TxBuilder builder = newBuilder(wallet, payee, count, 1);
+                ForkJoinPool pool = new ForkJoinPool(workers);
+                // a parallel stream started from a task of a pool runs on that pool
+                start = System.nanoTime();
+                List<Transaction> txs = pool.submit(() -> builder.build(utxoPool)).get();
+                report(round, "builder, " + workers + " thread(s)", txs.size(), count, System.nanoTime() - start);
+                pool.shutdown();
+            }
+
+            TxBuilder builder = newBuilder(wallet, payee, count, batch);
+            start = System.nanoTime();
+            List<Transaction> txs = builder.build(utxoPool);
+            report(round, "builder, " + batch + " per tx", txs.size(), count, System.nanoTime() - start);
+        }
+    }
+
+    private static TxBuilder newBuilder(KeyPair wallet, KeyPair payee, int count, int batch) {
+        TxBuilder builder = new TxBuilder();
+        builder.addKey(wallet);
+        builder.setMaxOutputs(batch);
+        for (int i = 0; i < count; i++)
+            builder.addPayment(payee.getPublic(), COIN_VALUE * 3 / 2);
+        return builder;
+    }
+
+    private static void report(int round, String name, int txs, int payments, long nanos) {
+        System.out.printf("round %d, %-22s %6d txs, %8.0f signed txs/s, %8.0f payments/s%n", round, name + ":", txs,
+                txs / (nanos / 1e9), payments / (nanos / 1e9));
+    }
+}
@@ -1,17 +1,38 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    private NodeMetrics metrics;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. 
      */
     public TxHandler(UTXOPool utxoPool) {
-        this.utxoPool = new UTXOPool(utxoPool);
+        this(utxoPool, NodeMetrics.DISABLED);
+    }
+
+    /** Creates a public ledger over a copy of {@code utxoPool} that reports to {@code metrics} */
+    public TxHandler(UTXOPool utxoPool, NodeMetrics metrics) {
+        this(utxoPool, metrics, false);
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool, NodeMetrics)}, with a copy that tracks the set hash if
+     * {@code withSetHash}
+     */
+    TxHandler(UTXOPool utxoPool, NodeMetrics metrics, boolean withSetHash) {
+        this.metrics = metrics;
+        long start = metrics.start();
+        this.utxoPool = new UTXOPool(utxoPool, withSetHash);
+        metrics.stop(NodeMetrics.Phase.UTXO_COPY, start);
     }
 
     public UTXOPool getUTXOPool() {
@@ -28,37 +49,245 @@ public class TxHandler {
      */
     public boolean isValidTx(Transaction tx) {
         // IMPLEMENT THIS
-        double inputSum  = 0;
-        double outputSum = 0;
+        return validateTx(tx).isValid();
+    }
+
+    /**
+     * Checks the same conditions as {@link #isValidTx} and reports the first one that fails. The
+     * cheap checks (1), (3), (4) and (5) all run before any signature is verified, so malformed
+     * or overspending transactions never reach the crypto.
+     * 
+     * @return {@code VALID}, or one of {@code MISSING_INPUT} (1), {@code DOUBLE_SPEND} (3),
+     *         {@code NEGATIVE_OUTPUT} (4), {@code INSUFFICIENT_INPUT} or {@code VALUE_OVERFLOW} (5)
+     *         or {@code BAD_SIGNATURE} (2)
+     */
+    public ValidationResult validateTx(Transaction tx) {
+        return validateTx(utxoPool, tx, metrics);
+    }
+
+    /** Validates {@code tx} against {@code utxoPool} without copying the pool */
+    static ValidationResult validateTx(UTXOPool utxoPool, Transaction tx, NodeMetrics metrics) {
+        ValidationResult result = precheckTx(utxoPool, tx, metrics);
+        if (!result.isValid())
+            return result;
+        return verifySignatures(utxoPool, tx, metrics);
+    }
+
+    /**
+     * Checks conditions (1), (3), (4) and (5) of {@link #isValidTx} in O(inputs + outputs),
+     * without verifying any signature.
+     */
+    static ValidationResult precheckTx(UTXOPool utxoPool, Transaction tx, NodeMetrics metrics) {
+        metrics.increment(NodeMetrics.Counter.TXS_VALIDATED);
+        long inputSum  = 0;
+        long outputSum = 0;
         Set<UTXO> utxoSet = new HashSet<UTXO> ();
         // looping through the input values
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
             // (1) check if not in UTXO Pool
-            if (!utxoPool.contains(utxo))
-                return false;
-            Transaction.Output prevOutput = utxoPool.getTxOutput(utxo);
-            // (2) check if signature on each input is valid
-            if (!Crypto.verifySignature(prevOutput.address, tx.getRawDataToSign(i), input.signature))
-                return false;
+            Transaction.Output prevOutput = utxoPool.getTxOutput(input.getPrevTxId(), input.outputIndex);
+            if (prevOutput == null)
+                return ValidationResult.MISSING_INPUT;
             // (3) check if a UTXO is claimed before
-            if (utxoSet.contains(utxo))
-                return false;
-            utxoSet.add(utxo);
+            if (!utxoSet.add(input.getUTXO()))
+                return ValidationResult.DOUBLE_SPEND;
             inputSum += prevOutput.value;
+            // amounts are non-negative, so a sum that wraps around has overflowed
+            if (inputSum < 0)
+                return ValidationResult.VALUE_OVERFLOW;
         }
         // looping through the output values
         for (int i = 0; i < tx.numOutputs(); i++) {
             Transaction.Output output = tx.getOutput(i);
             // (4) check if output value is negative
             if (output.value < 0)
-                return false;
+                return ValidationResult.NEGATIVE_OUTPUT;
             outputSum += output.value;
+            if (outputSum < 0)
+                return ValidationResult.VALUE_OVERFLOW;
         }
         // (5) check if input sum is smaller than output sum
         if (inputSum < outputSum)
+            return ValidationResult.INSUFFICIENT_INPUT;
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Checks condition (2) of {@link #isValidTx}. Assumes {@code tx} passed
+     * {@link #precheckTx}, so every claimed output is in {@code utxoPool}.
+     */
+    static ValidationResult verifySignatures(UTXOPool utxoPool, Transaction tx, NodeMetrics metrics) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            Transaction.Output prevOutput = utxoPool.getTxOutput(input.getPrevTxId(), input.outputIndex);
+            // (2) check if signature on each input is valid
+            metrics.increment(NodeMetrics.Counter.SIG_VERIFIES);
+            long start = metrics.start();
+            boolean validSignature = Crypto.verifySignature(prevOutput.key, tx.getRawDataToSign(i), input.signature);
+            metrics.stop(NodeMetrics.Phase.SIG_VERIFY, start);
+            if (!validSignature)
+                return ValidationResult.BAD_SIGNATURE;
+        }
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Verifies the signatures of all inputs of {@code txs} at once, in parallel. An input's key is
+     * taken from the output it claims, in {@code utxoPool} or among the outputs of {@code txs}.
+     * 
+     * @return the transactions all of whose inputs have a known key and a valid signature; the
+     *         others are left for {@link #verifySignatures} to reject one by one
+     */
+    static Set<Transaction> verifySignaturesBatch(UTXOPool utxoPool, Transaction[] txs, NodeMetrics metrics) {
+        return verifySignaturesBatch(utxoPool, txs, tx -> false, metrics);
+    }
+
+    /**
+     * Same as {@link #verifySignaturesBatch(UTXOPool, Transaction[], NodeMetrics)}, but takes
+     * the transactions for which {@code preverified} holds as verified without checking them
+     */
+    static Set<Transaction> verifySignaturesBatch(UTXOPool utxoPool, Transaction[] txs,
+            Predicate<Transaction> preverified, NodeMetrics metrics) {
+        long start = metrics.start();
+        OutpointMap<Transaction.Output> created = new OutpointMap<Transaction.Output>();
+        for (Transaction tx : txs)
+            if (tx.getId() != null)
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    created.put(tx.getId(), i, tx.getOutput(i));
+        ArrayList<Transaction> checkTxs = new ArrayList<Transaction>();
+        ArrayList<Integer> checkInputs = new ArrayList<Integer>();
+        ArrayList<KeyRegistry.Entry> checkKeys = new ArrayList<KeyRegistry.Entry>();
+        Set<Transaction> candidates = Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        for (Transaction tx : txs) {
+            if (preverified.test(tx)) {
+                metrics.increment(NodeMetrics.Counter.TXS_PREVERIFIED);
+                candidates.add(tx);
+                continue;
+            }
+            boolean keysKnown = true;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Transaction.Output prevOutput = utxoPool.getTxOutput(input.getPrevTxId(), input.outputIndex);
+                if (prevOutput == null && input.getPrevTxId() != null)
+                    prevOutput = created.get(input.getPrevTxId(), input.outputIndex);
+                if (prevOutput == null) {
+                    keysKnown = false;
+                    break;
+                }
+                checkTxs.add(tx);
+                checkInputs.add(i);
+                checkKeys.add(prevOutput.key);
+            }
+            if (keysKnown)
+                candidates.add(tx);
+        }
+        boolean[] valid = new boolean[checkTxs.size()];
+        IntStream.range(0, valid.length).parallel().forEach(c -> {
+            Transaction tx = checkTxs.get(c);
+            int i = checkInputs.get(c);
+            KeyRegistry.Entry key = checkKeys.get(c);
+            valid[c] = key.getScheme().verify(key.getKey(), tx.getRawDataToSign(i), tx.getInput(i).signature);
+        });
+        for (int c = 0; c < valid.length; c++) {
+            metrics.increment(NodeMetrics.Counter.SIG_VERIFIES);
+            if (!valid[c])
+                candidates.remove(checkTxs.get(c));
+        }
+        metrics.stop(NodeMetrics.Phase.BATCH_VERIFY, start);
+        return candidates;
+    }
+
+    /**
+     * Validates the transactions of a block, which must all be valid together, and applies them to
+     * the UTXO pool. The result is the same as accepting all of them through {@link #handleTxs},
+     * but the pool only sees the block's net effect: an output created and spent within the block
+     * never enters it, so transactions that depend on each other need no ordering. Inputs are
+     * looked up in the pool and among the block's own outputs, signatures are verified by
+     * {@link #verifySignaturesBatch}, and the spends and new outputs are applied shard by shard
+     * in parallel through {@link UTXOPool#apply}.
+     * <p>
+     * A block that recreates an output already in the pool, which is only possible for a
+     * transaction without inputs, is handled by {@link #handleTxs} instead, whose outcome then
+     * depends on the order of the transactions.
+     *
+     * @return true if all of {@code blockTxs} are valid together and were applied; false if not,
+     *         in which case the pool is unchanged
+     */
+    public boolean applyBlockTxs(Transaction[] blockTxs) {
+        return applyBlockTxs(blockTxs, tx -> false);
+    }
+
+    /**
+     * Same as {@link #applyBlockTxs(Transaction[])}, but does not verify the signatures of the
+     * transactions for which {@code preverified} holds, such as those verified on entering the
+     * mempool
+     */
+    public boolean applyBlockTxs(Transaction[] blockTxs, Predicate<Transaction> preverified) {
+        long start = metrics.start();
+        boolean applied = applyBlockTxsTimed(blockTxs, preverified);
+        metrics.stop(NodeMetrics.Phase.APPLY_BLOCK_TXS, start);
+        return applied;
+    }
+
+    private boolean applyBlockTxsTimed(Transaction[] blockTxs, Predicate<Transaction> preverified) {
+        OutpointMap<Transaction.Output> created = new OutpointMap<Transaction.Output>();
+        HashSet<Hash256> txIds = new HashSet<Hash256>();
+        boolean recreates = false;
+        for (Transaction tx : blockTxs) {
+            // a transaction is accepted at most once
+            if (tx.getId() == null || !txIds.add(tx.getId()))
+                return false;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                created.put(tx.getId(), i, tx.getOutput(i));
+                recreates |= utxoPool.getTxOutput(tx.getId(), i) != null;
+            }
+        }
+        if (recreates) {
+            TxHandler sequential = new TxHandler(utxoPool, metrics, utxoPool.isTrackingSetHash());
+            if (sequential.handleTxs(blockTxs, true).length != blockTxs.length)
+                return false;
+            utxoPool = sequential.utxoPool;
+            return true;
+        }
+        // the outputs spent by the block, mapped to the transactions that spend them
+        OutpointMap<Transaction> spentBy = new OutpointMap<Transaction>();
+        for (Transaction tx : blockTxs) {
+            metrics.increment(NodeMetrics.Counter.TXS_VALIDATED);
+            long inputSum = 0;
+            long outputSum = 0;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Hash256 prevTxId = input.getPrevTxId();
+                if (prevTxId == null)
+                    return false;
+                Transaction.Output prevOutput = utxoPool.getTxOutput(prevTxId, input.outputIndex);
+                if (prevOutput == null)
+                    prevOutput = created.get(prevTxId, input.outputIndex);
+                // a missing input, or one spent twice within the block
+                if (prevOutput == null || spentBy.put(prevTxId, input.outputIndex, tx) != null)
+                    return false;
+                inputSum += prevOutput.value;
+                if (inputSum < 0)
+                    return false;
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                Transaction.Output output = tx.getOutput(i);
+                outputSum += output.value;
+                if (output.value < 0 || outputSum < 0)
+                    return false;
+            }
+            if (inputSum < outputSum)
+                return false;
+        }
+        if (verifySignaturesBatch(utxoPool, blockTxs, preverified, metrics).size() != blockTxs.length)
             return false;
+        ArrayList<UTXO> spent = new ArrayList<UTXO>(spentBy.size());
+        spentBy.forEach((utxo, tx) -> {
+            if (created.remove(utxo) == null)
+                spent.add(utxo);
+        });
+        utxoPool.apply(spent, created);
         return true;
     }
 
@@ -69,23 +298,59 @@ public class TxHandler {
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
+        return handleTxs(possibleTxs, false);
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}; if {@code batchVerify}, the signatures of all of
+     * {@code possibleTxs} are first verified together by {@link #verifySignaturesBatch}, which
+     * pays off for a whole block, where nearly every transaction is valid
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs, boolean batchVerify) {
+        long start = metrics.start();
         ArrayList<Transaction> validTransactions = new ArrayList<Transaction>();
-        for (int i = 0; i < possibleTxs.length; i++) {
+        HashSet<Transaction> accepted = new HashSet<Transaction>();
+        // the outputs a transaction claims never change once they exist, so a signature check
+        // done in one pass holds for all later passes, and so does a permanent rejection
+        Set<Transaction> verified = batchVerify ? verifySignaturesBatch(utxoPool, possibleTxs, metrics)
+                : Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        Set<Transaction> rejected = Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        boolean progress = true;
+        // a pass that accepts nothing leaves the pool unchanged, so later passes would not either
+        for (int i = 0; i < possibleTxs.length && progress; i++) {
+            metrics.increment(NodeMetrics.Counter.HANDLE_TXS_PASSES);
+            progress = false;
             for (Transaction tx : possibleTxs) {
-                // if transaction is valid and not taken before, then add it
-                if (isValidTx(tx) && !validTransactions.contains(tx)) {
+                if (rejected.contains(tx))
+                    continue;
+                ValidationResult result = precheckTx(utxoPool, tx, metrics);
+                // if transaction is taken before, then skip it
+                if (result.isValid() && accepted.contains(tx))
+                    continue;
+                if (result.isValid() && !verified.contains(tx)) {
+                    result = verifySignatures(utxoPool, tx, metrics);
+                    if (result.isValid())
+                        verified.add(tx);
+                }
+                if (result.isPermanent())
+                    rejected.add(tx);
+                // if transaction is valid, then add it
+                if (result.isValid()) {
                     validTransactions.add(tx);
+                    accepted.add(tx);
+                    progress = true;
                     // we need to add the outputs to the UTXO Pool
                     for (int outIdx = 0; outIdx < tx.numOutputs(); outIdx++) 
-                        utxoPool.addUTXO(new UTXO(tx.getHash(), outIdx), tx.getOutput(outIdx));
+                        utxoPool.addUTXO(new UTXO(tx.getId(), outIdx), tx.getOutput(outIdx));
                     // we need to remove the inputs from the UTXO Pool
                     for (int inIdx = 0; inIdx < tx.numInputs(); inIdx++) {
                         Transaction.Input input = tx.getInput(inIdx);
-                        utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+                        utxoPool.removeUTXO(input.getUTXO());
                     }
                 }
             }
         }
+        metrics.stop(NodeMetrics.Phase.HANDLE_TXS, start);
         return validTransactions.toArray(new Transaction[0]);
     }
 }
@@ -0,0 +1,350 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An index of confirmed transactions from transaction hash to the block containing it, its height
+ * and the transaction's position in the block. Position 0 is the coinbase and position
+ * {@code i + 1} is {@code block.getTransaction(i)}, which is also the transaction's leaf index in
+ * the block's Merkle tree.
+ * <p>
+ * As a {@link ChainListener} of a {@code BlockChain} the index covers the main chain from the
+ * moment it is registered. Entries are kept in an {@link OutpointMap} keyed by the transaction
+ * hash, so a lookup reads a flat table straight from the hash bytes without allocating. A
+ * transaction confirmed again under the same hash, such as a coinbase paying the same key, shadows
+ * its earlier location until the later block is disconnected. If the main chain moves along a
+ * path that was pruned, the blocks in between can no longer be reported, so the index is cleared
+ * and covers the chain from the new tip on.
+ * <p>
+ * A persistent index appends each connected or disconnected block as a single record to its
+ * file: its length, its CRC-32 and its content. The file is replayed when it is opened again, up
+ * to a last record left torn or corrupt by a crash. The log is not kept forever: when the index is
+ * opened, and whenever a reset clears it, the file is replaced by a snapshot of the entries, a
+ * reset record followed by records of {@link #SNAPSHOT_BATCH} entries, written to a temporary file
+ * and moved over the old one.
+ */
+public class TxIndex implements ChainListener {
+
+    private static final byte CONNECT = 1;
+    private static final byte DISCONNECT = 2;
+    private static final byte RESET = 3;
+    private static final byte ENTRIES = 4;
+    /** entries per snapshot record, which keeps it well under {@link #MAX_RECORD_LENGTH} */
+    private static final int SNAPSHOT_BATCH = 65536;
+    /** longest record read back: a block of a million transactions */
+    private static final int MAX_RECORD_LENGTH = 64 << 20;
+
+    /** Where a confirmed transaction is */
+    public static class Location {
+        private final byte[] txHash;
+        private final byte[] blockHash;
+        private final int height;
+        private final int index;
+        private Location next;
+
+        private Location(byte[] txHash, byte[] blockHash, int height, int index) {
+            this.txHash = txHash;
+            this.blockHash = blockHash;
+            this.height = height;
+            this.index = index;
+        }
+
+        public byte[] getTxHash() {
+            return txHash;
+        }
+
+        public byte[] getBlockHash() {
+            return blockHash;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** @return the position of the transaction in its block; 0 is the coinbase */
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    /** the latest location of each indexed transaction hash, chained to the ones it shadows */
+    private final OutpointMap<Location> locations = new OutpointMap<Location>();
+    /** hash and height of the last block the index followed the main chain to, or null and 0 */
+    private byte[] tipHash;
+    private int tipHeight;
+    private File file;
+    private OutputStream log;
+
+    /** Creates an empty in-memory index */
+    public TxIndex() {
+    }
+
+    /**
+     * Opens the persistent index stored in {@code file}, creating the file if it does not exist,
+     * loads every block recorded in it and replaces it with a snapshot
+     */
+    public TxIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                replay(in);
+            }
+        }
+        writeSnapshot();
+    }
+
+    /** @return where the transaction with hash {@code txHash} is, or null if it is not indexed */
+    public Location get(byte[] txHash) {
+        if (txHash == null || txHash.length != Hash256.LENGTH)
+            return null;
+        return locations.get(txHash, 0, 0);
+    }
+
+    /** @return the number of indexed transactions */
+    public int size() {
+        return locations.size();
+    }
+
+    /** Closes the file of a persistent index */
+    public void close() throws IOException {
+        if (log != null)
+            log.close();
+    }
+
+    public void blockConnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        byte[][] txHashes = getTxHashes(block);
+        for (int i = 0; i < txHashes.length; i++)
+            put(new Location(txHashes[i], block.getHash(), height, i));
+        tipHash = block.getHash();
+        tipHeight = height;
+        append(CONNECT, block.getHash(), height, txHashes);
+    }
+
+    public void blockDisconnected(Block block, int height, UTXOPool before, UTXOPool after) {
+        byte[][] txHashes = getTxHashes(block);
+        for (int i = 0; i < txHashes.length; i++)
+            remove(txHashes[i], block.getHash());
+        tipHash = block.getPrevBlockHash();
+        tipHeight = height - 1;
+        append(DISCONNECT, block.getHash(), height, txHashes);
+    }
+
+    /**
+     * Keeps the entries if {@code tip} is the block the index last followed the chain to, or if
+     * the index never followed a chain; otherwise drops them all, since the blocks between the two
+     * tips cannot be reported. A persistent index then starts its file over from the new tip.
+     */
+    public void tipReset(Block tip, int height, UTXOPool utxoPool) {
+        if (tipHash != null && Arrays.equals(tipHash, tip.getHash()))
+            return;
+        locations.clear();
+        tipHash = tip.getHash();
+        tipHeight = height;
+        if (log == null)
+            return;
+        try {
+            writeSnapshot();
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    private static byte[][] getTxHashes(Block block) {
+        byte[][] txHashes = new byte[block.getTransactions().size() + 1][];
+        txHashes[0] = block.getCoinbase().getHash();
+        for (int i = 1; i < txHashes.length; i++)
+            txHashes[i] = block.getTransaction(i - 1).getHash();
+        return txHashes;
+    }
+
+    /** adds {@code location} ahead of any earlier location of the same transaction hash */
+    private void put(Location location) {
+        Hash256 key = Hash256.of(location.txHash);
+        location.next = locations.get(key, 0);
+        locations.put(key, 0, location);
+    }
+
+    /**
+     * removes the entry of {@code txHash} in block {@code blockHash}, uncovering an earlier
+     * location of the same hash if there is one
+     */
+    private void remove(byte[] txHash, byte[] blockHash) {
+        Hash256 key = Hash256.of(txHash);
+        Location prev = null;
+        for (Location l = locations.get(key, 0); l != null; prev = l, l = l.next) {
+            if (!Arrays.equals(l.blockHash, blockHash))
+                continue;
+            if (prev != null)
+                prev.next = l.next;
+            else if (l.next != null)
+                locations.put(key, 0, l.next);
+            else
+                locations.remove(key, 0);
+            return;
+        }
+    }
+
+    /**
+     * Replaces the file with a reset to the current tip followed by every entry, oldest location
+     * of a hash first, and appends to it from then on. A crash before the move leaves the old file.
+     */
+    private void writeSnapshot() throws IOException {
+        if (log != null)
+            log.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            log = new BufferedOutputStream(fileOut);
+            // an index that never followed a chain has nothing to record
+            if (tipHash != null) {
+                List<Location> entries = new ArrayList<Location>(SNAPSHOT_BATCH);
+                writeRecord(RESET, tipHash, tipHeight, entries);
+                List<Location> shadowed = new ArrayList<Location>();
+                locations.forEach((utxo, head) -> {
+                    shadowed.clear();
+                    for (Location l = head; l != null; l = l.next)
+                        shadowed.add(l);
+                    for (int i = shadowed.size() - 1; i >= 0; i--) {
+                        entries.add(shadowed.get(i));
+                        if (entries.size() == SNAPSHOT_BATCH) {
+                            writeRecord(ENTRIES, new byte[0], tipHeight, entries);
+                            entries.clear();
+                        }
+                    }
+                });
+                if (!entries.isEmpty())
+                    writeRecord(ENTRIES, new byte[0], tipHeight, entries);
+            }
+            log.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log = new BufferedOutputStream(new FileOutputStream(file, true));
+    }
+
+    /** writes a record of snapshot {@code entries}, or of none for a reset */
+    private void writeRecord(byte op, byte[] blockHash, int height, List<Location> entries) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(op);
+            writeBytes(out, blockHash);
+            writeBytes(out, tipHash);
+            out.writeInt(height);
+            out.writeInt(entries.size());
+            for (Location l : entries) {
+                writeBytes(out, l.txHash);
+                writeBytes(out, l.blockHash);
+                out.writeInt(l.height);
+                out.writeInt(l.index);
+            }
+            writeRecord(record);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    /** writes one block's batch of entries, and the tip the index is at after it, as one record */
+    private void append(byte op, byte[] blockHash, int height, byte[][] txHashes) {
+        if (log == null)
+            return;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(op);
+            writeBytes(out, blockHash);
+            writeBytes(out, tipHash);
+            out.writeInt(height);
+            out.writeInt(txHashes.length);
+            for (byte[] txHash : txHashes)
+                writeBytes(out, txHash);
+            writeRecord(record);
+            log.flush();
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    private void writeRecord(ByteArrayOutputStream record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+        DataOutputStream logOut = new DataOutputStream(log);
+        logOut.writeInt(record.size());
+        logOut.writeInt((int) crc.getValue());
+        record.writeTo(log);
+    }
+
+    /**
+     * Applies the records of {@code in} up to the first one that is incomplete or does not match
+     * its checksum
+     */
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH)
+                    return;
+                record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum)
+                    return;
+            } catch (EOFException x) {
+                return;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(record)));
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte op = record.readByte();
+        byte[] blockHash = readBytes(record);
+        tipHash = readBytes(record);
+        int height = record.readInt();
+        tipHeight = op == DISCONNECT ? height - 1 : height;
+        int count = record.readInt();
+        if (op == RESET) {
+            locations.clear();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] txHash = readBytes(record);
+            if (op == ENTRIES)
+                put(new Location(txHash, readBytes(record), record.readInt(), record.readInt()));
+            else if (op == CONNECT)
+                put(new Location(txHash, blockHash, height, i));
+            else
+                remove(txHash, blockHash);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeByte(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedByte()];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -1,32 +1,208 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * The set of unspent transaction outputs. UTXOs are partitioned by outpoint into {@link #SHARDS}
+ * maps, so that {@link #apply} can change the shards in parallel, one task per shard.
+ * <p>
+ * The rolling set hash costs a modular multiplication per change, so a pool only maintains it
+ * after {@link #trackSetHash()}, or when copied with it. The chain does so for the pools of its
+ * block states; the working copies made to check or assemble transactions skip it.
+ */
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * number of shards, a power of two: 16, or the available processors rounded up if there are
+     * more, so that {@link #apply} has a shard for every worker thread
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    public static final int SHARDS = Math.max(16,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+    private static final int SHARD_SHIFT = 64 - Integer.numberOfTrailingZeros(SHARDS);
+
+    /**
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction
+     * output, in the shard chosen by {@link #shardOf}
+     */
+    private final OutpointMap<Transaction.Output>[] shards;
+
+    /** index by address kept up to date with the pool, or null */
+    private AddressIndex addressIndex;
+
+    /** total value in base units of the UTXOs in the pool */
+    private long totalValue;
+
+    /** rolling hash of the UTXOs in the pool, or null if the pool does not track it */
+    private UtxoSetHash setHash;
 
     /** Creates a new empty UTXOPool */
+    @SuppressWarnings("unchecked")
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        shards = (OutpointMap<Transaction.Output>[]) new OutpointMap<?>[SHARDS];
+        for (int s = 0; s < SHARDS; s++)
+            shards[s] = new OutpointMap<Transaction.Output>();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool copying {@code uPool}, without its address index or set hash */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        this(uPool, false);
+    }
+
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, without its address index; if
+     * {@code withSetHash}, the copy tracks the set hash, taken from {@code uPool} if it tracks it
+     */
+    @SuppressWarnings("unchecked")
+    public UTXOPool(UTXOPool uPool, boolean withSetHash) {
+        shards = (OutpointMap<Transaction.Output>[]) new OutpointMap<?>[SHARDS];
+        for (int s = 0; s < SHARDS; s++)
+            shards[s] = new OutpointMap<Transaction.Output>(uPool.shards[s]);
+        totalValue = uPool.totalValue;
+        if (withSetHash && uPool.setHash != null)
+            setHash = new UtxoSetHash(uPool.setHash);
+        else if (withSetHash)
+            trackSetHash();
+    }
+
+    /**
+     * Hashes the UTXOs in the pool, unless it already tracks its set hash, and keeps the hash up to
+     * date from then on, so that {@link #getSetInfo()} takes O(1)
+     */
+    public void trackSetHash() {
+        if (setHash == null)
+            setHash = parallelStream().collect(UtxoSetHash::new, (hash, e) -> hash.add(e.getKey(), e.getValue()),
+                    UtxoSetHash::combine);
+    }
+
+    /** @return true if the pool keeps its set hash up to date */
+    public boolean isTrackingSetHash() {
+        return setHash != null;
+    }
+
+    /**
+     * @return the shard of the output at index {@code index} of the transaction with hash
+     *         {@code txId}. It mixes the index into a different word of the hash than the one
+     *         {@link OutpointMap} places entries by, so that the outputs of one transaction spread
+     *         over the shards and each shard's table stays evenly filled.
+     */
+    static int shardOf(Hash256 txId, int index) {
+        return (int) ((txId.w1 + index * 0x9E3779B97F4A7C15L) >>> SHARD_SHIFT);
+    }
+
+    private OutpointMap<Transaction.Output> shard(UTXO utxo) {
+        return shards[shardOf(utxo.getTxId(), utxo.getIndex())];
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        Transaction.Output old = shard(utxo).put(utxo, txOut);
+        if (old != null) {
+            totalValue -= old.value;
+            if (setHash != null)
+                setHash.remove(utxo, old);
+        }
+        totalValue += txOut.value;
+        if (setHash != null)
+            setHash.add(utxo, txOut);
+        if (addressIndex != null) {
+            if (old != null)
+                addressIndex.remove(utxo, old);
+            addressIndex.add(utxo, txOut);
+        }
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (utxo == null)
+            return;
+        Transaction.Output old = shard(utxo).remove(utxo);
+        if (old != null) {
+            totalValue -= old.value;
+            if (setHash != null)
+                setHash.remove(utxo, old);
+        }
+        if (addressIndex != null && old != null)
+            addressIndex.remove(utxo, old);
+    }
+
+    /**
+     * Removes every UTXO in {@code spent} and adds every UTXO in {@code created}, which must not
+     * have any in common, each shard in a task of its own in parallel. The pool ends up exactly as
+     * if they had been removed and added one by one, in any order: the set hash, if tracked, is a
+     * product, so each task collects its shard's changes in a hash of its own, and those are
+     * multiplied in afterwards. With an address index attached, which is not thread-safe, they are
+     * applied one by one.
+     */
+    public void apply(List<UTXO> spent, OutpointMap<Transaction.Output> created) {
+        if (addressIndex != null) {
+            for (UTXO utxo : spent)
+                removeUTXO(utxo);
+            created.forEach((utxo, txOut) -> addUTXO(utxo, txOut));
+            return;
+        }
+        List<List<UTXO>> removes = new ArrayList<List<UTXO>>(SHARDS);
+        List<List<UTXO>> adds = new ArrayList<List<UTXO>>(SHARDS);
+        for (int s = 0; s < SHARDS; s++) {
+            removes.add(new ArrayList<UTXO>());
+            adds.add(new ArrayList<UTXO>());
+        }
+        for (UTXO utxo : spent)
+            removes.get(shardOf(utxo.getTxId(), utxo.getIndex())).add(utxo);
+        created.forEach((utxo, txOut) -> adds.get(shardOf(utxo.getTxId(), utxo.getIndex())).add(utxo));
+        long[] valueDeltas = new long[SHARDS];
+        UtxoSetHash[] hashDeltas = new UtxoSetHash[SHARDS];
+        boolean hashed = setHash != null;
+        IntStream.range(0, SHARDS).parallel().forEach(s -> {
+            OutpointMap<Transaction.Output> shard = shards[s];
+            UtxoSetHash hashDelta = hashed ? new UtxoSetHash() : null;
+            long valueDelta = 0;
+            for (UTXO utxo : removes.get(s)) {
+                Transaction.Output old = shard.remove(utxo);
+                if (old != null) {
+                    valueDelta -= old.value;
+                    if (hashed)
+                        hashDelta.remove(utxo, old);
+                }
+            }
+            for (UTXO utxo : adds.get(s)) {
+                Transaction.Output txOut = created.get(utxo);
+                Transaction.Output old = shard.put(utxo, txOut);
+                if (old != null) {
+                    valueDelta -= old.value;
+                    if (hashed)
+                        hashDelta.remove(utxo, old);
+                }
+                valueDelta += txOut.value;
+                if (hashed)
+                    hashDelta.add(utxo, txOut);
+            }
+            valueDeltas[s] = valueDelta;
+            hashDeltas[s] = hashDelta;
+        });
+        totalValue += Arrays.stream(valueDeltas).sum();
+        if (hashed)
+            for (UtxoSetHash hashDelta : hashDeltas)
+                setHash.combine(hashDelta);
+    }
+
+    /**
+     * Builds an index by address over the UTXOs in the pool, which every later
+     * {@link #addUTXO} and {@link #removeUTXO} keeps up to date
+     */
+    public AddressIndex attachAddressIndex() {
+        if (addressIndex == null)
+            addressIndex = new AddressIndex(this);
+        return addressIndex;
+    }
+
+    /** @return the index attached by {@link #attachAddressIndex()}, or null */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
     }
 
     /**
@@ -34,21 +210,73 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return ut == null ? null : shard(ut).get(ut);
+    }
+
+    /**
+     * @return the transaction output at index {@code index} of the transaction with hash
+     *         {@code txId}, or null if it is not in the pool; unlike {@link #getTxOutput(UTXO)} it
+     *         does not allocate
+     */
+    public Transaction.Output getTxOutput(Hash256 txId, int index) {
+        return txId == null ? null : shards[shardOf(txId, index)].get(txId, index);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return utxo != null && shard(utxo).containsKey(utxo);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        int size = 0;
+        for (OutpointMap<Transaction.Output> shard : shards)
+            size += shard.size();
+        return size;
+    }
+
+    /** @return the number of slots in the shards of the pool, used and free */
+    public long getCapacity() {
+        long capacity = 0;
+        for (OutpointMap<Transaction.Output> shard : shards)
+            capacity += shard.getCapacity();
+        return capacity;
+    }
+
+    /**
+     * @return the number, total value and set hash of the UTXOs in the pool, in O(1) if the pool
+     *         tracks its set hash and by hashing every UTXO otherwise
+     */
+    public UTXOSetInfo getSetInfo() {
+        if (setHash == null)
+            return UTXOSetInfo.scan(this);
+        return new UTXOSetInfo(size(), totalValue, setHash.getDigest());
+    }
+
+    /**
+     * @return a spliterator over the UTXOs in the pool and their outputs, without copying them.
+     *         The pool must not be changed while it is in use; pools held by block states never
+     *         change once the block is added, so they can be iterated while other blocks connect.
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return stream().spliterator();
+    }
+
+    /** @return a sequential stream of the pool's UTXOs and outputs; see {@link #spliterator()} */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        return Arrays.stream(shards).flatMap(shard -> StreamSupport.stream(shard.spliterator(), false));
+    }
+
+    /** @return a parallel stream of the pool's UTXOs and outputs; see {@link #spliterator()} */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> parallelStream() {
+        return Arrays.stream(shards).parallel().flatMap(shard -> StreamSupport.stream(shard.spliterator(), true));
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+        for (OutpointMap<Transaction.Output> shard : shards)
+            shard.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
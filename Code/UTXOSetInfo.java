@@ -0,0 +1,57 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Summary of a UTXO set: the number of UTXOs, their total value and the digest of their
+ * {@link UtxoSetHash}. {@code UTXOPool.getSetInfo()} returns it in O(1) from totals kept up to date
+ * by every change to a pool that tracks its set hash, while {@link #scan} recomputes it from
+ * scratch with a parallel stream, for audits and for checking the incremental totals.
+ */
+public class UTXOSetInfo {
+
+    private final long count;
+    private final long totalValue;
+    private final byte[] setHash;
+
+    public UTXOSetInfo(long count, long totalValue, byte[] setHash) {
+        this.count = count;
+        this.totalValue = totalValue;
+        this.setHash = setHash;
+    }
+
+    /** @return the number of UTXOs in the set */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return the total value in base units of the UTXOs in the set */
+    public long getTotalValue() {
+        return totalValue;
+    }
+
+    /** @return the 32-byte digest of the set's {@link UtxoSetHash} */
+    public byte[] getSetHash() {
+        return setHash;
+    }
+
+    /** Recomputes the summary of {@code utxoPool} by streaming its UTXOs in parallel */
+    public static UTXOSetInfo scan(UTXOPool utxoPool) {
+        long count = utxoPool.parallelStream().count();
+        long totalValue = utxoPool.parallelStream().mapToLong(e -> e.getValue().value).sum();
+        UtxoSetHash setHash = utxoPool.parallelStream().collect(UtxoSetHash::new,
+                (hash, e) -> hash.add(e.getKey(), e.getValue()), UtxoSetHash::combine);
+        return new UTXOSetInfo(count, totalValue, setHash.getDigest());
+    }
+
+    /**
+     * @return the total value in base units owned by each address in {@code utxoPool}, computed in
+     *         parallel
+     */
+    public static Map<Hash256, Long> valuePerAddress(UTXOPool utxoPool) {
+        ConcurrentMap<Hash256, Long> values = utxoPool.parallelStream().collect(
+                Collectors.groupingByConcurrent(e -> Hash256.of(e.getValue().key.getAddress()),
+                        Collectors.summingLong(e -> e.getValue().value)));
+        return values;
+    }
+}
@@ -0,0 +1,74 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures {@link UTXOPool#apply} against removing and adding the same UTXOs one by one, on a pool
+ * of {@code utxos} UTXOs and a block that spends {@code spends} of them and creates twice as many,
+ * with 1, 2, 4, ... up to 32 worker threads. Most of the time goes into the set hash, whose
+ * modular multiplications are what the shards split between threads. {@link UTXOPool#apply} runs
+ * one task per shard, so threads beyond {@link UTXOPool#SHARDS} sit idle and those rows are
+ * skipped. Signatures are not part of this; see {@link SignatureBenchmark}.
+ * <p>
+ * Usage: {@code java UtxoApplyBenchmark [utxos] [spends]}; the defaults are 200000 and 5000.
+ */
+public class UtxoApplyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int utxos = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int spends = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        KeyPair keyPair = SignatureScheme.RSA.generateKeyPair();
+        Transaction.Output output = new Transaction(1, keyPair.getPublic()).getOutput(0);
+        Random random = new Random(42);
+
+        // measured as for the pool of a block state, which keeps its set hash
+        UTXOPool base = new UTXOPool();
+        base.trackSetHash();
+        UTXO[] existing = new UTXO[utxos];
+        for (int i = 0; i < utxos; i++) {
+            existing[i] = new UTXO(randomId(random), random.nextInt(2));
+            base.addUTXO(existing[i], output);
+        }
+        ArrayList<UTXO> spent = new ArrayList<UTXO>(spends);
+        for (int i = 0; i < spends; i++)
+            spent.add(existing[i * (utxos / spends)]);
+        OutpointMap<Transaction.Output> created = new OutpointMap<Transaction.Output>();
+        for (int i = 0; i < spends; i++) {
+            Hash256 txId = randomId(random);
+            created.put(txId, 0, output);
+            created.put(txId, 1, output);
+        }
+        System.out.printf("%d UTXOs, %d spent, %d created, %d processors, %d shards%n", utxos, spends,
+                created.size(), Runtime.getRuntime().availableProcessors(), UTXOPool.SHARDS);
+
+        for (int round = 0; round < 3; round++) {
+            UTXOPool pool = new UTXOPool(base, true);
+            long start = System.nanoTime();
+            for (UTXO utxo : spent)
+                pool.removeUTXO(utxo);
+            created.forEach((utxo, txOut) -> pool.addUTXO(utxo, txOut));
+            long sequential = System.nanoTime() - start;
+            byte[] expected = pool.getSetInfo().getSetHash();
+            System.out.printf("round %d: one by one %.1f ms%n", round, sequential / 1e6);
+            for (int threads = 1; threads <= Math.min(32, UTXOPool.SHARDS); threads *= 2) {
+                UTXOPool shardedPool = new UTXOPool(base, true);
+                ForkJoinPool workers = new ForkJoinPool(threads);
+                // a parallel stream started from a task of a pool runs on that pool
+                start = System.nanoTime();
+                workers.submit(() -> shardedPool.apply(spent, created)).get();
+                long parallel = System.nanoTime() - start;
+                workers.shutdown();
+                if (!Arrays.equals(expected, shardedPool.getSetInfo().getSetHash()))
+                    throw new IllegalStateException("set hashes differ");
+                System.out.printf("  %2d threads: %.1f ms, speedup %.2f%n", threads, parallel / 1e6,
+                        (double) sequential / parallel);
+            }
+        }
+    }
+
+    private static Hash256 randomId(Random random) {
+        return new Hash256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The UTXO set commitment of a block: the digest of the {@link UtxoSetHash} of the UTXO pool after
+ * the block. Two nodes that hold the same block with different commitments have diverged in state
+ * even though they agree on the chain.
+ */
+public class UtxoCommitment {
+
+    private final byte[] blockHash;
+    private final int height;
+    private final byte[] setHash;
+
+    public UtxoCommitment(byte[] blockHash, int height, byte[] setHash) {
+        this.blockHash = blockHash;
+        this.height = height;
+        this.setHash = setHash;
+    }
+
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getSetHash() {
+        return setHash;
+    }
+
+    /**
+     * Compares the commitments of two replicas, as returned by
+     * {@code BlockChain.getMainChainCommitments()}, block by block.
+     * 
+     * @return the lowest commitment in {@code mine} for a block that {@code theirs} commits to a
+     *         different UTXO set, or null if every block both hold has the same commitment
+     */
+    public static UtxoCommitment findDivergence(List<UtxoCommitment> mine, List<UtxoCommitment> theirs) {
+        HashMap<Hash256, UtxoCommitment> theirsByBlock = new HashMap<Hash256, UtxoCommitment>();
+        for (UtxoCommitment c : theirs)
+            theirsByBlock.put(Hash256.idOf(c.blockHash), c);
+        UtxoCommitment divergence = null;
+        for (UtxoCommitment c : mine) {
+            UtxoCommitment other = theirsByBlock.get(Hash256.idOf(c.blockHash));
+            if (other != null && !Arrays.equals(c.setHash, other.setHash)
+                    && (divergence == null || c.height < divergence.height))
+                divergence = c;
+        }
+        return divergence;
+    }
+}
@@ -0,0 +1,106 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A rolling hash of a set of UTXOs in the style of MuHash3072: each UTXO is mapped to a number
+ * modulo the prime {@code 2^3072 - 1103717}, and the set hash is the product of the numbers of
+ * its UTXOs. Multiplication is commutative, so the hash does not depend on the order in which
+ * UTXOs were added, and adding or removing a UTXO costs a single modular multiplication.
+ * Removals are multiplied into a separate denominator, so the one modular inverse is only paid
+ * when the digest is taken.
+ */
+public class UtxoSetHash {
+
+    private static final int BITS = 3072;
+    private static final BigInteger OFFSET = BigInteger.valueOf(1103717);
+    private static final BigInteger PRIME = BigInteger.ONE.shiftLeft(BITS).subtract(OFFSET);
+    private static final BigInteger MASK = BigInteger.ONE.shiftLeft(BITS).subtract(BigInteger.ONE);
+    private static final int ELEMENT_BYTES = BITS / 8;
+
+    private BigInteger numerator;
+    private BigInteger denominator;
+
+    /** Creates the hash of the empty set */
+    public UtxoSetHash() {
+        numerator = BigInteger.ONE;
+        denominator = BigInteger.ONE;
+    }
+
+    /** Creates a copy of {@code other} */
+    public UtxoSetHash(UtxoSetHash other) {
+        numerator = other.numerator;
+        denominator = other.denominator;
+    }
+
+    /** Adds {@code utxo}, which holds {@code txOut}, to the set */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        numerator = reduce(numerator.multiply(toElement(utxo, txOut)));
+    }
+
+    /** Removes {@code utxo}, which holds {@code txOut}, from the set */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        denominator = reduce(denominator.multiply(toElement(utxo, txOut)));
+    }
+
+    /** Adds every UTXO in {@code other} to this set, as if each were added one by one */
+    public void combine(UtxoSetHash other) {
+        numerator = reduce(numerator.multiply(other.numerator));
+        denominator = reduce(denominator.multiply(other.denominator));
+    }
+
+    /** @return the 32-byte digest of the set, equal for equal sets however they were built */
+    public byte[] getDigest() {
+        BigInteger value = numerator.multiply(denominator.modInverse(PRIME)).mod(PRIME);
+        byte[] raw = value.toByteArray();
+        byte[] fixed = new byte[ELEMENT_BYTES];
+        int length = Math.min(raw.length, ELEMENT_BYTES);
+        System.arraycopy(raw, raw.length - length, fixed, ELEMENT_BYTES - length, length);
+        return newSha256().digest(fixed);
+    }
+
+    /**
+     * @return {@code x mod PRIME} for {@code 0 <= x < PRIME^2}, using {@code 2^3072 = OFFSET}
+     *         modulo {@code PRIME} to fold the high bits down instead of dividing
+     */
+    private static BigInteger reduce(BigInteger x) {
+        while (x.bitLength() > BITS)
+            x = x.shiftRight(BITS).multiply(OFFSET).add(x.and(MASK));
+        return x.compareTo(PRIME) >= 0 ? x.subtract(PRIME) : x;
+    }
+
+    /** maps a UTXO and its output to a number modulo {@code PRIME} */
+    private static BigInteger toElement(UTXO utxo, Transaction.Output txOut) {
+        byte[] address = txOut.key.getAddress();
+        ByteBuffer b = ByteBuffer.allocate(Hash256.LENGTH + Integer.SIZE / 8 + Long.SIZE / 8 + address.length);
+        utxo.getTxId().writeTo(b);
+        b.putInt(utxo.getIndex());
+        b.putLong(txOut.value);
+        b.put(address);
+        MessageDigest md = newSha256();
+        byte[] seed = md.digest(b.array());
+        // expand the seed to 3072 bits by hashing it with a counter
+        byte[] expanded = new byte[ELEMENT_BYTES];
+        try {
+            for (int i = 0; i < ELEMENT_BYTES / 32; i++) {
+                md.update(seed);
+                md.update((byte) i);
+                md.digest(expanded, i * 32, 32);
+            }
+        } catch (DigestException x) {
+            throw new IllegalStateException(x);
+        }
+        BigInteger element = new BigInteger(1, expanded);
+        return element.compareTo(PRIME) >= 0 ? element.subtract(PRIME) : element;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures the cost of keeping a UTXO pool's rolling set hash up to date: the time per
+ * {@code addUTXO} and {@code removeUTXO} in a pool that does not track it and in one that does,
+ * and the time to take the digest, which the untracked pool computes by hashing every UTXO.
+ * <p>
+ * Usage: {@code java UtxoSetHashBenchmark [utxos]}
+ */
+public class UtxoSetHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int utxos = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        PublicKey[] keys = new PublicKey[16];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.genKeyPair().getPublic();
+
+        Random random = new Random(42);
+        ArrayList<UTXO> added = new ArrayList<UTXO>(utxos);
+        ArrayList<Transaction.Output> outputs = new ArrayList<Transaction.Output>(utxos);
+        for (int i = 0; i < utxos; i++) {
+            byte[] txHash = new byte[32];
+            random.nextBytes(txHash);
+            Transaction tx = new Transaction();
+            tx.addOutput(random.nextInt(1000) * Transaction.COIN, keys[i % keys.length]);
+            added.add(new UTXO(txHash, 0));
+            outputs.add(tx.getOutput(0));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (boolean tracked : new boolean[] { false, true })
+                run(round, tracked, added, outputs);
+        }
+    }
+
+    private static void run(int round, boolean tracked, ArrayList<UTXO> added, ArrayList<Transaction.Output> outputs) {
+        int utxos = added.size();
+        UTXOPool pool = new UTXOPool();
+        if (tracked)
+            pool.trackSetHash();
+        long start = System.nanoTime();
+        for (int i = 0; i < utxos; i++)
+            pool.addUTXO(added.get(i), outputs.get(i));
+        long addNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < utxos; i += 2)
+            pool.removeUTXO(added.get(i));
+        long removeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        pool.getSetInfo();
+        long digestNanos = System.nanoTime() - start;
+
+        System.out.printf("round %d, %-11s add %.2f us/op, remove %.2f us/op, digest %.2f ms%n", round,
+                tracked ? "tracked:" : "untracked:", addNanos / 1e3 / utxos, removeNanos / 1e3 / ((utxos + 1) / 2),
+                digestNanos / 1e6);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Outcome of validating a transaction or a block: either {@link #VALID} or the reason it was
+ * rejected. Results are enum constants, so producing one on the validation path costs nothing
+ * beyond the check itself.
+ */
+public enum ValidationResult {
+    VALID(false),
+
+    /** an output claimed by the transaction is not in the UTXO pool */
+    MISSING_INPUT(false),
+    /** an input's signature does not verify under the claimed output's address */
+    BAD_SIGNATURE(true),
+    /** the transaction claims the same UTXO more than once */
+    DOUBLE_SPEND(true),
+    /** an output value is negative */
+    NEGATIVE_OUTPUT(true),
+    /** the output values add up to more than the input values */
+    INSUFFICIENT_INPUT(true),
+    /** the input or output values add up to more than a {@code long} can hold */
+    VALUE_OVERFLOW(true),
+
+    /** the block claims to be a genesis block */
+    GENESIS_CLAIM(true),
+    /** the block's parent is not (or no longer) held by the blockchain */
+    UNKNOWN_PARENT(false),
+    /** the height the block's header commits to does not follow its parent's height */
+    BAD_HEIGHT(true),
+    /**
+     * the block's transactions do not match the Merkle root its header commits to, or their Merkle
+     * tree is mutated; either says nothing about the header, which a correct list may still match
+     */
+    BAD_MERKLE_ROOT(false),
+    /** the block would be at a height at or below {@code maxHeight - CUT_OFF_AGE} */
+    CUTOFF_TOO_OLD(true),
+    /** the block contains a transaction that is invalid on top of its parent */
+    INVALID_TRANSACTION(true),
+    /** the block or transaction is already known */
+    DUPLICATE(false),
+    /** the block's hash misses its target, or its target is easier than the chain requires */
+    INSUFFICIENT_WORK(true),
+    /** the chain already holds {@code BlockChain.MAX_HEADERS} headers ahead of their blocks */
+    TOO_MANY_HEADERS(false);
+
+    private final boolean permanent;
+
+    private ValidationResult(boolean permanent) {
+        this.permanent = permanent;
+    }
+
+    public boolean isValid() {
+        return this == VALID;
+    }
+
+    /**
+     * @return true if the rejected item can never become valid later, so it is safe to remember
+     *         it as bad; false for valid results and for rejections that depend on data that may
+     *         still arrive, such as a missing parent or input
+     */
+    public boolean isPermanent() {
+        return permanent;
+    }
+}
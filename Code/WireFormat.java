@@ -0,0 +1,199 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+
+/**
+ * Serializes transactions, blocks and compact blocks for sending them to other nodes. Hashes are
+ * not sent: the receiver recomputes them, so a peer cannot make a transaction or block claim
+ * another's hash. Keys are sent in the compact encoding of their {@link SignatureScheme} and are
+ * looked up on arrival through {@link KeyRegistry#decode}, so a key already interned is not parsed
+ * again.
+ * <p>
+ * Byte arrays are written as an {@code int} length, or -1 for null, followed by the bytes.
+ */
+public class WireFormat {
+
+    /** largest byte array accepted from a peer */
+    public static final int MAX_ARRAY_LENGTH = 1 << 20;
+    /** largest number of inputs, outputs or block transactions accepted from a peer */
+    public static final int MAX_COUNT = 1 << 20;
+
+    private WireFormat() {
+    }
+
+    /**
+     * writes {@code tx}, which must be in {@link Transaction.Encoding#STANDARD}: the receiver
+     * rebuilds transactions in it, so a legacy one would arrive with another hash
+     */
+    public static void writeTransaction(DataOutputStream out, Transaction tx) throws IOException {
+        if (tx.getEncoding() != Transaction.Encoding.STANDARD)
+            throw new IllegalArgumentException("only standard transactions are sent");
+        out.writeInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            writeBytes(out, in.prevTxHash);
+            out.writeInt(in.outputIndex);
+            writeBytes(out, in.signature);
+        }
+        out.writeInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            out.writeLong(op.value);
+            writeBytes(out, op.key.getEncoded());
+        }
+    }
+
+    /** @return the transaction read from {@code in}, finalized */
+    public static Transaction readTransaction(DataInputStream in) throws IOException {
+        Transaction tx = new Transaction();
+        int numInputs = readCount(in);
+        for (int i = 0; i < numInputs; i++) {
+            tx.addInput(readBytes(in), in.readInt());
+            tx.addSignature(readBytes(in), i);
+        }
+        int numOutputs = readCount(in);
+        for (int i = 0; i < numOutputs; i++) {
+            long value = in.readLong();
+            tx.addOutput(value, readKey(in));
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** writes {@code block}, which must be finalized */
+    public static void writeBlock(DataOutputStream out, Block block) throws IOException {
+        BlockHeader header = block.getHeader();
+        if (header == null)
+            throw new IllegalArgumentException("block is not finalized");
+        writeBytes(out, block.getPrevBlockHash());
+        out.writeInt(header.getHeight());
+        out.writeLong(header.getTimestamp());
+        out.writeInt(header.getBits());
+        out.writeLong(header.getNonce());
+        writeBytes(out, block.getCoinbase().getOutput(0).key.getEncoded());
+        out.writeInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            writeTransaction(out, tx);
+    }
+
+    /** @return the block read from {@code in}, finalized */
+    public static Block readBlock(DataInputStream in) throws IOException {
+        byte[] prevHash = readBytes(in);
+        int height = in.readInt();
+        long timestamp = in.readLong();
+        int bits = in.readInt();
+        long nonce = in.readLong();
+        Block block = new Block(prevHash, readKey(in), height, timestamp);
+        block.setBits(bits);
+        block.setNonce(nonce);
+        int numTxs = readCount(in);
+        for (int i = 0; i < numTxs; i++)
+            block.addTransaction(readTransaction(in));
+        block.finalize();
+        return block;
+    }
+
+    /**
+     * writes {@code compactBlock}: the header, the coinbase key, the salt, the transaction count,
+     * the prefilled transactions with their positions and then the short ids of the others
+     */
+    public static void writeCompactBlock(DataOutputStream out, CompactBlock compactBlock) throws IOException {
+        BlockHeader header = compactBlock.getHeader();
+        writeBytes(out, header.getPrevBlockHash());
+        writeBytes(out, header.getMerkleRoot());
+        out.writeInt(header.getHeight());
+        out.writeLong(header.getTimestamp());
+        out.writeInt(header.getBits());
+        out.writeLong(header.getNonce());
+        writeBytes(out, KeyRegistry.intern(compactBlock.getCoinbaseKey()).getEncoded());
+        out.writeLong(compactBlock.getSalt());
+        int n = compactBlock.getTransactionCount();
+        out.writeInt(n);
+        int prefilled = 0;
+        for (int i = 0; i < n; i++)
+            if (compactBlock.getPrefilled(i) != null)
+                prefilled++;
+        out.writeInt(prefilled);
+        for (int i = 0; i < n; i++) {
+            if (compactBlock.getPrefilled(i) != null) {
+                out.writeInt(i);
+                writeTransaction(out, compactBlock.getPrefilled(i));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (compactBlock.getPrefilled(i) == null) {
+                long shortId = compactBlock.getShortId(i);
+                for (int b = CompactBlock.SHORT_ID_BYTES - 1; b >= 0; b--)
+                    out.writeByte((int) (shortId >>> (8 * b)));
+            }
+        }
+    }
+
+    public static CompactBlock readCompactBlock(DataInputStream in) throws IOException {
+        byte[] prevHash = readBytes(in);
+        byte[] merkleRoot = readBytes(in);
+        BlockHeader header = new BlockHeader(prevHash, merkleRoot, in.readInt(), in.readLong(), in.readInt(),
+                in.readLong());
+        PublicKey coinbaseKey = readKey(in);
+        long salt = in.readLong();
+        int n = readCount(in);
+        int prefilledCount = readCount(in);
+        if (prefilledCount > n)
+            throw new IOException("bad count " + prefilledCount);
+        Transaction[] prefilled = new Transaction[n];
+        for (int j = 0; j < prefilledCount; j++) {
+            int i = in.readInt();
+            if (i < 0 || i >= n || prefilled[i] != null)
+                throw new IOException("bad prefilled index " + i);
+            prefilled[i] = readTransaction(in);
+        }
+        long[] shortIds = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (prefilled[i] == null) {
+                long shortId = 0;
+                for (int b = 0; b < CompactBlock.SHORT_ID_BYTES; b++)
+                    shortId = (shortId << 8) | in.readUnsignedByte();
+                shortIds[i] = shortId;
+            }
+        }
+        return new CompactBlock(header, coinbaseKey, salt, shortIds, prefilled);
+    }
+
+    public static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > MAX_ARRAY_LENGTH)
+            throw new IOException("bad array length " + length);
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    private static PublicKey readKey(DataInputStream in) throws IOException {
+        byte[] encoded = readBytes(in);
+        if (encoded == null)
+            throw new IOException("missing key");
+        try {
+            return KeyRegistry.decode(encoded).getKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("bad key", e);
+        }
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT)
+            throw new IOException("bad count " + count);
+        return count;
+    }
+}
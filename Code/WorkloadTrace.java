@@ -0,0 +1,298 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the blocks, headers and transactions a {@link BlockHandler} processes to a binary trace,
+ * and replays a trace into a fresh chain to measure how long each call takes there.
+ * <p>
+ * A trace starts with {@link #MAGIC}, {@link #VERSION}, the genesis block and the chain's
+ * configuration: required work, lazy side branch validation and retention policy. Each call
+ * follows as a record: its type, the microseconds since the previous call as a variable-length
+ * integer, the result the node returned, and the block, header or transaction in
+ * {@link WireFormat}. Recording starts at a chain that holds only its genesis block, so the trace
+ * holds everything needed to rebuild the node's state.
+ * <p>
+ * Usage: {@code java WorkloadTrace <trace> [timed]} replays {@code trace} as fast as possible, or
+ * at the pace it was recorded with {@code timed}, and prints the report.
+ */
+public class WorkloadTrace {
+
+    public static final int MAGIC = 0x54524345;
+    public static final int VERSION = 1;
+
+    private static final byte BLOCK = 1;
+    private static final byte HEADER = 2;
+    private static final byte TX = 3;
+
+    private WorkloadTrace() {
+    }
+
+    /**
+     * Writes the calls of the block handlers it is set on with
+     * {@link BlockHandler#setRecorder} to a trace file. It is called on the thread processing
+     * them and writes through a buffer, so recording costs the serialization of each call. The
+     * first write that fails closes the trace and stops the recording, so the trace ends at most
+     * one record cut short, which a replay skips.
+     */
+    public static class Recorder implements AutoCloseable {
+        private final DataOutputStream out;
+        private long lastNanos = System.nanoTime();
+        /** the first write failure, after which nothing more is recorded */
+        private IOException failure;
+
+        /** Traces the calls processed by {@code blockChain}'s handlers to {@code file} */
+        public Recorder(File file, BlockChain blockChain) throws IOException {
+            if (blockChain.blockStatesMap.size() != 1)
+                throw new IllegalArgumentException("the chain holds blocks other than its genesis block");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            WireFormat.writeBlock(out, blockChain.genesisBlock);
+            out.writeInt(blockChain.getRequiredWork());
+            out.writeBoolean(blockChain.isLazySideBranchValidation());
+            RetentionPolicy retentionPolicy = blockChain.getRetentionPolicy();
+            out.writeInt(retentionPolicy.getWindowDepth());
+            out.writeInt(retentionPolicy.getMaxSideBranches());
+            out.writeLong(retentionPolicy.getHeapBudgetBytes());
+        }
+
+        /** @return the time a call starts, to pass to one of the {@code record} methods */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public synchronized void recordBlock(long startNanos, Block block, ValidationResult result) {
+            if (failure != null)
+                return;
+            try {
+                writeRecord(BLOCK, startNanos, result);
+                WireFormat.writeBlock(out, block);
+            } catch (IOException x) {
+                fail(x);
+            }
+        }
+
+        public synchronized void recordHeader(long startNanos, BlockHeader header, ValidationResult result) {
+            if (failure != null)
+                return;
+            try {
+                writeRecord(HEADER, startNanos, result);
+                WireFormat.writeBytes(out, header.getPrevBlockHash());
+                WireFormat.writeBytes(out, header.getMerkleRoot());
+                out.writeInt(header.getHeight());
+                out.writeLong(header.getTimestamp());
+                out.writeInt(header.getBits());
+                out.writeLong(header.getNonce());
+            } catch (IOException x) {
+                fail(x);
+            }
+        }
+
+        public synchronized void recordTx(long startNanos, Transaction tx, ValidationResult result) {
+            if (failure != null)
+                return;
+            try {
+                writeRecord(TX, startNanos, result);
+                WireFormat.writeTransaction(out, tx);
+            } catch (IOException x) {
+                fail(x);
+            }
+        }
+
+        private void writeRecord(byte type, long startNanos, ValidationResult result) throws IOException {
+            out.writeByte(type);
+            // a call that started before the previous one was recorded keeps the order of recording
+            long micros = Math.max(0, (startNanos - lastNanos) / 1000);
+            lastNanos += micros * 1000;
+            writeVarLong(out, micros);
+            out.writeByte(result.ordinal());
+        }
+
+        private void fail(IOException x) {
+            failure = x;
+            x.printStackTrace(System.err);
+            try {
+                out.close();
+            } catch (IOException closeFailure) {
+                x.addSuppressed(closeFailure);
+            }
+        }
+
+        /** @return the write failure that stopped the recording, or null if it has not failed */
+        public synchronized IOException getFailure() {
+            return failure;
+        }
+
+        /** Closes the trace, or throws the failure that already closed it */
+        @Override
+        public synchronized void close() throws IOException {
+            if (failure != null)
+                throw failure;
+            out.close();
+        }
+    }
+
+    /** The outcome of a replay, printed by {@link #toString()} as one line per value */
+    public static class Report {
+        public long blocks;
+        public long headers;
+        public long txs;
+        /** calls whose result differs from the recorded one */
+        public long mismatches;
+        /** nanoseconds of each call */
+        public final LatencyHistogram blockNanos = new LatencyHistogram();
+        public final LatencyHistogram headerNanos = new LatencyHistogram();
+        public final LatencyHistogram txNanos = new LatencyHistogram();
+        /** nanoseconds each call started after its recorded time, in a timed replay */
+        public final LatencyHistogram lagNanos = new LatencyHistogram();
+        public long wallNanos;
+        public int height;
+        public byte[] tipHash;
+        /** the metrics of the replayed chain, in {@link NodeMetrics#exportText()} format */
+        public String metrics;
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("calls_block ").append(blocks).append('\n');
+            sb.append("calls_header ").append(headers).append('\n');
+            sb.append("calls_tx ").append(txs).append('\n');
+            sb.append("result_mismatches ").append(mismatches).append('\n');
+            sb.append("final_height ").append(height).append('\n');
+            sb.append("final_tip ").append(Hash256.of(tipHash)).append('\n');
+            sb.append(String.format("wall_seconds %.3f%n", wallNanos / 1e9));
+            appendLatencies(sb, "block", blockNanos);
+            appendLatencies(sb, "header", headerNanos);
+            appendLatencies(sb, "tx", txNanos);
+            if (lagNanos.getCount() > 0)
+                appendLatencies(sb, "lag", lagNanos);
+            sb.append(metrics);
+            return sb.toString();
+        }
+
+        private static void appendLatencies(StringBuilder sb, String name, LatencyHistogram h) {
+            sb.append(String.format("%s_mean_micros %.1f%n", name, h.getMean() / 1e3));
+            for (double p : new double[] { 50, 90, 99, 99.9 })
+                sb.append(String.format("%s_p%s_micros %.1f%n", name, p == 99.9 ? "999" : String.valueOf((int) p),
+                        h.getValueAtPercentile(p) / 1e3));
+            sb.append(String.format("%s_max_micros %.1f%n", name, h.getMax() / 1e3));
+        }
+    }
+
+    /**
+     * Replays {@code file} into a fresh chain with the recorded configuration, through a
+     * {@code BlockHandler}. Records are decoded one at a time and only the calls themselves are
+     * timed. A trace cut off in its last record is replayed up to the record before it.
+     *
+     * @param timed whether each call waits for the time it was recorded at, relative to the first
+     */
+    public static Report replay(File file, boolean timed) throws IOException {
+        Report report = new Report();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a workload trace: " + file);
+            Block genesisBlock = WireFormat.readBlock(in);
+            int requiredWork = in.readInt();
+            boolean lazy = in.readBoolean();
+            RetentionPolicy retentionPolicy = new RetentionPolicy(in.readInt(), in.readInt(), in.readLong());
+            BlockChain blockChain = new BlockChain(genesisBlock, retentionPolicy);
+            blockChain.setRequiredWork(requiredWork);
+            blockChain.setLazySideBranchValidation(lazy);
+            blockChain.getMetrics().setEnabled(true);
+            BlockHandler blockHandler = new BlockHandler(blockChain);
+            ValidationResult[] results = ValidationResult.values();
+
+            long start = System.nanoTime();
+            long offsetNanos = 0;
+            while (true) {
+                byte type;
+                Object body;
+                ValidationResult recorded;
+                try {
+                    type = in.readByte();
+                    offsetNanos += readVarLong(in) * 1000;
+                    int result = in.readUnsignedByte();
+                    if (result >= results.length)
+                        throw new IOException("bad result " + result);
+                    recorded = results[result];
+                    body = readBody(in, type);
+                } catch (EOFException x) {
+                    break;
+                }
+                if (timed) {
+                    long due = start + offsetNanos;
+                    while (System.nanoTime() - due < 0)
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    report.lagNanos.record(System.nanoTime() - due);
+                }
+                long callStart = System.nanoTime();
+                ValidationResult result;
+                if (type == BLOCK) {
+                    result = blockHandler.submitBlock((Block) body);
+                    report.blockNanos.record(System.nanoTime() - callStart);
+                    report.blocks++;
+                } else if (type == HEADER) {
+                    result = blockHandler.processHeader((BlockHeader) body);
+                    report.headerNanos.record(System.nanoTime() - callStart);
+                    report.headers++;
+                } else {
+                    result = blockHandler.submitTx((Transaction) body);
+                    report.txNanos.record(System.nanoTime() - callStart);
+                    report.txs++;
+                }
+                if (result != recorded)
+                    report.mismatches++;
+            }
+            report.wallNanos = System.nanoTime() - start;
+            report.height = blockChain.getBlockchainHeight();
+            report.tipHash = blockChain.getMaxHeightBlock().getHash();
+            report.metrics = blockChain.getMetrics().exportText();
+        }
+        return report;
+    }
+
+    private static Object readBody(DataInputStream in, byte type) throws IOException {
+        if (type == BLOCK)
+            return WireFormat.readBlock(in);
+        if (type == HEADER)
+            return new BlockHeader(WireFormat.readBytes(in), WireFormat.readBytes(in), in.readInt(), in.readLong(),
+                    in.readInt(), in.readLong());
+        if (type == TX)
+            return WireFormat.readTransaction(in);
+        throw new IOException("bad record type " + type);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("variable-length integer too long");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java WorkloadTrace <trace> [timed]");
+            System.exit(1);
+        }
+        System.out.print(replay(new File(args[0]), args.length > 1 && args[1].equals("timed")));
+    }
+}